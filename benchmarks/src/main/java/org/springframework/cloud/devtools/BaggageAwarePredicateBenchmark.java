@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.netflix.loadbalancer.BaseLoadBalancer;
+import com.netflix.loadbalancer.Server;
+import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
+
+import io.jmnarloch.spring.cloud.ribbon.support.RibbonFilterContextHolder;
+
+/**
+ * Throughput of deciding routing for one outbound call: evaluating the predicate against every
+ * instance and choosing through the rule.
+ *
+ * @author Andy Clement
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BaggageAwarePredicateBenchmark {
+
+	@Param({ "10", "200", "2000" })
+	int instances;
+
+	@Param({ "1", "10" })
+	int constraints;
+
+	@Param({ "1", "10" })
+	int metadataEntries;
+
+	private List<Server> servers;
+
+	private BaggageAwarePredicate predicate;
+
+	private BaseLoadBalancer loadBalancer;
+
+	@Setup
+	public void setup() {
+		DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache();
+		servers = Fixtures.servers(instances, metadataEntries);
+		predicate = new BaggageAwarePredicate(cache);
+		loadBalancer = new BaseLoadBalancer();
+		loadBalancer.setRule(new BaggageAwareRule(new BaggageAwarePredicate(cache)));
+		loadBalancer.addServers(servers);
+		String baggage = cache.toBaggage(Fixtures.descriptor(constraints, metadataEntries));
+		RibbonFilterContextHolder.getCurrentContext().add("devtools", baggage);
+	}
+
+	@TearDown
+	public void tearDown() {
+		RibbonFilterContextHolder.clearCurrentContext();
+		loadBalancer.shutdown();
+	}
+
+	@Benchmark
+	public void applyToAllServers(Blackhole bh) {
+		for (int i = 0, max = servers.size(); i < max; i++) {
+			bh.consume(predicate.apply((DiscoveryEnabledServer) servers.get(i)));
+		}
+	}
+
+	@Benchmark
+	public Server ruleChoose() {
+		return loadBalancer.chooseServer(null);
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a {@link DeveloperRoutingDescriptor} into baggage and back again, in the json
+ * and compact forms, and of a cached lookup.
+ *
+ * @author Andy Clement
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeveloperRoutingDescriptorCodecBenchmark {
+
+	@Param({ "1", "10" })
+	int constraints;
+
+	@Param({ "1", "10" })
+	int metadataEntries;
+
+	private DeveloperRoutingDescriptorCodec codec;
+
+	private DeveloperRoutingDescriptorCache cache;
+
+	private DeveloperRoutingDescriptor descriptor;
+
+	private String compact;
+
+	@Setup
+	public void setup() {
+		codec = new DeveloperRoutingDescriptorCodec();
+		cache = new DeveloperRoutingDescriptorCache();
+		descriptor = Fixtures.descriptor(constraints, metadataEntries);
+		compact = cache.toBaggage(descriptor);
+	}
+
+	@Benchmark
+	public DeveloperRoutingDescriptor jsonRoundTrip() {
+		return codec.decode(codec.toJson(descriptor));
+	}
+
+	@Benchmark
+	public DeveloperRoutingDescriptor compactRoundTrip() {
+		return codec.decode(DeveloperRoutingDescriptorCodec.toCompact(descriptor));
+	}
+
+	@Benchmark
+	public DeveloperRoutingDescriptor cachedLookup() {
+		return cache.get(compact);
+	}
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.sleuth.DefaultSpanNamer;
+import org.springframework.cloud.sleuth.NoOpSpanReporter;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.TraceKeys;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.log.NoOpSpanLogger;
+import org.springframework.cloud.sleuth.sampler.AlwaysSampler;
+import org.springframework.cloud.sleuth.trace.DefaultTracer;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import io.jmnarloch.spring.cloud.ribbon.support.RibbonFilterContextHolder;
+
+/**
+ * Per request overhead of the {@link DeveloperRoutingFilter} for requests that carry nothing,
+ * carry a DEVELOPER-ROUTE header or arrive with devtools baggage already on the span.
+ *
+ * @author Andy Clement
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeveloperRoutingFilterBenchmark {
+
+	@Param({ "none", "header", "baggage" })
+	String routing;
+
+	private static final FilterChain NO_OP_CHAIN = new FilterChain() {
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+		}
+	};
+
+	private Tracer tracer;
+
+	private DeveloperRoutingFilter filter;
+
+	private MockHttpServletRequest request;
+
+	private MockHttpServletResponse response;
+
+	private String baggage;
+
+	@Setup
+	public void setup() {
+		tracer = new DefaultTracer(new AlwaysSampler(), new Random(), new DefaultSpanNamer(), new NoOpSpanLogger(),
+				new NoOpSpanReporter(), new TraceKeys());
+		DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache();
+		filter = new DeveloperRoutingFilter(tracer, null, cache, 0);
+		request = new MockHttpServletRequest("GET", "/abc");
+		if (routing.equals("header")) {
+			request.addHeader("DEVELOPER-ROUTE", "c:user=kryten");
+		}
+		response = new MockHttpServletResponse();
+		baggage = routing.equals("baggage") ? cache.toBaggage(Fixtures.descriptor(3, 2)) : null;
+	}
+
+	@Benchmark
+	public void doFilter() throws IOException, ServletException {
+		Span span = tracer.createSpan("benchmark");
+		try {
+			if (baggage != null) {
+				span.setBaggageItem("devtools", baggage);
+			}
+			filter.doFilter(request, response, NO_OP_CHAIN);
+		} finally {
+			tracer.close(span);
+			RibbonFilterContextHolder.clearCurrentContext();
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.loadbalancer.Server;
+import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
+
+/**
+ * Builds the servers and descriptors the benchmarks run against.
+ *
+ * @author Andy Clement
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Instances of app B, each carrying {@code metadataEntries} entries. Every tenth instance is a
+	 * developer copy tagged with user=kryten.
+	 */
+	static List<Server> servers(int instances, int metadataEntries) {
+		List<Server> servers = new ArrayList<>(instances);
+		for (int i = 0; i < instances; i++) {
+			Map<String, String> metadata = new HashMap<>();
+			for (int m = 0; m < metadataEntries; m++) {
+				metadata.put("key" + m, "value" + m);
+			}
+			if (i % 10 == 0) {
+				metadata.put("user", "kryten");
+			}
+			InstanceInfo instanceInfo = InstanceInfo.Builder.newBuilder()
+					.setAppName("B")
+					.setInstanceId("b-" + i)
+					.setHostName("host" + i)
+					.setIPAddr("10.0." + (i / 250) + "." + (i % 250))
+					.setPort(8080)
+					.setMetadata(metadata)
+					.build();
+			servers.add(new DiscoveryEnabledServer(instanceInfo, false));
+		}
+		return servers;
+	}
+
+	/**
+	 * A descriptor whose last constraint applies to app B and requires {@code metadataEntries}
+	 * entries (plus the user tag), preceded by constraints for other services.
+	 */
+	static DeveloperRoutingDescriptor descriptor(int constraints, int metadataEntries) {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("bench");
+		for (int c = 1; c < constraints; c++) {
+			drd.addRouteConstraint("service" + c, "user=kryten");
+		}
+		String[] kvs = new String[metadataEntries + 1];
+		for (int m = 0; m < metadataEntries; m++) {
+			kvs[m] = "key" + m + "=value" + m;
+		}
+		kvs[metadataEntries] = "user=kryten";
+		drd.addRouteConstraint("b", kvs);
+		return drd;
+	}
+
+}
@@ -15,16 +15,11 @@
  */
 package org.springframework.cloud.devtools;
 
-import java.io.IOException;
-import java.util.Collections;
 import java.util.Map;
-import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.cloud.devtools.DeveloperRoutingDescriptor.RouteConstraint;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
 
 import io.jmnarloch.spring.cloud.ribbon.api.RibbonFilterContext;
@@ -40,8 +35,57 @@ import io.jmnarloch.spring.cloud.ribbon.support.RibbonFilterContextHolder;
 public class BaggageAwarePredicate extends DiscoveryEnabledPredicate {
 
 	private static Logger log = LoggerFactory.getLogger(BaggageAwarePredicate.class);
-	
+
+	private final DeveloperRoutingDescriptorCache descriptorCache;
+
+	private final DeveloperRoutingMetrics metrics;
+
+	// The same baggage string instance is presented for every server considered during
+	// a single choose(), remember the last one resolved so we only hit the cache once
+	private final ThreadLocal<ResolvedBaggage> lastResolved = new ThreadLocal<ResolvedBaggage>() {
+		@Override
+		protected ResolvedBaggage initialValue() {
+			return new ResolvedBaggage();
+		}
+	};
+
+	private static class ResolvedBaggage {
+		String baggage;
+		long registryVersion;
+		DeveloperRoutingDescriptor descriptor;
+	}
+
 	public BaggageAwarePredicate() {
+		this(new DeveloperRoutingDescriptorCache());
+	}
+
+	public BaggageAwarePredicate(DeveloperRoutingDescriptorCache descriptorCache) {
+		this(descriptorCache, DeveloperRoutingMetrics.NONE);
+	}
+
+	public BaggageAwarePredicate(DeveloperRoutingDescriptorCache descriptorCache, DeveloperRoutingMetrics metrics) {
+		this.descriptorCache = descriptorCache;
+		this.metrics = metrics;
+	}
+
+	DeveloperRoutingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Map the devtools baggage to a descriptor, identity comparing against the last
+	 * baggage seen on this thread before consulting the shared cache. A registry change may
+	 * alter what reference baggage resolves to, so forgets the last one when that happens.
+	 */
+	DeveloperRoutingDescriptor resolve(String devtoolsBaggage) {
+		ResolvedBaggage last = lastResolved.get();
+		long registryVersion = descriptorCache.getRegistryVersion();
+		if (last.baggage != devtoolsBaggage || last.registryVersion != registryVersion) {
+			last.descriptor = descriptorCache.get(devtoolsBaggage);
+			last.baggage = devtoolsBaggage;
+			last.registryVersion = registryVersion;
+		}
+		return last.descriptor;
 	}
 
 	// Examples:
@@ -50,60 +94,109 @@ public class BaggageAwarePredicate extends DiscoveryEnabledPredicate {
 	// server.getInstanceInfo().getMetadata() == {foo=bar}
 	// RibbonFilterContextHolder.getCurrentContext().getAttributes() == 
 	//     [devtools={"id":"Andy","routeConfigs":[{"serviceRegex":"c","keyValueMetadataRegex":"foo=bar"}]}]
+	//  or, in the compact form (see DeveloperRoutingDescriptorCodec)
+	//     [devtools=1|Andy|c:foo=bar]
 
 	@Override
-    protected boolean apply(DiscoveryEnabledServer server) {
-        RibbonFilterContext context = RibbonFilterContextHolder.getCurrentContext();
-        String jsonDevInfo = context.getAttributes().get("devtools");
-        if (jsonDevInfo == null) {
-	        	// no constraints, accept server
-        		final Map<String, String> metadata = server.getInstanceInfo().getMetadata();
-        		if (Boolean.valueOf(metadata.getOrDefault("needsExplicitRouting", "false")) == true) {
-				log.info("ignoring server {} since it specifies the need for explicit routing: {}", server,metadata);
+	protected boolean apply(DiscoveryEnabledServer server) {
+		RibbonFilterContext context = RibbonFilterContextHolder.getCurrentContext();
+		String devtoolsBaggage = context.getAttributes().get("devtools");
+		if (devtoolsBaggage == null) {
+			return apply(server, (DeveloperRoutingDescriptor) null);
+		}
+		// Deserialize constraints (failures are logged by the cache)
+		DeveloperRoutingDescriptor drd = resolve(devtoolsBaggage);
+		if (drd == null) {
+			return true;
+		}
+		return apply(server, drd);
+	}
+
+	/**
+	 * Decide whether a server is acceptable under a particular routing descriptor.
+	 * @param server the candidate server
+	 * @param drd the routing descriptor in effect, or null if there isn't one
+	 * @return true if the server may be used
+	 */
+	protected boolean apply(DiscoveryEnabledServer server, DeveloperRoutingDescriptor drd) {
+		return apply(server, drd == null ? null : drd.matcher());
+	}
+
+	/**
+	 * Decide whether a server is acceptable under some compiled route constraints, such as one
+	 * of the variants of a weighted {@link RouteMatcher.Split}.
+	 * @param matcher the route constraints in effect, or null if there is no routing descriptor
+	 */
+	boolean apply(DiscoveryEnabledServer server, RouteMatcher matcher) {
+		if (!metrics.isTimingEnabled()) {
+			return evaluate(server, matcher);
+		}
+		long start = System.nanoTime();
+		boolean accepted = evaluate(server, matcher);
+		metrics.rebuildPredicateEvaluated(System.nanoTime() - start);
+		return accepted;
+	}
+
+	private boolean evaluate(DiscoveryEnabledServer server, RouteMatcher matcher) {
+		final Map<String, String> metadata = server.getInstanceInfo().getMetadata();
+		String appName = server.getInstanceInfo().getAppName();
+		if (matcher == null) {
+			// no constraints, accept server unless it wants to be explicitly chosen
+			if (needsExplicitRouting(metadata)) {
+				metrics.explicitRoutingExcluded(appName);
+				if (log.isDebugEnabled()) {
+					log.debug("ignoring server {} since it specifies the need for explicit routing: {}", server, metadata);
+				}
 				return false;
 			}
-	        	return true;
-        } else {
-	        	// Deserialize constraints
-	        	DeveloperRoutingDescriptor drd = null;
-			try {
-	        		ObjectMapper mapper = new ObjectMapper();
-				drd = mapper.readValue(jsonDevInfo, DeveloperRoutingDescriptor.class);
-			} catch (IOException e) {
-				log.error("Unable to deserialize developer info", e);
-				return true;
+			metrics.defaultRouting(appName);
+			return true;
+		}
+		// Is there a route constraint for this service
+		RouteMatcher.Constraint constraint = matcher.constraintFor(appName);
+		if (constraint != null) {
+			boolean matched = constraint.matches(metadata);
+			if (matched) {
+				metrics.serverAccepted(appName);
+			} else {
+				metrics.serverRejected(appName);
 			}
-			log.info("verifying server constraints: {}",drd);
-			
-			String appname = server.getInstanceInfo().getAppName();
-			// Is there a route constraint for this service
-			String serviceName = server.getInstanceInfo().getAppName();
-	        final Map<String, String> metadata = server.getInstanceInfo().getMetadata();
-	        log.info("server for app {} metadata is {}",appname, metadata);
-	        // System.out.println("BAP: Service metadata "+metadata);
-			for (RouteConstraint rc: drd.getRouteConstraints()) {
-				String serviceNameConstraint = rc.getServiceName();
-				if (serviceNameConstraint == null || serviceNameConstraint.equalsIgnoreCase(serviceName)) {
-					// Constraint applies to this service, let's check it
-			        final Set<Map.Entry<String, String>> attributes = Collections.unmodifiableSet(rc.getMetadataConstraints().entrySet());
-					if (metadata.entrySet().containsAll(attributes)) {
-						log.info("server for app {} accepted {} - contraints matched", appname, server);
-						return true;
-					} else {
-						log.info("server for app {} rejected {} - contraints not matched", appname, server);
-						return false;
-					}
-				}
+			if (log.isDebugEnabled()) {
+				log.debug("server for app {} {} {} - constraint {}", appName, matched ? "accepted" : "rejected", server,
+						constraint);
 			}
-			// If there are no route constraints, ignore anything marked as requiring explicit selection
-			if (drd.getRouteConstraints().length == 0) {
-				if (Boolean.valueOf(metadata.getOrDefault("needsExplicitRouting", "false")) == true) {
-					log.info("ignoring server {} since specifies the need for explicit routing", server);
-					return false;
-				}
+			return matched;
+		}
+		// If there are no route constraints, ignore anything marked as requiring explicit selection
+		if (!matcher.hasConstraints() && needsExplicitRouting(metadata)) {
+			metrics.explicitRoutingExcluded(appName);
+			if (log.isDebugEnabled()) {
+				log.debug("ignoring server {} since specifies the need for explicit routing", server);
 			}
-			// By default, accept this service
-			return true;
-        }		
-    }
+			return false;
+		}
+		// By default, accept this service
+		metrics.defaultRouting(appName);
+		return true;
+	}
+
+	static boolean needsExplicitRouting(Map<String, String> metadata) {
+		return "true".equalsIgnoreCase(metadata.get("needsExplicitRouting"));
+	}
+
+	/**
+	 * @return the concurrent requests an instance has said it accepts, 0 if it has not said
+	 * @see DeveloperRoutingAdmissionFilter
+	 */
+	static int maxConcurrentRequests(Map<String, String> metadata) {
+		String limit = metadata.get(DeveloperRoutingAdmissionFilter.MAX_CONCURRENT_REQUESTS_METADATA);
+		if (limit != null) {
+			try {
+				return Integer.parseInt(limit);
+			} catch (NumberFormatException e) {
+				log.debug("ignoring invalid concurrency limit {}", limit);
+			}
+		}
+		return 0;
+	}
 }
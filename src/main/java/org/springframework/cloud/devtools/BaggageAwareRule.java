@@ -15,12 +15,57 @@
  */
 package org.springframework.cloud.devtools;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.netflix.loadbalancer.AbstractLoadBalancer;
+import com.netflix.loadbalancer.AvailabilityPredicate;
+import com.netflix.loadbalancer.BaseLoadBalancer;
+import com.netflix.loadbalancer.ILoadBalancer;
+import com.netflix.loadbalancer.LoadBalancerStats;
+import com.netflix.loadbalancer.PredicateKey;
+import com.netflix.loadbalancer.Server;
+import com.netflix.loadbalancer.ServerListChangeListener;
+import com.netflix.loadbalancer.ServerStats;
+import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
+
 import io.jmnarloch.spring.cloud.ribbon.predicate.DiscoveryEnabledPredicate;
 import io.jmnarloch.spring.cloud.ribbon.predicate.MetadataAwarePredicate;
 import io.jmnarloch.spring.cloud.ribbon.rule.DiscoveryEnabledRule;
+import io.jmnarloch.spring.cloud.ribbon.support.RibbonFilterContextHolder;
 
 /**
  * A baggage aware {@link DiscoveryEnabledRule} implementation.
+ * <p>
+ * For a given routing descriptor and server list the set of servers the
+ * {@link BaggageAwarePredicate} accepts never changes, so when using that predicate the
+ * filtered lists are cached (keyed by descriptor fingerprint and server list version) and each
+ * choose() is a round robin pick over an already filtered list. Rules are created per
+ * ribbon client so the cache is implicitly per client. It is discarded whenever the load
+ * balancer reports a new server list, which is what happens when eureka refreshes the
+ * {@code DiscoveryEnabledNIWSServerList}. When an {@link InstanceMetadataIndex} is available
+ * it answers the route constraints while filtering instead of examining each server's metadata.
+ * <p>
+ * Weighted route constraints are honoured here: each choose() draws one outcome of the
+ * service's {@link RouteMatcher.Split} and picks from the (cached) servers for that outcome.
+ * <p>
+ * Servers publishing a concurrency limit (see {@link DeveloperRoutingAdmissionFilter}) are
+ * skipped while this client already has that many requests active on them, rather than queueing
+ * more behind what is often a slow tunnel. If every server a descriptor selects is skipped for
+ * that reason the call falls back to the servers default routing would use (those not needing
+ * explicit routing), unless {@link #setSaturationFallback(boolean) fallback} is switched off in
+ * which case no server is chosen.
+ * <p>
+ * By default servers are taken in turn. With {@link SelectionMode#POWER_OF_TWO_CHOICES} two of
+ * the eligible servers are drawn at random and the one with the lower cost, its moving average
+ * latency scaled by its active requests (see {@link ServerLatencyTracker}), is used. Developer
+ * routed traffic then keeps off a slow tunnel whenever an equivalent faster instance matches.
  *
  * @author Andy Clement
  * @see DiscoveryEnabledRule
@@ -28,6 +73,53 @@ import io.jmnarloch.spring.cloud.ribbon.rule.DiscoveryEnabledRule;
  */
 public class BaggageAwareRule extends DiscoveryEnabledRule {
 
+	/**
+	 * How a server is picked from those the routing allows.
+	 */
+	public enum SelectionMode {
+		ROUND_ROBIN, POWER_OF_TWO_CHOICES
+	}
+
+	public static final long DEFAULT_LATENCY_DECAY = 10000;
+
+	private static final int MAX_CACHED_SERVER_LISTS = 64;
+
+	// Outcomes of picking a server besides its index
+	private static final int NONE_AVAILABLE = -1, ALL_SATURATED = -2;
+
+	// Whether a particular server can take a request
+	private static final int USABLE = 0, UNAVAILABLE = 1, SATURATED = 2;
+
+	// Fingerprint standing in for no descriptor at all
+	private static final Long NO_DESCRIPTOR = 0L;
+
+	private final BaggageAwarePredicate baggageAwarePredicate;
+
+	private final AvailabilityPredicate availabilityPredicate;
+
+	private final InstanceMetadataIndex metadataIndex;
+
+	// Per routing fingerprint, the eligible servers for each outcome of a weighted split (or
+	// just the one entry when routing is not split)
+	private final ConcurrentHashMap<Long, AtomicReferenceArray<EligibleServers>> eligibleServers = new ConcurrentHashMap<>();
+
+	private final AtomicLong serverListVersion = new AtomicLong();
+
+	private final AtomicInteger nextIndex = new AtomicInteger();
+
+	private volatile boolean saturationFallback = true;
+
+	private volatile SelectionMode selectionMode = SelectionMode.ROUND_ROBIN;
+
+	private volatile ServerLatencyTracker latencyTracker = new ServerLatencyTracker(DEFAULT_LATENCY_DECAY);
+
+	private final ServerListChangeListener serverListChangeListener = new ServerListChangeListener() {
+		@Override
+		public void serverListChanged(List<Server> oldList, List<Server> newList) {
+			invalidate();
+		}
+	};
+
 	public BaggageAwareRule() {
         this(new BaggageAwarePredicate());
     }
@@ -39,7 +131,298 @@ public class BaggageAwareRule extends DiscoveryEnabledRule {
      * @throws IllegalArgumentException if predicate is {@code null}
      */
     public BaggageAwareRule(DiscoveryEnabledPredicate predicate) {
+        this(predicate, null);
+    }
+
+    /**
+     * Creates new instance of {@link BaggageAwareRule} with specific predicate, using a metadata
+     * index to answer route constraints when filtering server lists.
+     *
+     * @param predicate the predicate, can't be {@code null}
+     * @param metadataIndex index over the eureka registry, may be {@code null}
+     * @throws IllegalArgumentException if predicate is {@code null}
+     */
+    public BaggageAwareRule(DiscoveryEnabledPredicate predicate, InstanceMetadataIndex metadataIndex) {
         super(predicate);
+        this.baggageAwarePredicate = predicate instanceof BaggageAwarePredicate ? (BaggageAwarePredicate) predicate : null;
+        this.availabilityPredicate = new AvailabilityPredicate(this, null);
+        this.metadataIndex = metadataIndex;
     }
 
+	/**
+	 * The servers accepted by the predicate for one descriptor, along with enough about the
+	 * server list they were computed from to tell when they are stale.
+	 */
+	private static final class EligibleServers {
+
+		final long version;
+
+		final int sourceSize;
+
+		final Server sourceHead;
+
+		final List<Server> servers;
+
+		// Concurrency limit of each server, 0 if it has none, or null if none have one
+		final int[] limits;
+
+		EligibleServers(long version, int sourceSize, Server sourceHead, List<Server> servers, int[] limits) {
+			this.version = version;
+			this.sourceSize = sourceSize;
+			this.sourceHead = sourceHead;
+			this.servers = servers;
+			this.limits = limits;
+		}
+	}
+
+	/**
+	 * @param saturationFallback whether to use the servers default routing would use when all
+	 * the servers a descriptor selects are saturated
+	 */
+	public void setSaturationFallback(boolean saturationFallback) {
+		this.saturationFallback = saturationFallback;
+	}
+
+	public void setSelectionMode(SelectionMode selectionMode) {
+		this.selectionMode = selectionMode;
+	}
+
+	/**
+	 * @param latencyDecayMillis time constant of the moving average latency used by
+	 * {@link SelectionMode#POWER_OF_TWO_CHOICES}
+	 */
+	public void setLatencyDecay(long latencyDecayMillis) {
+		this.latencyTracker = new ServerLatencyTracker(latencyDecayMillis);
+	}
+
+	@Override
+	public void setLoadBalancer(ILoadBalancer lb) {
+		ILoadBalancer previous = getLoadBalancer();
+		super.setLoadBalancer(lb);
+		// Ribbon sets the load balancer again when a client is refreshed, keep exactly one
+		// listener registered and only on the current load balancer
+		if (previous != lb) {
+			if (previous instanceof BaseLoadBalancer) {
+				((BaseLoadBalancer) previous).removeServerListChangeListener(serverListChangeListener);
+			}
+			if (lb instanceof BaseLoadBalancer) {
+				((BaseLoadBalancer) lb).addServerListChangeListener(serverListChangeListener);
+			}
+		}
+		invalidate();
+	}
+
+	/**
+	 * Discard all cached filtered server lists.
+	 */
+	public void invalidate() {
+		serverListVersion.incrementAndGet();
+		eligibleServers.clear();
+	}
+
+	@Override
+	public Server choose(Object key) {
+		ILoadBalancer lb = getLoadBalancer();
+		if (baggageAwarePredicate == null || lb == null) {
+			return super.choose(key);
+		}
+		String baggage = RibbonFilterContextHolder.getCurrentContext().getAttributes().get("devtools");
+		DeveloperRoutingDescriptor drd = null;
+		if (baggage != null) {
+			drd = baggageAwarePredicate.resolve(baggage);
+			if (drd == null) {
+				// Unusable baggage, let the predicate apply its lenient default
+				Server server = super.choose(key);
+				recordOutcome(server, lb.getAllServers());
+				return server;
+			}
+		}
+		List<Server> allServers = lb.getAllServers();
+		RouteMatcher matcher = drd == null ? null : drd.matcher();
+		int outcome = 0, outcomes = 1;
+		if (matcher != null && matcher.hasSplits()) {
+			RouteMatcher.Split split = matcher.splitFor(appNameOf(allServers));
+			if (split != null) {
+				outcomes = split.size();
+				outcome = split.choose();
+				matcher = split.variant(outcome);
+			}
+		}
+		// Baggage strings routing the same way resolve to descriptors with the same fingerprint
+		Long fingerprint = drd == null ? NO_DESCRIPTOR : drd.fingerprintKey();
+		LoadBalancerStats stats = lb instanceof AbstractLoadBalancer ? ((AbstractLoadBalancer) lb).getLoadBalancerStats()
+				: null;
+		EligibleServers eligible = getEligibleServers(allServers, fingerprint, outcome, outcomes, matcher);
+		int chosen = chooseServer(eligible, key, stats);
+		if (chosen >= 0) {
+			Server server = eligible.servers.get(chosen);
+			recordOutcome(server, allServers);
+			return server;
+		}
+		if (chosen == ALL_SATURATED && drd != null && saturationFallback) {
+			EligibleServers fallback = getEligibleServers(allServers, NO_DESCRIPTOR, 0, 1, null);
+			chosen = chooseServer(fallback, key, stats);
+			if (chosen >= 0) {
+				Server server = fallback.servers.get(chosen);
+				baggageAwarePredicate.getMetrics().fallback(appNameOf(fallback.servers));
+				return server;
+			}
+		}
+		recordOutcome(null, allServers);
+		return null;
+	}
+
+	private void recordOutcome(Server server, List<Server> allServers) {
+		DeveloperRoutingMetrics metrics = baggageAwarePredicate.getMetrics();
+		if (server instanceof DiscoveryEnabledServer) {
+			metrics.routed(((DiscoveryEnabledServer) server).getInstanceInfo().getAppName());
+		} else if (server != null) {
+			metrics.routed(appNameOf(allServers));
+		} else {
+			metrics.noServer(appNameOf(allServers));
+		}
+	}
+
+	private static String appNameOf(List<Server> servers) {
+		// A ribbon client balances over the instances of one service
+		for (Server server : servers) {
+			if (server instanceof DiscoveryEnabledServer) {
+				return ((DiscoveryEnabledServer) server).getInstanceInfo().getAppName();
+			}
+		}
+		return null;
+	}
+
+	private EligibleServers getEligibleServers(List<Server> allServers, Long fingerprint, int outcome, int outcomes,
+			RouteMatcher matcher) {
+		long version = serverListVersion.get();
+		int size = allServers.size();
+		// A refresh that produces an 'equal' list does not notify listeners but does create new
+		// server objects (possibly with new metadata), so also check identity of the first one
+		Server head = size == 0 ? null : allServers.get(0);
+		AtomicReferenceArray<EligibleServers> byOutcome = eligibleServers.get(fingerprint);
+		if (byOutcome != null && byOutcome.length() == outcomes) {
+			EligibleServers cached = byOutcome.get(outcome);
+			if (cached != null && cached.version == version && cached.sourceSize == size && cached.sourceHead == head) {
+				return cached;
+			}
+		} else {
+			byOutcome = new AtomicReferenceArray<>(outcomes);
+			if (eligibleServers.size() >= MAX_CACHED_SERVER_LISTS) {
+				eligibleServers.clear();
+			}
+			eligibleServers.put(fingerprint, byOutcome);
+		}
+		DeveloperRoutingMetrics metrics = baggageAwarePredicate.getMetrics();
+		long start = metrics.isTimingEnabled() ? System.nanoTime() : 0;
+		List<Server> servers = new ArrayList<>();
+		InstanceMetadataIndex.Query query = (metadataIndex != null && matcher != null) ? metadataIndex.query(matcher) : null;
+		for (Server server : allServers) {
+			if (server instanceof DiscoveryEnabledServer) {
+				DiscoveryEnabledServer discoveryEnabledServer = (DiscoveryEnabledServer) server;
+				int indexed = query == null ? InstanceMetadataIndex.UNKNOWN : query.test(discoveryEnabledServer);
+				if (indexed == InstanceMetadataIndex.ACCEPT) {
+					metrics.serverAccepted(discoveryEnabledServer.getInstanceInfo().getAppName());
+					servers.add(server);
+				} else if (indexed == InstanceMetadataIndex.REJECT) {
+					metrics.serverRejected(discoveryEnabledServer.getInstanceInfo().getAppName());
+				} else if (baggageAwarePredicate.apply(discoveryEnabledServer, matcher)) {
+					servers.add(server);
+				}
+			}
+		}
+		int[] limits = null;
+		for (int i = 0; i < servers.size(); i++) {
+			int limit = BaggageAwarePredicate
+					.maxConcurrentRequests(((DiscoveryEnabledServer) servers.get(i)).getInstanceInfo().getMetadata());
+			if (limit > 0) {
+				if (limits == null) {
+					limits = new int[servers.size()];
+				}
+				limits[i] = limit;
+			}
+		}
+		servers = Collections.unmodifiableList(servers);
+		if (metrics.isTimingEnabled()) {
+			metrics.rebuilt(System.nanoTime() - start);
+		}
+		EligibleServers eligible = new EligibleServers(version, size, head, servers, limits);
+		byOutcome.set(outcome, eligible);
+		return eligible;
+	}
+
+	/**
+	 * @return the index of the chosen server, or {@link #NONE_AVAILABLE} or {@link #ALL_SATURATED}
+	 * if none could be chosen
+	 */
+	private int chooseServer(EligibleServers eligible, Object key, LoadBalancerStats stats) {
+		int count = eligible.servers.size();
+		if (count == 0) {
+			return NONE_AVAILABLE;
+		}
+		if (selectionMode == SelectionMode.POWER_OF_TWO_CHOICES && stats != null && count > 1) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int first = random.nextInt(count);
+			int second = random.nextInt(count - 1);
+			if (second >= first) {
+				second++;
+			}
+			boolean firstUsable = usable(eligible, first, key, stats) == USABLE;
+			boolean secondUsable = usable(eligible, second, key, stats) == USABLE;
+			if (firstUsable && secondUsable) {
+				ServerLatencyTracker tracker = this.latencyTracker;
+				Server s1 = eligible.servers.get(first);
+				Server s2 = eligible.servers.get(second);
+				return tracker.cost(s1, stats.getSingleServerStat(s1)) <= tracker.cost(s2, stats.getSingleServerStat(s2))
+						? first : second;
+			}
+			if (firstUsable || secondUsable) {
+				return firstUsable ? first : second;
+			}
+			// Neither draw can be used, look through the rest in turn
+		}
+		return chooseRoundRobin(eligible, key, stats);
+	}
+
+	private int chooseRoundRobin(EligibleServers eligible, Object key, LoadBalancerStats stats) {
+		int count = eligible.servers.size();
+		int start = incrementAndGetModulo(count);
+		boolean saturated = false;
+		for (int i = 0; i < count; i++) {
+			int index = (start + i) % count;
+			int usable = usable(eligible, index, key, stats);
+			if (usable == USABLE) {
+				return index;
+			}
+			saturated |= usable == SATURATED;
+		}
+		return saturated ? ALL_SATURATED : NONE_AVAILABLE;
+	}
+
+	private int usable(EligibleServers eligible, int index, Object key, LoadBalancerStats stats) {
+		Server server = eligible.servers.get(index);
+		if (!availabilityPredicate.apply(new PredicateKey(key, server))) {
+			return UNAVAILABLE;
+		}
+		if (eligible.limits != null && eligible.limits[index] > 0 && stats != null) {
+			ServerStats serverStats = stats.getSingleServerStat(server);
+			if (serverStats.getActiveRequestsCount() >= eligible.limits[index]) {
+				baggageAwarePredicate.getMetrics()
+						.serverSaturated(((DiscoveryEnabledServer) server).getInstanceInfo().getAppName());
+				return SATURATED;
+			}
+		}
+		return USABLE;
+	}
+
+	private int incrementAndGetModulo(int modulo) {
+		for (;;) {
+			int current = nextIndex.get();
+			int next = (current + 1) % modulo;
+			if (nextIndex.compareAndSet(current, next) && current < modulo) {
+				return current;
+			}
+		}
+	}
+
 }
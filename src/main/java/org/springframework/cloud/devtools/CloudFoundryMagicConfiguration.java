@@ -16,9 +16,14 @@
 package org.springframework.cloud.devtools;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.devtools.sshproxy.CloudFoundrySshCredentials;
+import org.springframework.cloud.devtools.sshproxy.ProcessTunnelTransport;
+import org.springframework.cloud.devtools.sshproxy.SshTunnelTransport;
 import org.springframework.cloud.devtools.sshproxy.TunnelConnectionManager;
+import org.springframework.cloud.devtools.sshproxy.TunnelHealthIndicator;
+import org.springframework.cloud.devtools.sshproxy.TunnelPublicMetrics;
+import org.springframework.cloud.devtools.sshproxy.TunnelTransport;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -26,18 +31,42 @@ import org.springframework.context.annotation.Configuration;
 @EnableConfigurationProperties(CloudFoundryTunnelingConfiguration.class)
 public class CloudFoundryMagicConfiguration {
 
-	@Autowired
-    EmbeddedWebApplicationContext server;
-	
 	@Autowired
 	CloudFoundryTunnelingConfiguration config;
 	
 	@Bean
 	TunnelConnectionManager getTunnelConnectionManager() {
-		// Pass servlet container rather than port as port may not be known/set yet
-		TunnelConnectionManager tcm = new TunnelConnectionManager(config.getDeployedAppName(), server.getEmbeddedServletContainer());
+		// The manager listens for the servlet container starting to learn the local port
+		TunnelConnectionManager tcm = new TunnelConnectionManager(config.getDeployedAppName(), tunnelTransport(),
+				config.getRemotePort(), config.getMappings());
+		tcm.setProbeInterval(config.getProbeInterval());
+		tcm.setProbeTimeout(config.getProbeTimeout());
+		tcm.setReconnectBackoff(config.getReconnectInitialBackoff(), config.getReconnectMaxBackoff());
+		tcm.setRelayEnabled(config.isRelay());
 		tcm.start();
 		return tcm;
 	}
+
+	@Bean
+	TunnelHealthIndicator tunnelHealthIndicator(TunnelConnectionManager tunnelConnectionManager) {
+		return new TunnelHealthIndicator(tunnelConnectionManager);
+	}
+
+	@Bean
+	TunnelPublicMetrics tunnelPublicMetrics(TunnelConnectionManager tunnelConnectionManager) {
+		return new TunnelPublicMetrics(tunnelConnectionManager);
+	}
+
+	private TunnelTransport tunnelTransport() {
+		if (config.getTransport() == CloudFoundryTunnelingConfiguration.Transport.PROCESS) {
+			return new ProcessTunnelTransport(config.getLocalForwardPort(), config.getProxyPort(), config.getProxyPassword());
+		}
+		CloudFoundrySshCredentials credentials = new CloudFoundrySshCredentials();
+		credentials.setTimeout((int) config.getConnectTimeout());
+		SshTunnelTransport transport = new SshTunnelTransport(credentials::forApp, config.getProxyPort(),
+				config.getProxyPassword(), config.getConnectTimeout());
+		transport.setChannelWindowSize(config.getChannelWindowSize());
+		return transport;
+	}
 	
 }
@@ -15,18 +15,88 @@
  */
 package org.springframework.cloud.devtools;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 /**
- * Encapsulates the name of the app on CF that we want to try and tunnel to.
+ * Encapsulates the name of the app on CF that we want to try and tunnel to, and how to reach
+ * the sshd running inside it.
  * 
  * @author Andy Clement
  */
 @ConfigurationProperties("spring.cloud.devtools.tunnel")
 public class CloudFoundryTunnelingConfiguration {
 
+	/**
+	 * How tunnels are carried to CF.
+	 */
+	public enum Transport {
+		/**
+		 * In-process ssh client, using the login state of the cf CLI.
+		 */
+		EMBEDDED,
+		/**
+		 * Run the cf, ssh and sshpass command line tools.
+		 */
+		PROCESS
+	}
+
 	private String deployedAppName;
 
+	private Transport transport = Transport.EMBEDDED;
+
+	/**
+	 * Port the sshd inside the deployed proxy app listens on.
+	 */
+	private int proxyPort = 9099;
+
+	private String proxyPassword = "foobar";
+
+	/**
+	 * Port on the proxy container that is forwarded back to this app.
+	 */
+	private int remotePort = 8080;
+
+	/**
+	 * Local port forwarded to the proxy sshd, only used by the process transport.
+	 */
+	private int localForwardPort = 2225;
+
+	private long connectTimeout = 30000;
+
+	/**
+	 * Further local ports to expose on the proxy container, keyed by remote port. They are all
+	 * carried over the same ssh session as the servlet container's tunnel.
+	 */
+	private Map<Integer, Integer> mappings = new LinkedHashMap<>();
+
+	/**
+	 * Flow control window per forwarded stream in bytes, 0 for the ssh client default.
+	 */
+	private long channelWindowSize;
+
+	/**
+	 * Milliseconds between checks that the tunnel is still working.
+	 */
+	private long probeInterval = 5000;
+
+	private int probeTimeout = 2000;
+
+	/**
+	 * Milliseconds to wait before retrying a failed reconnect, doubling on each failure up to
+	 * the maximum.
+	 */
+	private long reconnectInitialBackoff = 250;
+
+	private long reconnectMaxBackoff = 30000;
+
+	/**
+	 * Whether tunneled traffic passes through an in-process relay that measures it.
+	 */
+	private boolean relay = true;
+
 	public String getDeployedAppName() {
 		return deployedAppName;
 	}
@@ -34,4 +104,108 @@ public class CloudFoundryTunnelingConfiguration {
 	public void setDeployedAppName(String deployedAppName) {
 		this.deployedAppName = deployedAppName;
 	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	public int getProxyPort() {
+		return proxyPort;
+	}
+
+	public void setProxyPort(int proxyPort) {
+		this.proxyPort = proxyPort;
+	}
+
+	public String getProxyPassword() {
+		return proxyPassword;
+	}
+
+	public void setProxyPassword(String proxyPassword) {
+		this.proxyPassword = proxyPassword;
+	}
+
+	public int getRemotePort() {
+		return remotePort;
+	}
+
+	public void setRemotePort(int remotePort) {
+		this.remotePort = remotePort;
+	}
+
+	public int getLocalForwardPort() {
+		return localForwardPort;
+	}
+
+	public void setLocalForwardPort(int localForwardPort) {
+		this.localForwardPort = localForwardPort;
+	}
+
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(long connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public Map<Integer, Integer> getMappings() {
+		return mappings;
+	}
+
+	public void setMappings(Map<Integer, Integer> mappings) {
+		this.mappings = mappings;
+	}
+
+	public long getChannelWindowSize() {
+		return channelWindowSize;
+	}
+
+	public void setChannelWindowSize(long channelWindowSize) {
+		this.channelWindowSize = channelWindowSize;
+	}
+
+	public long getProbeInterval() {
+		return probeInterval;
+	}
+
+	public void setProbeInterval(long probeInterval) {
+		this.probeInterval = probeInterval;
+	}
+
+	public int getProbeTimeout() {
+		return probeTimeout;
+	}
+
+	public void setProbeTimeout(int probeTimeout) {
+		this.probeTimeout = probeTimeout;
+	}
+
+	public long getReconnectInitialBackoff() {
+		return reconnectInitialBackoff;
+	}
+
+	public void setReconnectInitialBackoff(long reconnectInitialBackoff) {
+		this.reconnectInitialBackoff = reconnectInitialBackoff;
+	}
+
+	public long getReconnectMaxBackoff() {
+		return reconnectMaxBackoff;
+	}
+
+	public void setReconnectMaxBackoff(long reconnectMaxBackoff) {
+		this.reconnectMaxBackoff = reconnectMaxBackoff;
+	}
+
+	public boolean isRelay() {
+		return relay;
+	}
+
+	public void setRelay(boolean relay) {
+		this.relay = relay;
+	}
 }
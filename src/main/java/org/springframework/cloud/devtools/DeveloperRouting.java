@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.function.Supplier;
+
+/**
+ * Applies developer routing to work that does not come from an inbound request, such as
+ * scheduled jobs, message listeners and batch workers. The auto-configuration provides one for
+ * the application context:
+ * <pre>
+ * DeveloperRoutingDescriptor route = new DeveloperRoutingDescriptor("andy");
+ * route.addRouteConstraint("orders", "env=dev");
+ * Order order = developerRouting.with(route, () -&gt; restTemplate.getForObject(url, Order.class));
+ * </pre>
+ * Calls made through ribbon during the work are routed by the descriptor and, with the
+ * {@link DeveloperRoutingRequestInterceptor} or {@link DeveloperRoutingFeignInterceptor} in
+ * place, carry it to the services called. The baggage is encoded in the configured
+ * {@link DeveloperRoutingProperties#getBaggageFormat() baggage format} by the context's
+ * {@link DeveloperRoutingDescriptorCache}, exactly as the filter encodes inbound routing, so
+ * reusing a descriptor costs no serialization and the baggage resolves without parsing.
+ * <p>
+ * Work throwing checked exceptions can be run with the {@link #context(DeveloperRoutingDescriptor)
+ * context}, for example {@code developerRouting.context(route).wrap(callable).call()}.
+ *
+ * @author Andy Clement
+ * @see DeveloperRoutingContext
+ */
+public class DeveloperRouting {
+
+	private final DeveloperRoutingDescriptorCache descriptorCache;
+
+	public DeveloperRouting(DeveloperRoutingDescriptorCache descriptorCache) {
+		if (descriptorCache == null) {
+			throw new IllegalArgumentException("Descriptor cache must not be null");
+		}
+		this.descriptorCache = descriptorCache;
+	}
+
+	/**
+	 * Run some work with a descriptor's routing in effect on the current thread, restoring the
+	 * routing the thread had afterwards, whether the work returns or throws.
+	 * @return what the work returned
+	 */
+	public <V> V with(DeveloperRoutingDescriptor drd, Supplier<V> task) {
+		try (DeveloperRoutingContext.Scope scope = context(drd).open()) {
+			return task.get();
+		}
+	}
+
+	/**
+	 * Run some work with a descriptor's routing in effect on the current thread, restoring the
+	 * routing the thread had afterwards, whether the work returns or throws.
+	 */
+	public void with(DeveloperRoutingDescriptor drd, Runnable task) {
+		try (DeveloperRoutingContext.Scope scope = context(drd).open()) {
+			task.run();
+		}
+	}
+
+	/**
+	 * @return the routing context for a descriptor, for example to {@link DeveloperRoutingContext#wrap(Runnable)
+	 * wrap} tasks that run elsewhere
+	 */
+	public DeveloperRoutingContext context(DeveloperRoutingDescriptor drd) {
+		return DeveloperRoutingContext.of(drd == null ? null : descriptorCache.toBaggage(drd));
+	}
+
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.filter.GenericFilterBean;
+
+/**
+ * Protects an instance that needs explicit routing, typically a developer machine reached
+ * through a tunnel, from more traffic than it can take. A request is turned away with a 503 (and
+ * <tt>Retry-After</tt>) rather than queued when the instance is already handling its maximum
+ * number of concurrent requests or when it is over its rate, which is enforced with a token
+ * bucket allowing short bursts.
+ * <p>
+ * The limits are published in the instance metadata ({@link #getMetadata()}) so callers can
+ * avoid the instance when they already have as many requests in flight to it as it accepts, see
+ * {@link BaggageAwareRule}.
+ * <p>
+ * Requests to the {@link #setExcludedPaths(Collection) excluded paths}, the actuator endpoints,
+ * are never limited: health checks must keep answering exactly when the instance is busiest. A
+ * request handled asynchronously holds its place until the async processing completes.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingAdmissionFilter extends GenericFilterBean {
+
+	private static Logger log = LoggerFactory.getLogger(DeveloperRoutingAdmissionFilter.class);
+
+	/**
+	 * Instance metadata key for the number of concurrent requests the instance accepts.
+	 */
+	public static final String MAX_CONCURRENT_REQUESTS_METADATA = "devtools.maxConcurrentRequests";
+
+	/**
+	 * Instance metadata key for the sustained request rate the instance accepts.
+	 */
+	public static final String REQUESTS_PER_SECOND_METADATA = "devtools.requestsPerSecond";
+
+	private final int maxConcurrentRequests;
+
+	private final double requestsPerSecond;
+
+	// Null if concurrency is not limited
+	private final Semaphore permits;
+
+	// Token bucket as a generic cell rate algorithm: the time the next request is due if requests
+	// arrive exactly at the rate, of which a burst may run ahead by the tolerance
+	private final long emissionIntervalNanos;
+
+	private final long burstToleranceNanos;
+
+	private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+	private final AtomicLong admitted = new AtomicLong();
+
+	private final AtomicLong rejectedConcurrency = new AtomicLong();
+
+	private final AtomicLong rejectedRate = new AtomicLong();
+
+	private volatile String[] excludedPaths = new String[0];
+
+	/**
+	 * @param maxConcurrentRequests requests handled at once, 0 for no limit
+	 * @param requestsPerSecond sustained request rate, 0 for no limit
+	 * @param burst requests that may arrive together when the rate is limited
+	 */
+	public DeveloperRoutingAdmissionFilter(int maxConcurrentRequests, double requestsPerSecond, int burst) {
+		if (maxConcurrentRequests < 0 || requestsPerSecond < 0 || burst < 1) {
+			throw new IllegalArgumentException("Invalid admission limits: maxConcurrentRequests=" + maxConcurrentRequests
+					+ " requestsPerSecond=" + requestsPerSecond + " burst=" + burst);
+		}
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.requestsPerSecond = requestsPerSecond;
+		this.permits = maxConcurrentRequests == 0 ? null : new Semaphore(maxConcurrentRequests);
+		this.emissionIntervalNanos = requestsPerSecond == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+	}
+
+	/**
+	 * @param excludedPaths paths within the application that are not limited, each also covering
+	 * the paths below it
+	 */
+	public void setExcludedPaths(Collection<String> excludedPaths) {
+		this.excludedPaths = excludedPaths.toArray(new String[excludedPaths.size()]);
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		if (isExcluded(request)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		if (permits != null && !permits.tryAcquire()) {
+			rejectedConcurrency.incrementAndGet();
+			reject(response, "Too many concurrent requests");
+			return;
+		}
+		boolean releaseLater = false;
+		try {
+			if (!tryAcquireToken()) {
+				rejectedRate.incrementAndGet();
+				reject(response, "Request rate exceeded");
+				return;
+			}
+			admitted.incrementAndGet();
+			chain.doFilter(request, response);
+			if (permits != null && request.isAsyncStarted()) {
+				request.getAsyncContext().addListener(new PermitRelease());
+				releaseLater = true;
+			}
+		} finally {
+			if (permits != null && !releaseLater) {
+				permits.release();
+			}
+		}
+	}
+
+	private boolean isExcluded(ServletRequest request) {
+		String[] excluded = excludedPaths;
+		if (excluded.length == 0 || !(request instanceof HttpServletRequest)) {
+			return false;
+		}
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		String path = httpRequest.getRequestURI().substring(httpRequest.getContextPath().length());
+		for (String prefix : excluded) {
+			if (path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/'
+					|| path.charAt(prefix.length()) == '.')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gives back the permit of an async request once it has completed, however it completes.
+	 */
+	private class PermitRelease implements AsyncListener {
+
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			if (released.compareAndSet(false, true)) {
+				permits.release();
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// Listeners are dropped when async processing is started again
+			event.getAsyncContext().addListener(this);
+		}
+	}
+
+	private boolean tryAcquireToken() {
+		if (emissionIntervalNanos == 0) {
+			return true;
+		}
+		long now = System.nanoTime();
+		for (;;) {
+			long due = theoreticalArrival.get();
+			long start = due - now < 0 ? now : due;
+			if (start - now > burstToleranceNanos) {
+				return false;
+			}
+			if (theoreticalArrival.compareAndSet(due, start + emissionIntervalNanos)) {
+				return true;
+			}
+		}
+	}
+
+	private void reject(ServletResponse response, String reason) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug("Rejecting request: {}", reason);
+		}
+		if (response instanceof HttpServletResponse) {
+			HttpServletResponse httpResponse = (HttpServletResponse) response;
+			httpResponse.setHeader("Retry-After", "1");
+			httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, reason);
+		}
+	}
+
+	/**
+	 * @return the instance metadata describing the limits
+	 */
+	public Map<String, String> getMetadata() {
+		Map<String, String> metadata = new LinkedHashMap<>();
+		if (maxConcurrentRequests > 0) {
+			metadata.put(MAX_CONCURRENT_REQUESTS_METADATA, Integer.toString(maxConcurrentRequests));
+		}
+		if (requestsPerSecond > 0) {
+			metadata.put(REQUESTS_PER_SECOND_METADATA, Double.toString(requestsPerSecond));
+		}
+		return metadata;
+	}
+
+	public int getInFlight() {
+		return permits == null ? 0 : maxConcurrentRequests - permits.availablePermits();
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getRejectedConcurrency() {
+		return rejectedConcurrency.get();
+	}
+
+	public long getRejectedRate() {
+		return rejectedRate.get();
+	}
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.io.IOException;
+
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestExecution;
+import org.springframework.http.client.AsyncClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Applies developer routing to calls made with a load balanced {@code AsyncRestTemplate}, which
+ * are frequently issued from threads other than the one that received the request (callbacks,
+ * executors, {@code DeferredResult} completion) where the ribbon filter context set up by the
+ * {@link DeveloperRoutingFilter} does not exist.
+ * <p>
+ * Rather than relying on that thread local, the routing comes with the call: from a
+ * <tt>baggage-devtools</tt> header set on the request, otherwise from the sleuth span (which
+ * sleuth carries across async boundaries). It is placed in the ribbon filter context only for
+ * the duration of the server choice, which the load balancer interceptor after this one makes
+ * before the call goes asynchronous.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingAsyncRequestInterceptor implements AsyncClientHttpRequestInterceptor {
+
+	static final String BAGGAGE_HEADER = "baggage-" + DeveloperRoutingFilter.BAGGAGE_KEY;
+
+	private final Tracer tracer;
+
+	public DeveloperRoutingAsyncRequestInterceptor(Tracer tracer) {
+		this.tracer = tracer;
+	}
+
+	@Override
+	public ListenableFuture<ClientHttpResponse> intercept(HttpRequest request, byte[] body,
+			AsyncClientHttpRequestExecution execution) throws IOException {
+		String baggage = request.getHeaders().getFirst(BAGGAGE_HEADER);
+		if (baggage == null) {
+			Span span = tracer.getCurrentSpan();
+			if (span != null) {
+				baggage = span.getBaggageItem(DeveloperRoutingFilter.BAGGAGE_KEY);
+			}
+		}
+		if (baggage == null) {
+			return execution.executeAsync(request, body);
+		}
+		try (DeveloperRoutingContext.Scope scope = DeveloperRoutingContext.of(baggage).open()) {
+			return execution.executeAsync(request, body);
+		}
+	}
+
+}
@@ -15,11 +15,42 @@
  */
 package org.springframework.cloud.devtools;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.DispatcherType;
+
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.autoconfigure.ManagementServerProperties;
+import org.springframework.boot.actuate.endpoint.mvc.MvcEndpoint;
+import org.springframework.boot.actuate.endpoint.mvc.MvcEndpoints;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.discovery.composite.CompositeDiscoveryClient;
+import org.springframework.cloud.client.loadbalancer.LoadBalanced;
 import org.springframework.cloud.sleuth.Tracer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.http.client.AsyncClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import com.netflix.appinfo.ApplicationInfoManager;
 
 /**
  * If routing information specified, creates the filter to manage the baggage we'll add via
@@ -28,6 +59,7 @@ import org.springframework.context.annotation.Configuration;
  * @author Andy Clement
  */
 @Configuration
+@EnableConfigurationProperties(DeveloperRoutingProperties.class)
 public class DeveloperRoutingConfiguration {
 	
 	@Autowired(required=false)
@@ -37,12 +69,262 @@ public class DeveloperRoutingConfiguration {
 	public FilterRegistrationBean developerRoutingFilter(DeveloperRoutingFilter developerRoutingFilter) {
 		FilterRegistrationBean frb = new FilterRegistrationBean();
 		frb.setFilter(developerRoutingFilter);
+		// Async dispatches run on another thread which needs its own ribbon filter context
+		frb.setDispatcherTypes(DispatcherType.REQUEST, DispatcherType.ASYNC);
 		return frb;
 	}
 	
 	@Bean
-	public DeveloperRoutingFilter filterCreator(Tracer tracer) {
-		return new DeveloperRoutingFilter(tracer, developerRoutingDescriptor);
+	@ConditionalOnMissingBean
+	public DeveloperRoutingDescriptorRegistry developerRoutingDescriptorRegistry() {
+		return new DeveloperRoutingDescriptorRegistry();
+	}
+
+	@Bean
+	@ConditionalOnProperty("spring.cloud.devtools.routing.registry-file")
+	public DeveloperRoutingDescriptorFileWatcher developerRoutingDescriptorFileWatcher(
+			DeveloperRoutingDescriptorRegistry registry, DeveloperRoutingProperties properties) {
+		return new DeveloperRoutingDescriptorFileWatcher(registry, new File(properties.getRegistryFile()),
+				properties.getRegistryRefreshInterval());
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	public DeveloperRoutingRegistryMvcEndpoint developerRoutingRegistryMvcEndpoint(
+			DeveloperRoutingDescriptorRegistry registry) {
+		return new DeveloperRoutingRegistryMvcEndpoint(registry);
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	public DeveloperRoutingDescriptorCache developerRoutingDescriptorCache(DeveloperRoutingProperties properties,
+			DeveloperRoutingDescriptorRegistry registry) {
+		return new DeveloperRoutingDescriptorCache(properties.getDescriptorCacheSize(),
+				new DeveloperRoutingDescriptorCodec(properties.getBaggageFormat()), registry);
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	public DeveloperRouting developerRouting(DeveloperRoutingDescriptorCache descriptorCache) {
+		return new DeveloperRouting(descriptorCache);
+	}
+	
+	@Bean
+	@ConditionalOnMissingBean
+	public DeveloperRoutingMetrics developerRoutingMetrics(ObjectProvider<CounterService> counterService,
+			ObjectProvider<GaugeService> gaugeService) {
+		return new DeveloperRoutingMetrics(counterService.getIfAvailable(), gaugeService.getIfAvailable());
+	}
+
+	@Bean
+	public DeveloperRoutingPublicMetrics developerRoutingPublicMetrics(DeveloperRoutingDescriptorCache descriptorCache,
+			ObjectProvider<InstanceMetadataIndex> metadataIndex,
+			ObjectProvider<DeveloperRoutingAdmissionFilter> admissionFilter) {
+		return new DeveloperRoutingPublicMetrics(descriptorCache, metadataIndex.getIfAvailable(),
+				admissionFilter.getIfAvailable());
+	}
+	
+	@Bean
+	public DeveloperRoutingFilter filterCreator(Tracer tracer, DeveloperRoutingDescriptorCache descriptorCache,
+			DeveloperRoutingProperties properties) {
+		return new DeveloperRoutingFilter(tracer, developerRoutingDescriptor, descriptorCache,
+				properties.getDebugSampleRate());
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	public DeveloperRoutingInstanceFilter developerRoutingInstanceFilter(DeveloperRoutingDescriptorCache descriptorCache,
+			DeveloperRoutingMetrics metrics, DeveloperRoutingProperties properties) {
+		return new DeveloperRoutingInstanceFilter(descriptorCache, metrics, properties.getPreferredZone());
+	}
+
+	/**
+	 * Wraps the composite discovery client, which is the one injected wherever a
+	 * {@code DiscoveryClient} is asked for. Its delegates are beans too but are left alone,
+	 * otherwise instances would be filtered (and counted) twice. Without a composite every
+	 * discovery client is wrapped.
+	 */
+	@Bean
+	@ConditionalOnProperty("spring.cloud.devtools.routing.filter-discovery-client")
+	public static BeanPostProcessor developerRoutingDiscoveryClientPostProcessor(
+			final ObjectProvider<DeveloperRoutingInstanceFilter> instanceFilter, final ListableBeanFactory beanFactory) {
+		return new BeanPostProcessor() {
+
+			private Boolean hasComposite;
+
+			@Override
+			public Object postProcessBeforeInitialization(Object bean, String beanName) {
+				return bean;
+			}
+
+			@Override
+			public Object postProcessAfterInitialization(Object bean, String beanName) {
+				if (!(bean instanceof DiscoveryClient) || bean instanceof DeveloperRoutingDiscoveryClient) {
+					return bean;
+				}
+				if (bean instanceof CompositeDiscoveryClient || !hasComposite()) {
+					return new DeveloperRoutingDiscoveryClient((DiscoveryClient) bean, instanceFilter.getObject());
+				}
+				return bean;
+			}
+
+			private boolean hasComposite() {
+				if (hasComposite == null) {
+					hasComposite = beanFactory.getBeanNamesForType(CompositeDiscoveryClient.class, true, false).length > 0;
+				}
+				return hasComposite;
+			}
+		};
+	}
+
+	/**
+	 * Limits the requests this instance accepts and publishes the limits in its eureka metadata.
+	 */
+	@Configuration
+	@ConditionalOnProperty("spring.cloud.devtools.routing.admission.enabled")
+	static class AdmissionControlConfiguration {
+
+		@Bean
+		public DeveloperRoutingAdmissionFilter developerRoutingAdmissionFilter(DeveloperRoutingProperties properties) {
+			DeveloperRoutingProperties.Admission admission = properties.getAdmission();
+			return new DeveloperRoutingAdmissionFilter(admission.getMaxConcurrentRequests(),
+					admission.getRequestsPerSecond(), admission.getBurst());
+		}
+
+		/**
+		 * Leaves the actuator endpoints unlimited, all of them when they have their own context
+		 * path otherwise each endpoint's path.
+		 */
+		@Bean
+		public SmartInitializingSingleton developerRoutingAdmissionExclusions(
+				final ObjectProvider<ManagementServerProperties> managementProperties,
+				final ObjectProvider<MvcEndpoints> mvcEndpoints, final DeveloperRoutingAdmissionFilter admissionFilter) {
+			return new SmartInitializingSingleton() {
+				@Override
+				public void afterSingletonsInstantiated() {
+					List<String> paths = new ArrayList<>();
+					ManagementServerProperties management = managementProperties.getIfAvailable();
+					String contextPath = management == null ? "" : management.getContextPath();
+					if (StringUtils.hasText(contextPath) && !"/".equals(contextPath)) {
+						paths.add(contextPath);
+					} else if (mvcEndpoints.getIfAvailable() != null) {
+						for (MvcEndpoint endpoint : mvcEndpoints.getIfAvailable().getEndpoints()) {
+							if (StringUtils.hasText(endpoint.getPath())) {
+								paths.add(endpoint.getPath());
+							}
+						}
+					}
+					admissionFilter.setExcludedPaths(paths);
+				}
+			};
+		}
+
+		@Bean
+		public FilterRegistrationBean developerRoutingAdmissionFilterRegistration(
+				DeveloperRoutingAdmissionFilter admissionFilter) {
+			FilterRegistrationBean frb = new FilterRegistrationBean();
+			frb.setFilter(admissionFilter);
+			// Turn requests away before any other work is done for them
+			frb.setOrder(Ordered.HIGHEST_PRECEDENCE);
+			return frb;
+		}
+
+		@Bean
+		public SmartInitializingSingleton developerRoutingAdmissionMetadataPublisher(
+				final ObjectProvider<ApplicationInfoManager> applicationInfoManager,
+				final DeveloperRoutingAdmissionFilter admissionFilter) {
+			return new SmartInitializingSingleton() {
+				@Override
+				public void afterSingletonsInstantiated() {
+					ApplicationInfoManager manager = applicationInfoManager.getIfAvailable();
+					if (manager != null) {
+						manager.registerAppMetadata(admissionFilter.getMetadata());
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Puts the {@link DeveloperRoutingAsyncRequestInterceptor} in front of the load balancer
+	 * interceptor on load balanced {@code AsyncRestTemplate}s.
+	 */
+	@Configuration
+	@ConditionalOnClass(AsyncRestTemplate.class)
+	static class AsyncRestTemplateRoutingConfiguration {
+
+		@LoadBalanced
+		@Autowired(required = false)
+		List<AsyncRestTemplate> asyncRestTemplates = Collections.emptyList();
+
+		@Bean
+		public DeveloperRoutingAsyncRequestInterceptor developerRoutingAsyncRequestInterceptor(Tracer tracer) {
+			return new DeveloperRoutingAsyncRequestInterceptor(tracer);
+		}
+
+		@Bean
+		public SmartInitializingSingleton developerRoutingAsyncRestTemplateInitializer(
+				final DeveloperRoutingAsyncRequestInterceptor interceptor) {
+			return new SmartInitializingSingleton() {
+				@Override
+				public void afterSingletonsInstantiated() {
+					for (AsyncRestTemplate asyncRestTemplate : asyncRestTemplates) {
+						List<AsyncClientHttpRequestInterceptor> interceptors = new ArrayList<>(
+								asyncRestTemplate.getInterceptors());
+						interceptors.add(0, interceptor);
+						asyncRestTemplate.setInterceptors(interceptors);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Puts the {@link DeveloperRoutingRequestInterceptor} in front of the load balancer
+	 * interceptor on load balanced {@code RestTemplate}s.
+	 */
+	@Configuration
+	@ConditionalOnClass(RestTemplate.class)
+	static class RestTemplateRoutingConfiguration {
+
+		@LoadBalanced
+		@Autowired(required = false)
+		List<RestTemplate> restTemplates = Collections.emptyList();
+
+		@Bean
+		@ConditionalOnMissingBean
+		public DeveloperRoutingRequestInterceptor developerRoutingRequestInterceptor() {
+			return new DeveloperRoutingRequestInterceptor();
+		}
+
+		@Bean
+		public SmartInitializingSingleton developerRoutingRestTemplateInitializer(
+				final DeveloperRoutingRequestInterceptor interceptor) {
+			return new SmartInitializingSingleton() {
+				@Override
+				public void afterSingletonsInstantiated() {
+					for (RestTemplate restTemplate : restTemplates) {
+						List<ClientHttpRequestInterceptor> interceptors = new ArrayList<>(restTemplate.getInterceptors());
+						interceptors.add(0, interceptor);
+						restTemplate.setInterceptors(interceptors);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Carries developer routing on Feign calls, Feign picks up request interceptor beans itself.
+	 */
+	@Configuration
+	@ConditionalOnClass(name = "feign.RequestInterceptor")
+	static class FeignRoutingConfiguration {
+
+		@Bean
+		@ConditionalOnMissingBean
+		public DeveloperRoutingFeignInterceptor developerRoutingFeignInterceptor() {
+			return new DeveloperRoutingFeignInterceptor();
+		}
 	}
 
 }
@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.jmnarloch.spring.cloud.ribbon.api.RibbonFilterContext;
+import io.jmnarloch.spring.cloud.ribbon.support.RibbonFilterContextHolder;
+
+/**
+ * The developer routing in effect for a unit of work, which for ribbon means the "devtools"
+ * attribute of the thread local ribbon filter context. A context captured on one thread can be
+ * applied to work running on another, for exactly the duration of that work: the thread's
+ * previous state is restored afterwards so nothing leaks into whatever the thread runs next.
+ * Capturing 'no routing' is meaningful too, applying it clears anything stale on the thread.
+ * <p>
+ * {@link #executor(Executor)}, {@link DeveloperRoutingExecutorService} and
+ * {@link DeveloperRoutingTaskDecorator} apply this to tasks handed to executors, including those
+ * passed to the {@code *Async} methods of {@code CompletableFuture}.
+ *
+ * @author Andy Clement
+ */
+public final class DeveloperRoutingContext {
+
+	private static Logger log = LoggerFactory.getLogger(DeveloperRoutingContext.class);
+
+	private static final ThreadLocal<RibbonFilterContext> contextHolder = findContextHolder();
+
+	private static final DeveloperRoutingContext NONE = new DeveloperRoutingContext(null);
+
+	private final String baggage;
+
+	private DeveloperRoutingContext(String baggage) {
+		this.baggage = baggage;
+	}
+
+	/**
+	 * @return the routing in effect on the current thread
+	 */
+	public static DeveloperRoutingContext capture() {
+		return of(RibbonFilterContextHolder.getCurrentContext().get(DeveloperRoutingFilter.BAGGAGE_KEY));
+	}
+
+	/**
+	 * @param baggage routing as carried in the "devtools" baggage item, may be null
+	 */
+	public static DeveloperRoutingContext of(String baggage) {
+		return baggage == null ? NONE : new DeveloperRoutingContext(baggage);
+	}
+
+	public String getBaggage() {
+		return baggage;
+	}
+
+	/**
+	 * Apply this routing to the current thread until the returned scope is closed. The thread is
+	 * given a ribbon filter context of its own for the scope, a copy of the one it had with the
+	 * routing changed, and that one is put back on close. Threads inherit the ribbon filter
+	 * context object of the thread that created them, so changing it in place would also change
+	 * the routing of that thread and of every other thread it created.
+	 */
+	public Scope open() {
+		RibbonFilterContext previous = RibbonFilterContextHolder.getCurrentContext();
+		RibbonFilterContext context = install(previous);
+		if (baggage == null) {
+			context.remove(DeveloperRoutingFilter.BAGGAGE_KEY);
+		} else {
+			context.add(DeveloperRoutingFilter.BAGGAGE_KEY, baggage);
+		}
+		return new Scope(previous);
+	}
+
+	/**
+	 * Give the current thread a new ribbon filter context holding the attributes of the one
+	 * passed in.
+	 */
+	private static RibbonFilterContext install(RibbonFilterContext attributes) {
+		RibbonFilterContextHolder.clearCurrentContext();
+		RibbonFilterContext context = RibbonFilterContextHolder.getCurrentContext();
+		for (Map.Entry<String, String> attribute : attributes.getAttributes().entrySet()) {
+			context.add(attribute.getKey(), attribute.getValue());
+		}
+		return context;
+	}
+
+	/**
+	 * RibbonFilterContextHolder cannot be given a context object, only cleared, so find the
+	 * thread local behind it to put back the very object a scope replaced.
+	 */
+	@SuppressWarnings("unchecked")
+	private static ThreadLocal<RibbonFilterContext> findContextHolder() {
+		for (Field field : RibbonFilterContextHolder.class.getDeclaredFields()) {
+			if (Modifier.isStatic(field.getModifiers()) && ThreadLocal.class.isAssignableFrom(field.getType())) {
+				try {
+					field.setAccessible(true);
+					return (ThreadLocal<RibbonFilterContext>) field.get(null);
+				} catch (Exception e) {
+					log.debug("Cannot access the ribbon filter context holder, scopes restore a copy instead", e);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Restores the ribbon filter context a thread had before {@link DeveloperRoutingContext#open()}.
+	 */
+	public static final class Scope implements AutoCloseable {
+
+		private final RibbonFilterContext previous;
+
+		private Scope(RibbonFilterContext previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (contextHolder != null) {
+				contextHolder.set(previous);
+			} else {
+				install(previous);
+			}
+		}
+	}
+
+	public Runnable wrap(final Runnable task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try (Scope scope = open()) {
+					task.run();
+				}
+			}
+		};
+	}
+
+	public <T> Callable<T> wrap(final Callable<T> task) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				try (Scope scope = open()) {
+					return task.call();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return an executor that runs each task with the routing in effect when it was submitted
+	 */
+	public static Executor executor(final Executor delegate) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				delegate.execute(capture().wrap(command));
+			}
+		};
+	}
+
+	public String toString() {
+		return "DeveloperRoutingContext(" + baggage + ")";
+	}
+
+}
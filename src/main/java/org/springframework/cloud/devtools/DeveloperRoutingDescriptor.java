@@ -15,12 +15,26 @@
  */
 package org.springframework.cloud.devtools;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 /**
  * Encapsulate description of a route a call wants to make through a mesh of services. Not all
  * fields are used right now, just exploring the options...
+ * <p>
+ * Descriptors that route the same way can be written differently, {@link #canonical()}
+ * produces an immutable form with unreachable constraints dropped, service names lower cased,
+ * constraints for named services sorted by name and metadata sorted by key. Equivalent
+ * descriptors (with the same id) have equal canonical forms and so the same
+ * {@link #fingerprint()}, which is what caches key on.
  * 
  * @author Andy Clement
  */
@@ -28,20 +42,61 @@ public class DeveloperRoutingDescriptor {
 
 	private String id;
 	
+	// May have spare capacity at the end, see getRouteConstraints()
 	private RouteConstraint[] routeConstraints;
+
+	private int routeConstraintCount;
+
+	// Canonical descriptors cannot be changed
+	private final boolean canonical;
+
+	// Lazily compiled form of the route constraints, discarded when they change
+	private volatile RouteMatcher matcher;
+
+	// Lazily computed canonical form, discarded when anything changes
+	private volatile DeveloperRoutingDescriptor canonicalForm;
+
+	// Set at construction for canonical descriptors, boxed once as caches key on it
+	private final Long fingerprint;
+
+	// Compact baggage form, set at construction for canonical descriptors
+	private final String compact;
 	
 	static class RouteConstraint {
+
+		private final boolean frozen;
 		
-		public RouteConstraint() {}
+		public RouteConstraint() {
+			this.frozen = false;
+		}
 		
 		public RouteConstraint(String serviceName, Map<String,String> metadataConstraints) {
+			this.frozen = false;
 			this.setServiceName(serviceName);
 			this.setMetadataConstraints(metadataConstraints);
 		}
 
+		/**
+		 * Canonical, unmodifiable copy of a constraint.
+		 */
+		private RouteConstraint(RouteConstraint rc) {
+			this.serviceName = rc.serviceName == null ? null : rc.serviceName.toLowerCase(Locale.ENGLISH);
+			this.metadataConstraints = sorted(rc.metadataConstraints);
+			this.metadataPatterns = rc.metadataPatterns == null || rc.metadataPatterns.isEmpty() ? null
+					: sorted(rc.metadataPatterns);
+			this.weight = rc.weight;
+			this.frozen = true;
+		}
+
+		private static Map<String,String> sorted(Map<String,String> map) {
+			return map == null || map.isEmpty() ? Collections.<String,String>emptyMap()
+					: Collections.unmodifiableMap(new TreeMap<>(map));
+		}
+
 		/**
 		 * Which service names the metadata constraints apply to. If null contraints apply
-		 * to all.
+		 * to all. A name containing <tt>*</tt> or <tt>?</tt> is a case insensitive glob, for
+		 * example <tt>orders-*</tt>.
 		 */
 		private String serviceName;
 
@@ -49,13 +104,29 @@ public class DeveloperRoutingDescriptor {
 		 * Constraints on the metadata on the service registry entry. All must match.
 		 */
 		private Map<String,String> metadataConstraints;
+
+		/**
+		 * Regular expressions metadata values must match in full, for example
+		 * <tt>version</tt> to <tt>2\.[0-9]+</tt>. All must match.
+		 */
+		@JsonInclude(JsonInclude.Include.NON_EMPTY)
+		private Map<String,String> metadataPatterns;
+
+		/**
+		 * Percentage of calls to the service this constraint applies to, 0 meaning all of them.
+		 * See {@link RouteMatcher} for how weighted constraints combine.
+		 */
+		@JsonInclude(JsonInclude.Include.NON_DEFAULT)
+		private int weight;
 		
 		// Would be nice to even select particular URLs but that data isn't available in
 		// current place where decisions are made (ribbon instance selector)
 //		private String[] urlPatterns; ??
 		
 		public String toString() {
-			return "RouteConfig:serviceName="+getServiceName()+" metadataConstraints="+getMetadataConstraints();
+			return "RouteConfig:serviceName="+getServiceName()+" metadataConstraints="+getMetadataConstraints()+
+					(metadataPatterns == null || metadataPatterns.isEmpty() ? "" : " metadataPatterns="+metadataPatterns)+
+					(weight == 0 ? "" : " weight="+weight);
 		}
 
 		public String getServiceName() {
@@ -63,6 +134,7 @@ public class DeveloperRoutingDescriptor {
 		}
 
 		public void setServiceName(String serviceRegex) {
+			checkMutable();
 			this.serviceName = serviceRegex;
 		}
 
@@ -71,19 +143,79 @@ public class DeveloperRoutingDescriptor {
 		}
 
 		public void setMetadataConstraints(Map<String,String> metadataConstraints) {
+			checkMutable();
 			this.metadataConstraints = metadataConstraints;
 		}
+
+		public Map<String,String> getMetadataPatterns() {
+			return metadataPatterns;
+		}
+
+		public void setMetadataPatterns(Map<String,String> metadataPatterns) {
+			checkMutable();
+			this.metadataPatterns = metadataPatterns;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		public void setWeight(int weight) {
+			if (weight < 0 || weight > 100) {
+				throw new IllegalArgumentException("Route constraint weight must be between 0 and 100: " + weight);
+			}
+			checkMutable();
+			this.weight = weight;
+		}
+
+		/**
+		 * @return true if the constraint applies to the same services in the same way as another
+		 */
+		boolean sameAs(RouteConstraint rc) {
+			return (serviceName == null ? rc.serviceName == null : serviceName.equalsIgnoreCase(rc.serviceName))
+					&& weight == rc.weight && sameEntries(metadataConstraints, rc.metadataConstraints)
+					&& sameEntries(metadataPatterns, rc.metadataPatterns);
+		}
+
+		private static boolean sameEntries(Map<String,String> m1, Map<String,String> m2) {
+			if (m1 == null || m1.isEmpty()) {
+				return m2 == null || m2.isEmpty();
+			}
+			return m1.equals(m2);
+		}
+
+		private void checkMutable() {
+			if (frozen) {
+				throw new IllegalStateException("Canonical route constraints cannot be changed");
+			}
+		}
 	}
 	
 	public DeveloperRoutingDescriptor() {
+		this.canonical = false;
+		this.fingerprint = null;
+		this.compact = null;
 	}
 	
 	public DeveloperRoutingDescriptor(String id) {
+		this();
 		this.id = id;
 	}
+
+	private DeveloperRoutingDescriptor(String id, RouteConstraint[] canonicalConstraints) {
+		this.id = id;
+		this.routeConstraints = canonicalConstraints;
+		this.routeConstraintCount = canonicalConstraints.length;
+		this.canonical = true;
+		this.canonicalForm = this;
+		this.compact = DeveloperRoutingDescriptorCodec.toCompact(this);
+		this.fingerprint = DeveloperRoutingDescriptorCodec.fnv64(compact);
+	}
 	
 	public void setId(String id) {
+		checkMutable();
 		this.id = id;
+		this.canonicalForm = null;
 	}
 	
 	public String getId() {
@@ -91,56 +223,287 @@ public class DeveloperRoutingDescriptor {
 	}
 	
 	public RouteConstraint[] getRouteConstraints() {
-		return this.routeConstraints;
+		RouteConstraint[] rcs = this.routeConstraints;
+		if (rcs != null && rcs.length != routeConstraintCount) {
+			// Trim the spare capacity left by addRouteConfig
+			rcs = Arrays.copyOf(rcs, routeConstraintCount);
+			this.routeConstraints = rcs;
+		}
+		return rcs;
 	}
 	
-	public void setRouteConfigs(RouteConstraint[] routeConstraints) {
+	public void setRouteConstraints(RouteConstraint[] routeConstraints) {
+		checkMutable();
 		this.routeConstraints = routeConstraints;
+		this.routeConstraintCount = routeConstraints == null ? 0 : routeConstraints.length;
+		changed();
+	}
+
+	public void setRouteConfigs(RouteConstraint[] routeConstraints) {
+		setRouteConstraints(routeConstraints);
+	}
+
+	/**
+	 * @return the compiled, immutable form of the current route constraints
+	 * @throws IllegalArgumentException if a pattern is invalid or the weights for a service add
+	 * up to more than 100
+	 */
+	public RouteMatcher matcher() {
+		RouteMatcher m = this.matcher;
+		if (m == null) {
+			m = new RouteMatcher(getRouteConstraints());
+			this.matcher = m;
+		}
+		return m;
+	}
+
+	/**
+	 * @return true if this is a canonical, and so unmodifiable, descriptor
+	 */
+	public boolean canonical() {
+		return canonical;
+	}
+
+	/**
+	 * @return the canonical form of this descriptor, which is this descriptor if it is already
+	 * canonical
+	 */
+	public DeveloperRoutingDescriptor canonicalForm() {
+		DeveloperRoutingDescriptor c = this.canonicalForm;
+		if (c == null) {
+			c = new DeveloperRoutingDescriptor(id, canonicalConstraints(getRouteConstraints()));
+			this.canonicalForm = c;
+		}
+		return c;
+	}
+
+	/**
+	 * @return a 64-bit FNV-1a hash of the compact form of the canonical descriptor, equal for
+	 * descriptors that route the same way
+	 */
+	public long fingerprint() {
+		return fingerprintKey();
+	}
+
+	Long fingerprintKey() {
+		return canonicalForm().fingerprint;
+	}
+
+	/**
+	 * @return the compact baggage form of the canonical descriptor, the same string every time
+	 */
+	String compactForm() {
+		return canonicalForm().compact;
+	}
+
+	/**
+	 * Keeps the constraints the {@link RouteMatcher} would use, in canonical order: named services
+	 * sorted by name (the weighted constraints of a split keep their relative order), then globs
+	 * in their original order, then the wildcard.
+	 */
+	private static RouteConstraint[] canonicalConstraints(RouteConstraint[] rcs) {
+		int count = rcs == null ? 0 : rcs.length;
+		TreeMap<String, List<RouteConstraint>> named = new TreeMap<>();
+		List<RouteConstraint> globs = new ArrayList<>();
+		RouteConstraint wildcard = null;
+		for (int i = 0; i < count && wildcard == null; i++) {
+			RouteConstraint rc = rcs[i];
+			String serviceName = rc.getServiceName();
+			if (serviceName == null) {
+				wildcard = rc;
+			} else if (PatternCache.isGlob(serviceName)) {
+				if (!globMatches(globs, serviceName)) {
+					globs.add(rc);
+				}
+			} else {
+				String key = serviceName.toLowerCase(Locale.ENGLISH);
+				if (named.containsKey(key) || globMatches(globs, serviceName)) {
+					continue;
+				}
+				// Same grouping as the matcher, weighted options up to the first unweighted one
+				List<RouteConstraint> group = new ArrayList<>();
+				for (int j = i; j < count; j++) {
+					if (serviceName.equalsIgnoreCase(rcs[j].getServiceName())) {
+						group.add(rcs[j]);
+						if (rcs[j].getWeight() == 0) {
+							break;
+						}
+					}
+				}
+				named.put(key, group);
+			}
+		}
+		List<RouteConstraint> result = new ArrayList<>();
+		for (List<RouteConstraint> group : named.values()) {
+			for (RouteConstraint rc : group) {
+				result.add(new RouteConstraint(rc));
+			}
+		}
+		for (RouteConstraint glob : globs) {
+			result.add(new RouteConstraint(glob));
+		}
+		if (wildcard != null) {
+			result.add(new RouteConstraint(wildcard));
+		}
+		return result.toArray(new RouteConstraint[result.size()]);
+	}
+
+	private static boolean globMatches(List<RouteConstraint> globs, String serviceName) {
+		for (RouteConstraint glob : globs) {
+			if (PatternCache.matches(PatternCache.glob(glob.getServiceName()), serviceName)) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	/**
-	 * Should be able to join up constraint objects - probably report errors on
-	 * inconsistencies/incompatibilities.
+	 * Add the route constraints of another descriptor to this one. Constraints already present
+	 * are skipped. Incoming constraints are placed where the {@link RouteMatcher} will reach them,
+	 * ahead of any wildcard constraint and with weighted constraints ahead of the unweighted one
+	 * for the same service.
+	 * @param drd the descriptor to merge in
+	 * @throws IllegalArgumentException if the descriptors have different ids, both have different
+	 * unweighted constraints for the same service (or different wildcard constraints), or the
+	 * weights for a service would add up to more than 100
 	 */
 	public void merge(DeveloperRoutingDescriptor drd) {
-		// assert this.id = drd.id
+		checkMutable();
+		if (drd == null) {
+			return;
+		}
+		if (id != null && drd.getId() != null && !id.equals(drd.getId())) {
+			throw new IllegalArgumentException("Cannot merge routing descriptor " + drd.getId() + " into " + id);
+		}
+		RouteConstraint[] incoming = drd.getRouteConstraints();
+		List<RouteConstraint> merged = new ArrayList<>();
+		RouteConstraint[] current = getRouteConstraints();
+		if (current != null) {
+			merged.addAll(Arrays.asList(current));
+		}
+		for (int i = 0; incoming != null && i < incoming.length; i++) {
+			RouteConstraint rc = incoming[i];
+			int insertAt = merged.size();
+			int weights = rc.getWeight();
+			boolean duplicate = false;
+			for (int j = 0; j < merged.size() && !duplicate; j++) {
+				RouteConstraint existing = merged.get(j);
+				String serviceName = existing.getServiceName();
+				if (serviceName == null) {
+					insertAt = Math.min(insertAt, j);
+				}
+				if (serviceName == null ? rc.getServiceName() != null : !serviceName.equalsIgnoreCase(rc.getServiceName())) {
+					continue;
+				}
+				if (existing.sameAs(rc)) {
+					duplicate = true;
+				} else if (existing.getWeight() == 0 && rc.getWeight() == 0) {
+					throw new IllegalArgumentException("Conflicting route constraints for "
+							+ (serviceName == null ? "all services" : serviceName) + ": " + existing + " and " + rc);
+				} else if (existing.getWeight() == 0) {
+					insertAt = Math.min(insertAt, j);
+				} else {
+					weights += existing.getWeight();
+				}
+			}
+			if (duplicate) {
+				continue;
+			}
+			if (rc.getWeight() > 0 && weights > 100) {
+				throw new IllegalArgumentException("Route constraint weights for " + rc.getServiceName()
+						+ " would add up to " + weights + " which is more than 100");
+			}
+			merged.add(insertAt, rc);
+		}
+		if (id == null) {
+			id = drd.getId();
+		}
+		setRouteConstraints(merged.toArray(new RouteConstraint[merged.size()]));
 	}
 
 	/**
 	 * Add a route constraint to this routing descriptor.
 	 * @param serviceName the specific service to which the constraint applies or null for all
-	 * @param keyValueMetadataConstraints "a=b" style list of constraints on service registry metadata for services.
+	 * @param keyValueMetadataConstraints "a=b" style list of constraints on service registry metadata for services,
+	 * or "a=~regex" where the value must match a regular expression.
 	 */
 	public void addRouteConstraint(String serviceName, String... keyValueMetadataConstraints) {
 		Map<String,String> map = new HashMap<>();
+		Map<String,String> patterns = null;
 		for (int i=0;i<keyValueMetadataConstraints.length;i++) {
 			String kv = keyValueMetadataConstraints[i];
 			int index = kv.indexOf('=');
 			if (index != -1) {
-				map.put(kv.substring(0,index), kv.substring(index+1));
+				if (index + 1 < kv.length() && kv.charAt(index + 1) == '~') {
+					if (patterns == null) {
+						patterns = new HashMap<>();
+					}
+					patterns.put(kv.substring(0,index), kv.substring(index+2));
+				} else {
+					map.put(kv.substring(0,index), kv.substring(index+1));
+				}
 			}
 		}
-		addRouteConfig(serviceName,map);
+		addRouteConfig(serviceName, 0, map, patterns);
 	}
 
 	public void addRouteConfig(String serviceName, Map<String,String> metadataConstraints) {
+		addRouteConfig(serviceName, 0, metadataConstraints);
+	}
+
+	/**
+	 * Add a route constraint that only applies to a percentage of the calls to a service, for
+	 * example to send 5% of calls to canary instances.
+	 * @param weight the percentage of calls, 0 for all of them
+	 */
+	public void addRouteConfig(String serviceName, int weight, Map<String,String> metadataConstraints) {
+		addRouteConfig(serviceName, weight, metadataConstraints, null);
+	}
+
+	/**
+	 * Add a route constraint that also requires metadata values to match regular expressions.
+	 * @param metadataPatterns metadata key to the regular expression its value must match
+	 */
+	public void addRouteConfig(String serviceName, int weight, Map<String,String> metadataConstraints,
+			Map<String,String> metadataPatterns) {
+		checkMutable();
 		RouteConstraint rc = new RouteConstraint(serviceName, metadataConstraints);
+		rc.setWeight(weight);
+		rc.setMetadataPatterns(metadataPatterns);
 		if (routeConstraints == null) {
-			routeConstraints = new RouteConstraint[] {rc};
-		} else {
-			RouteConstraint[] newRouteConfigs = new RouteConstraint[routeConstraints.length+1];
-			System.arraycopy(routeConstraints, 0, newRouteConfigs, 0, routeConstraints.length);
-			newRouteConfigs[routeConstraints.length] = rc;
-			routeConstraints = newRouteConfigs;
+			routeConstraints = new RouteConstraint[4];
+		} else if (routeConstraintCount == routeConstraints.length) {
+			routeConstraints = Arrays.copyOf(routeConstraints, routeConstraintCount * 2);
+		}
+		routeConstraints[routeConstraintCount++] = rc;
+		changed();
+	}
+
+	private void changed() {
+		matcher = null;
+		canonicalForm = null;
+	}
+
+	private void checkMutable() {
+		if (canonical) {
+			throw new IllegalStateException("Canonical routing descriptors cannot be changed");
 		}
 	}
 	
 	public String toString() {
 		StringBuilder s = new StringBuilder();
 		s.append("DeveloperRoutingDescriptor(#").append(id).append(")");
-		for (int i=0;i<routeConstraints.length;i++) {
+		RouteConstraint[] routeConstraints = getRouteConstraints();
+		for (int i=0;routeConstraints != null && i<routeConstraints.length;i++) {
 			s.append("[RC#").append(i).append(":");
-			s.append(routeConstraints[i].getServiceName()).append(":").append(routeConstraints[i].getMetadataConstraints());
+			s.append(routeConstraints[i].getServiceName());
+			if (routeConstraints[i].getWeight() != 0) {
+				s.append("@").append(routeConstraints[i].getWeight());
+			}
+			s.append(":").append(routeConstraints[i].getMetadataConstraints());
+			if (routeConstraints[i].getMetadataPatterns() != null) {
+				s.append("~").append(routeConstraints[i].getMetadataPatterns());
+			}
 			s.append("]");
 		}
 		return s.toString();
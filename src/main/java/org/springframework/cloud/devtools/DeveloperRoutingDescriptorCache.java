@@ -0,0 +1,308 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded LRU cache of parsed {@link DeveloperRoutingDescriptor} objects keyed by the
+ * "devtools" baggage string they were parsed from. The same descriptor typically flows
+ * through many requests so parsing it once and sharing the result between the
+ * {@link DeveloperRoutingFilter} and the {@link BaggageAwarePredicate} saves a lot of
+ * Jackson work. Cached descriptors must be treated as read only.
+ * <p>
+ * Whenever a full descriptor is seen its digest is registered too, so baggage in the
+ * {@link DeveloperRoutingDescriptorCodec.Format#DIGEST digest} form can be resolved for any
+ * descriptor this process already knows about.
+ * <p>
+ * Baggage in the reference form is resolved against the {@link DeveloperRoutingDescriptorRegistry},
+ * if there is one, on every lookup rather than being cached, so registry changes apply at once.
+ * <p>
+ * Descriptors are interned: the cache hands out the canonical form of each descriptor, and the
+ * same instance for every baggage string that describes the same routing, so anything keyed by
+ * descriptor can use its {@link DeveloperRoutingDescriptor#fingerprint() fingerprint}.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingDescriptorCache {
+
+	private static Logger log = LoggerFactory.getLogger(DeveloperRoutingDescriptorCache.class);
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	private final DeveloperRoutingDescriptorCodec codec;
+
+	private final int maxSize;
+
+	// Access ordered, guarded by itself
+	private final Map<String, DeveloperRoutingDescriptor> descriptors;
+
+	// Canonical descriptors by fingerprint, access ordered, guarded by descriptors
+	private final Map<Long, DeveloperRoutingDescriptor> interned;
+
+	// Baggage produced for each descriptor fingerprint, access ordered, guarded by descriptors
+	private final Map<Long, String> encoded;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong parseFailures = new AtomicLong();
+
+	private final AtomicLong unknownDigests = new AtomicLong();
+
+	private final AtomicLong unknownReferences = new AtomicLong();
+
+	private final DeveloperRoutingDescriptorRegistry registry;
+
+	public DeveloperRoutingDescriptorCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public DeveloperRoutingDescriptorCache(int maxSize) {
+		this(maxSize, new DeveloperRoutingDescriptorCodec());
+	}
+
+	public DeveloperRoutingDescriptorCache(int maxSize, DeveloperRoutingDescriptorCodec codec) {
+		this(maxSize, codec, null);
+	}
+
+	/**
+	 * @param registry the registry resolving reference baggage, may be null
+	 */
+	public DeveloperRoutingDescriptorCache(final int maxSize, DeveloperRoutingDescriptorCodec codec,
+			DeveloperRoutingDescriptorRegistry registry) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Cache size must be at least 1 but was " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.codec = codec;
+		this.registry = registry;
+		this.descriptors = new LinkedHashMap<String, DeveloperRoutingDescriptor>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DeveloperRoutingDescriptor> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+		this.interned = new LinkedHashMap<Long, DeveloperRoutingDescriptor>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, DeveloperRoutingDescriptor> eldest) {
+				return size() > maxSize;
+			}
+		};
+		this.encoded = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Find the descriptor for some baggage, parsing it if it hasn't been seen recently.
+	 * @param baggage a descriptor as carried in the "devtools" baggage item
+	 * @return the descriptor or null if the baggage cannot be parsed or is an unknown digest
+	 */
+	public DeveloperRoutingDescriptor get(String baggage) {
+		if (DeveloperRoutingDescriptorCodec.isReference(baggage)) {
+			return resolveReference(baggage);
+		}
+		DeveloperRoutingDescriptor drd;
+		synchronized (descriptors) {
+			drd = descriptors.get(baggage);
+		}
+		if (drd != null) {
+			hits.incrementAndGet();
+			return drd;
+		}
+		misses.incrementAndGet();
+		// Parse outside of the lock, a racing parse of the same baggage is harmless
+		try {
+			drd = codec.decode(baggage);
+		} catch (IllegalArgumentException e) {
+			parseFailures.incrementAndGet();
+			log.error("Unable to deserialize developer info", e);
+			return null;
+		}
+		if (drd == null) {
+			unknownDigests.incrementAndGet();
+			log.warn("Unable to resolve developer routing digest {}, descriptor not seen by this process", baggage);
+			return null;
+		}
+		drd = drd.canonicalForm();
+		String digest = DeveloperRoutingDescriptorCodec.digest(drd.fingerprint());
+		synchronized (descriptors) {
+			drd = internLocked(drd);
+			descriptors.put(baggage, drd);
+			descriptors.put(digest, drd);
+		}
+		return drd;
+	}
+
+	private DeveloperRoutingDescriptor resolveReference(String baggage) {
+		DeveloperRoutingDescriptor drd = null;
+		if (registry != null) {
+			drd = registry.get(DeveloperRoutingDescriptorCodec.referencedId(baggage));
+		}
+		if (drd == null) {
+			unknownReferences.incrementAndGet();
+			log.warn("Unable to resolve developer routing reference {}, no descriptor registered with that id", baggage);
+		}
+		return drd;
+	}
+
+	/**
+	 * @return a number that changes whenever the resolution of reference baggage might
+	 */
+	public long getRegistryVersion() {
+		return registry == null ? 0 : registry.getVersion();
+	}
+
+	public DeveloperRoutingDescriptorRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @param drd a descriptor
+	 * @return the one canonical instance this cache holds for descriptors routing like the given one
+	 */
+	public DeveloperRoutingDescriptor intern(DeveloperRoutingDescriptor drd) {
+		DeveloperRoutingDescriptor canonical = drd.canonicalForm();
+		synchronized (descriptors) {
+			return internLocked(canonical);
+		}
+	}
+
+	private DeveloperRoutingDescriptor internLocked(DeveloperRoutingDescriptor canonical) {
+		Long fingerprint = canonical.fingerprintKey();
+		DeveloperRoutingDescriptor existing = interned.get(fingerprint);
+		if (existing != null) {
+			return existing;
+		}
+		interned.put(fingerprint, canonical);
+		return canonical;
+	}
+
+	/**
+	 * Produce the baggage form of a descriptor, remembering the mapping so that the
+	 * baggage will not need parsing when it is seen later in this process. The baggage for a
+	 * descriptor is remembered too, so it is only serialized once while it stays in use.
+	 * @param drd the descriptor to serialize
+	 * @return the descriptor encoded in the configured baggage format
+	 */
+	public String toBaggage(DeveloperRoutingDescriptor drd) {
+		drd = drd.canonicalForm();
+		synchronized (descriptors) {
+			String baggage = encoded.get(drd.fingerprintKey());
+			// Only while the baggage still resolves without parsing
+			if (baggage != null && descriptors.get(baggage) != null) {
+				return baggage;
+			}
+		}
+		String compact = drd.compactForm();
+		String digest = DeveloperRoutingDescriptorCodec.digest(drd.fingerprint());
+		String baggage;
+		switch (codec.getFormat()) {
+		case JSON:
+			baggage = codec.toJson(drd);
+			break;
+		case DIGEST:
+			baggage = digest;
+			break;
+		default:
+			baggage = compact;
+		}
+		synchronized (descriptors) {
+			drd = internLocked(drd);
+			descriptors.put(compact, drd);
+			descriptors.put(digest, drd);
+			descriptors.put(baggage, drd);
+			encoded.put(drd.fingerprintKey(), baggage);
+		}
+		return baggage;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int size() {
+		synchronized (descriptors) {
+			return descriptors.size();
+		}
+	}
+
+	public int getInternedCount() {
+		synchronized (descriptors) {
+			return interned.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getParseFailures() {
+		return parseFailures.get();
+	}
+
+	public long getUnknownDigests() {
+		return unknownDigests.get();
+	}
+
+	public long getUnknownReferences() {
+		return unknownReferences.get();
+	}
+
+	public void clear() {
+		synchronized (descriptors) {
+			descriptors.clear();
+			interned.clear();
+			encoded.clear();
+		}
+	}
+
+	public String toString() {
+		return "DeveloperRoutingDescriptorCache(size=" + size() + "/" + maxSize + ",hits=" + getHits() + ",misses="
+				+ getMisses() + ",evictions=" + getEvictions() + ",parseFailures=" + getParseFailures() + ",unknownDigests=" + getUnknownDigests() + ",unknownReferences=" + getUnknownReferences() + ")";
+	}
+
+}
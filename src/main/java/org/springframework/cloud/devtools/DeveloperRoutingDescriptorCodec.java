@@ -0,0 +1,465 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.cloud.devtools.DeveloperRoutingDescriptor.RouteConstraint;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Converts {@link DeveloperRoutingDescriptor} objects to and from the string carried in the
+ * "devtools" baggage item. Three forms are understood when decoding:
+ * <ul>
+ * <li>json, the original format: <tt>{"id":"Andy","routeConstraints":[...]}</tt>
+ * <li>compact (version 1): <tt>1|Andy|b:env=dev,foo=bar;*:user=kryten</tt> where <tt>*</tt>
+ * means the constraint applies to any service. A weighted constraint has its weight after the
+ * service name: <tt>b@5:version=canary</tt>. A metadata value that is a regular expression
+ * follows <tt>=~</tt>, as in <tt>orders-%2a:version=~2\.[0-9]+</tt>. A null metadata value,
+ * which only matches instances having the key with no value, is written <tt>key=!</tt>.
+ * Reserved characters within ids, names, keys and values are percent escaped, so a glob
+ * service name keeps its escaped <tt>*</tt>.
+ * <li>digest (version 1): <tt>#1|0123456789abcdef</tt>, a 64-bit digest of the compact form
+ * of the canonical descriptor (its {@link DeveloperRoutingDescriptor#fingerprint() fingerprint}).
+ * <li>reference (version 1): <tt>@1|Andy</tt>, the id of a descriptor held in the
+ * {@link DeveloperRoutingDescriptorRegistry}. Like a digest this cannot be decoded on its own.
+ * This only identifies a descriptor, so can only be resolved by a process that has already
+ * seen the full descriptor (see {@link DeveloperRoutingDescriptorCache}).
+ * </ul>
+ * JSON is the default output so that processes only understanding json keep working during a
+ * rolling upgrade, every process decodes both forms.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingDescriptorCodec {
+
+	/**
+	 * The form used when encoding descriptors into baggage.
+	 */
+	public enum Format {
+		JSON, COMPACT, DIGEST
+	}
+
+	static final char COMPACT_VERSION = '1';
+
+	static final String DIGEST_PREFIX = "#1|";
+
+	static final String REFERENCE_PREFIX = "@1|";
+
+	static final String ANY_SERVICE = "*";
+
+	private static final long FNV64_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	private static final long FNV64_PRIME = 0x100000001b3L;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final String RESERVED = "%|;:,=*@~!";
+
+	// Stands for a null metadata value, reserved so never the whole of an escaped value
+	private static final char NULL_VALUE = '!';
+
+	private final ObjectMapper mapper;
+
+	private final Format format;
+
+	public DeveloperRoutingDescriptorCodec() {
+		this(Format.JSON);
+	}
+
+	public DeveloperRoutingDescriptorCodec(Format format) {
+		this.format = format;
+		this.mapper = new ObjectMapper();
+		this.mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * Descriptors are encoded in their canonical form so that equivalent descriptors produce the
+	 * same baggage.
+	 * @param drd the descriptor to encode
+	 * @return the descriptor in the configured baggage format
+	 */
+	public String encode(DeveloperRoutingDescriptor drd) {
+		DeveloperRoutingDescriptor canonical = drd.canonicalForm();
+		switch (format) {
+		case JSON:
+			return toJson(canonical);
+		case DIGEST:
+			return digest(canonical.fingerprint());
+		default:
+			return toCompact(canonical);
+		}
+	}
+
+	/**
+	 * Decode baggage in json or compact form.
+	 * @param baggage the baggage to decode
+	 * @return the descriptor, or null if the baggage is a digest or reference which cannot be decoded
+	 * @throws IllegalArgumentException if the baggage is malformed
+	 */
+	public DeveloperRoutingDescriptor decode(String baggage) {
+		if (isDigest(baggage) || isReference(baggage)) {
+			return null;
+		}
+		DeveloperRoutingDescriptor drd;
+		if (baggage.length() > 0 && baggage.charAt(0) == '{') {
+			try {
+				drd = mapper.readValue(baggage, DeveloperRoutingDescriptor.class);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Unable to deserialize developer info: " + baggage, e);
+			}
+		} else {
+			drd = fromCompact(baggage);
+		}
+		// Compile patterns now, so an invalid one (a PatternSyntaxException) fails the decode
+		// and each descriptor compiles its patterns once
+		drd.matcher();
+		return drd;
+	}
+
+	public static boolean isDigest(String baggage) {
+		return baggage.startsWith(DIGEST_PREFIX);
+	}
+
+	public static boolean isReference(String baggage) {
+		return baggage.startsWith(REFERENCE_PREFIX);
+	}
+
+	/**
+	 * @param id the id of a registered descriptor
+	 * @return baggage referring to the descriptor by id
+	 */
+	public static String reference(String id) {
+		StringBuilder s = new StringBuilder(REFERENCE_PREFIX.length() + id.length());
+		s.append(REFERENCE_PREFIX);
+		escape(id, s);
+		return s.toString();
+	}
+
+	/**
+	 * @param baggage baggage in the reference form
+	 * @return the id of the descriptor referred to
+	 */
+	public static String referencedId(String baggage) {
+		return unescape(baggage, REFERENCE_PREFIX.length(), baggage.length());
+	}
+
+	public String toJson(DeveloperRoutingDescriptor drd) {
+		try {
+			// {"id":"Andy","routeConstraints":[{"serviceName":"b","metadataConstraints":{"foo":"bar"}}]}
+			return mapper.writeValueAsString(drd);
+		} catch (JsonProcessingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Metadata keys are sorted so equal descriptors always produce the same compact form.
+	 */
+	public static String toCompact(DeveloperRoutingDescriptor drd) {
+		StringBuilder s = new StringBuilder(64);
+		s.append(COMPACT_VERSION).append('|');
+		if (drd.getId() != null) {
+			escape(drd.getId(), s);
+		}
+		s.append('|');
+		RouteConstraint[] routeConstraints = drd.getRouteConstraints();
+		if (routeConstraints != null) {
+			for (int i = 0; i < routeConstraints.length; i++) {
+				if (i > 0) {
+					s.append(';');
+				}
+				RouteConstraint rc = routeConstraints[i];
+				if (rc.getServiceName() == null) {
+					s.append(ANY_SERVICE);
+				} else {
+					escape(rc.getServiceName(), s);
+				}
+				if (rc.getWeight() != 0) {
+					s.append('@').append(rc.getWeight());
+				}
+				s.append(':');
+				if (rc.getMetadataConstraints() != null) {
+					boolean first = true;
+					for (Map.Entry<String, String> entry : new TreeMap<>(rc.getMetadataConstraints()).entrySet()) {
+						if (!first) {
+							s.append(',');
+						}
+						first = false;
+						escape(entry.getKey(), s);
+						s.append('=');
+						if (entry.getValue() == null) {
+							s.append(NULL_VALUE);
+						} else {
+							escape(entry.getValue(), s);
+						}
+					}
+				}
+				if (rc.getMetadataPatterns() != null) {
+					boolean first = rc.getMetadataConstraints() == null || rc.getMetadataConstraints().isEmpty();
+					for (Map.Entry<String, String> entry : new TreeMap<>(rc.getMetadataPatterns()).entrySet()) {
+						if (!first) {
+							s.append(',');
+						}
+						first = false;
+						escape(entry.getKey(), s);
+						s.append("=~");
+						escape(entry.getValue(), s);
+					}
+				}
+			}
+		}
+		return s.toString();
+	}
+
+	/**
+	 * @return the digest form of some compact baggage
+	 */
+	public static String digest(String compact) {
+		return digest(fnv64(compact));
+	}
+
+	/**
+	 * @return the digest form for a descriptor fingerprint
+	 * @see DeveloperRoutingDescriptor#fingerprint()
+	 */
+	public static String digest(long hash) {
+		char[] chars = new char[DIGEST_PREFIX.length() + 16];
+		DIGEST_PREFIX.getChars(0, DIGEST_PREFIX.length(), chars, 0);
+		for (int i = chars.length - 1; i >= DIGEST_PREFIX.length(); i--) {
+			chars[i] = HEX[(int) (hash & 0xf)];
+			hash >>>= 4;
+		}
+		return new String(chars);
+	}
+
+	static long fnv64(String s) {
+		long hash = FNV64_OFFSET_BASIS;
+		for (int i = 0, max = s.length(); i < max; i++) {
+			hash ^= s.charAt(i);
+			hash *= FNV64_PRIME;
+		}
+		return hash;
+	}
+
+	static DeveloperRoutingDescriptor fromCompact(String baggage) {
+		if (baggage.length() < 2 || baggage.charAt(0) != COMPACT_VERSION || baggage.charAt(1) != '|') {
+			throw new IllegalArgumentException("Unrecognized developer routing baggage: " + baggage);
+		}
+		int idEnd = baggage.indexOf('|', 2);
+		if (idEnd == -1) {
+			throw new IllegalArgumentException("Missing route constraints in developer routing baggage: " + baggage);
+		}
+		DeveloperRoutingDescriptor drd;
+		try {
+			drd = new DeveloperRoutingDescriptor(idEnd == 2 ? null : unescape(baggage, 2, idEnd));
+			parseRouteConstraints(baggage, idEnd + 1, baggage.length(), drd, true);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(e.getMessage() + " in: " + baggage, e);
+		}
+		if (drd.getRouteConstraints() == null) {
+			drd.setRouteConstraints(new RouteConstraint[0]);
+		}
+		return drd;
+	}
+
+	/**
+	 * Parse the value of a DEVELOPER-ROUTE header, route constraints written as in the compact
+	 * form, for example <tt>b:foo=bar,env=dev;c:version=2</tt>. Anyone able to call a service can
+	 * send this header so regular expression constraints are not accepted in it, service names
+	 * may still be globs. Descriptors that are configured or registered may use expressions.
+	 * @param header the header value
+	 * @return a descriptor without an id, with its patterns compiled
+	 * @throws IllegalArgumentException describing where the header is malformed, without repeating it
+	 */
+	public static DeveloperRoutingDescriptor fromHeader(String header) {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor();
+		parseRouteConstraints(header, 0, header.length(), drd, false);
+		if (drd.getRouteConstraints() == null) {
+			throw new IllegalArgumentException("No route constraints");
+		}
+		drd.matcher();
+		return drd;
+	}
+
+	/**
+	 * Add the route constraints in part of a string to a descriptor, in a single pass that only
+	 * allocates the names, keys and values it finds.
+	 * @param allowPatterns whether regular expression metadata constraints are accepted
+	 * @throws IllegalArgumentException giving the position at which the text is malformed
+	 */
+	static void parseRouteConstraints(String s, int from, int to, DeveloperRoutingDescriptor drd,
+			boolean allowPatterns) {
+		boolean inServiceName = true;
+		// Start of the service name, metadata key or metadata value being read
+		int start = from;
+		int at = -1;
+		// Null while reading a metadata key
+		String key = null;
+		boolean pattern = false;
+		String serviceName = null;
+		int weight = 0;
+		Map<String, String> metadataConstraints = null;
+		Map<String, String> metadataPatterns = null;
+		for (int i = from; i <= to; i++) {
+			// The end acts as a final ';'
+			char ch = i == to ? ';' : s.charAt(i);
+			if (inServiceName) {
+				if (ch == ':') {
+					int nameEnd = at == -1 ? i : at;
+					if (nameEnd == start) {
+						throw new IllegalArgumentException("Missing service name at " + start);
+					}
+					serviceName = (nameEnd - start == 1 && s.charAt(start) == '*') ? null : unescape(s, start, nameEnd);
+					weight = at == -1 ? 0 : parseWeight(s, at + 1, i);
+					metadataConstraints = new LinkedHashMap<>();
+					metadataPatterns = null;
+					inServiceName = false;
+					key = null;
+					start = i + 1;
+				} else if (ch == '@' && at == -1) {
+					at = i;
+				} else if (ch == ';') {
+					if (i != start) {
+						throw new IllegalArgumentException("Missing ':' after service name at " + start);
+					}
+					// Nothing between separators
+					start = i + 1;
+				} else if (ch == ',' || ch == '=') {
+					throw new IllegalArgumentException("Unexpected '" + ch + "' in service name at " + i);
+				}
+			} else if (key == null) {
+				if (ch == '=') {
+					if (i == start) {
+						throw new IllegalArgumentException("Missing metadata key at " + i);
+					}
+					key = unescape(s, start, i);
+					pattern = i + 1 < to && s.charAt(i + 1) == '~';
+					if (pattern) {
+						if (!allowPatterns) {
+							throw new IllegalArgumentException("Regular expression constraint not allowed at " + i);
+						}
+						i++;
+					}
+					start = i + 1;
+				} else if (ch == ',' || ch == ';') {
+					boolean noMetadata = ch == ';' && i == start && metadataConstraints.isEmpty() && metadataPatterns == null;
+					if (!noMetadata) {
+						throw new IllegalArgumentException("Missing '=' in metadata constraint at " + start);
+					}
+					drd.addRouteConfig(serviceName, weight, metadataConstraints, metadataPatterns);
+					inServiceName = true;
+					at = -1;
+					start = i + 1;
+				}
+			} else if (ch == ',' || ch == ';') {
+				if (pattern) {
+					if (metadataPatterns == null) {
+						metadataPatterns = new LinkedHashMap<>();
+					}
+					metadataPatterns.put(key, unescape(s, start, i));
+				} else if (i - start == 1 && s.charAt(start) == NULL_VALUE) {
+					metadataConstraints.put(key, null);
+				} else {
+					metadataConstraints.put(key, unescape(s, start, i));
+				}
+				key = null;
+				start = i + 1;
+				if (ch == ';') {
+					drd.addRouteConfig(serviceName, weight, metadataConstraints, metadataPatterns);
+					inServiceName = true;
+					at = -1;
+				}
+			}
+		}
+	}
+
+	private static int parseWeight(String s, int from, int to) {
+		if (from == to || to - from > 3) {
+			throw new IllegalArgumentException("Invalid weight at " + from);
+		}
+		int weight = 0;
+		for (int i = from; i < to; i++) {
+			char ch = s.charAt(i);
+			if (ch < '0' || ch > '9') {
+				throw new IllegalArgumentException("Invalid weight at " + from);
+			}
+			weight = weight * 10 + (ch - '0');
+		}
+		if (weight > 100) {
+			throw new IllegalArgumentException("Weight " + weight + " at " + from + " is more than 100");
+		}
+		return weight;
+	}
+
+	private static int indexOf(String s, char ch, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (s.charAt(i) == ch) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	private static void escape(String text, StringBuilder s) {
+		for (int i = 0, max = text.length(); i < max; i++) {
+			char ch = text.charAt(i);
+			if (RESERVED.indexOf(ch) != -1) {
+				s.append('%').append(HEX[(ch >> 4) & 0xf]).append(HEX[ch & 0xf]);
+			} else {
+				s.append(ch);
+			}
+		}
+	}
+
+	private static String unescape(String s, int from, int to) {
+		int percent = indexOf(s, '%', from, to);
+		if (percent == to) {
+			return s.substring(from, to);
+		}
+		StringBuilder result = new StringBuilder(to - from);
+		result.append(s, from, percent);
+		for (int i = percent; i < to; i++) {
+			char ch = s.charAt(i);
+			if (ch == '%') {
+				if (i + 2 >= to) {
+					throw new IllegalArgumentException("Truncated escape at " + i);
+				}
+				int high = Character.digit(s.charAt(i + 1), 16);
+				int low = Character.digit(s.charAt(i + 2), 16);
+				if (high == -1 || low == -1) {
+					throw new IllegalArgumentException("Invalid escape at " + i);
+				}
+				result.append((char) (high << 4 | low));
+				i += 2;
+			} else {
+				result.append(ch);
+			}
+		}
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Keeps the {@link DeveloperRoutingDescriptorRegistry} in step with a file, typically one on a
+ * volume or in a repository shared by the services taking part in developer routing. The file
+ * either holds a json array of descriptors or one descriptor per line, in the json or compact
+ * baggage form, with blank lines and lines starting <tt>#</tt> ignored. Every descriptor needs
+ * an id.
+ * <p>
+ * The file is checked for changes (of its modification time or size) at a fixed interval and,
+ * when it has changed, reloaded and swapped into the registry in one step. A file that cannot be
+ * read or parsed leaves the registry as it was.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingDescriptorFileWatcher implements InitializingBean, DisposableBean {
+
+	private static Logger log = LoggerFactory.getLogger(DeveloperRoutingDescriptorFileWatcher.class);
+
+	private final DeveloperRoutingDescriptorRegistry registry;
+
+	private final File file;
+
+	private final long intervalMillis;
+
+	private final DeveloperRoutingDescriptorCodec codec = new DeveloperRoutingDescriptorCodec();
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "devtools-routing-file-watcher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// Only touched on the scheduler thread after the initial load
+	private long lastModified = -1;
+
+	private long lastLength = -1;
+
+	private boolean missingReported;
+
+	public DeveloperRoutingDescriptorFileWatcher(DeveloperRoutingDescriptorRegistry registry, File file,
+			long intervalMillis) {
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("Refresh interval must be positive but was " + intervalMillis);
+		}
+		this.registry = registry;
+		this.file = file;
+		this.intervalMillis = intervalMillis;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		// Load before anything is routed, then keep checking
+		checkForChanges();
+		scheduler.scheduleWithFixedDelay(this::checkForChanges, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		scheduler.shutdownNow();
+	}
+
+	synchronized void checkForChanges() {
+		try {
+			if (!file.isFile()) {
+				if (!missingReported) {
+					log.warn("Developer routing descriptor file {} does not exist, registry left unchanged", file);
+					missingReported = true;
+				}
+				return;
+			}
+			missingReported = false;
+			long modified = file.lastModified();
+			long length = file.length();
+			if (modified == lastModified && length == lastLength) {
+				return;
+			}
+			lastModified = modified;
+			lastLength = length;
+			registry.replaceAll(load());
+		} catch (IOException | RuntimeException e) {
+			// Includes malformed descriptors (IllegalArgumentException), try again once it changes
+			log.error("Unable to load developer routing descriptors from " + file + ", registry left unchanged", e);
+		}
+	}
+
+	List<DeveloperRoutingDescriptor> load() throws IOException {
+		String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+		if (content.startsWith("[")) {
+			return Arrays.asList(mapper.readValue(content, DeveloperRoutingDescriptor[].class));
+		}
+		List<DeveloperRoutingDescriptor> descriptors = new ArrayList<>();
+		for (String line : content.split("\\r?\\n")) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			DeveloperRoutingDescriptor drd = codec.decode(line);
+			if (drd == null) {
+				throw new IllegalArgumentException("Digest and reference forms cannot be used in " + file + ": " + line);
+			}
+			descriptors.add(drd);
+		}
+		return descriptors;
+	}
+
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routing descriptors known by id, so a request only needs to carry the id of a registered
+ * descriptor (see {@link DeveloperRoutingDescriptorCodec#reference(String)}) rather than the
+ * descriptor itself. The registry is filled from a watched file
+ * ({@link DeveloperRoutingDescriptorFileWatcher}) or through the
+ * {@link DeveloperRoutingRegistryMvcEndpoint actuator endpoint}, so routes can change without
+ * restarting anything.
+ * <p>
+ * Lookups read an immutable snapshot without locking. Changes build a new snapshot and swap it in
+ * atomically, so a lookup sees either all or none of a change. Descriptors are held in their
+ * {@link DeveloperRoutingDescriptor#canonicalForm() canonical form}.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingDescriptorRegistry {
+
+	private static Logger log = LoggerFactory.getLogger(DeveloperRoutingDescriptorRegistry.class);
+
+	private volatile Map<String, DeveloperRoutingDescriptor> snapshot = Collections.emptyMap();
+
+	// Bumped by every change, guarded by this for writes
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * @param id the id of a descriptor
+	 * @return the registered descriptor or null if there isn't one with that id
+	 */
+	public DeveloperRoutingDescriptor get(String id) {
+		return snapshot.get(id);
+	}
+
+	/**
+	 * @return an unmodifiable view of the current descriptors by id
+	 */
+	public Map<String, DeveloperRoutingDescriptor> getDescriptors() {
+		return snapshot;
+	}
+
+	/**
+	 * @return a number that changes whenever the registered descriptors do
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	public int size() {
+		return snapshot.size();
+	}
+
+	/**
+	 * Register a descriptor, replacing any existing one with the same id.
+	 * @throws IllegalArgumentException if the descriptor has no id
+	 */
+	public synchronized void register(DeveloperRoutingDescriptor drd) {
+		Map<String, DeveloperRoutingDescriptor> descriptors = new HashMap<>(snapshot);
+		descriptors.put(idOf(drd), prepare(drd));
+		swap(descriptors);
+		log.info("Registered developer routing descriptor {}", drd);
+	}
+
+	/**
+	 * @return true if there was a descriptor with the id
+	 */
+	public synchronized boolean unregister(String id) {
+		if (!snapshot.containsKey(id)) {
+			return false;
+		}
+		Map<String, DeveloperRoutingDescriptor> descriptors = new HashMap<>(snapshot);
+		descriptors.remove(id);
+		swap(descriptors);
+		log.info("Unregistered developer routing descriptor {}", id);
+		return true;
+	}
+
+	/**
+	 * Replace all the registered descriptors in one step.
+	 * @throws IllegalArgumentException if a descriptor has no id or two have the same id, in which
+	 * case nothing changes
+	 */
+	public synchronized void replaceAll(Collection<DeveloperRoutingDescriptor> drds) {
+		Map<String, DeveloperRoutingDescriptor> descriptors = new HashMap<>();
+		for (DeveloperRoutingDescriptor drd : drds) {
+			if (descriptors.put(idOf(drd), prepare(drd)) != null) {
+				throw new IllegalArgumentException("More than one developer routing descriptor with id " + drd.getId());
+			}
+		}
+		swap(descriptors);
+		log.info("Replaced developer routing descriptors, now have {}", descriptors.keySet());
+	}
+
+	private void swap(Map<String, DeveloperRoutingDescriptor> descriptors) {
+		snapshot = Collections.unmodifiableMap(descriptors);
+		version.incrementAndGet();
+	}
+
+	private static DeveloperRoutingDescriptor prepare(DeveloperRoutingDescriptor drd) {
+		DeveloperRoutingDescriptor canonical = drd.canonicalForm();
+		// Compile up front, failing on invalid patterns before anything changes
+		canonical.matcher();
+		return canonical;
+	}
+
+	private static String idOf(DeveloperRoutingDescriptor drd) {
+		String id = drd.getId();
+		if (id == null || id.isEmpty()) {
+			throw new IllegalArgumentException("Registered developer routing descriptors need an id: " + drd);
+		}
+		return id;
+	}
+
+	public String toString() {
+		return "DeveloperRoutingDescriptorRegistry(version=" + getVersion() + ",ids=" + snapshot.keySet() + ")";
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.List;
+
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+
+/**
+ * {@link DiscoveryClient} decorator that only returns the instances of a service that the
+ * developer routing in effect on the current thread allows. Anything choosing instances through
+ * a {@code DiscoveryClient} gets developer routing this way, whatever the registry.
+ *
+ * @author Andy Clement
+ * @see DeveloperRoutingInstanceFilter
+ */
+public class DeveloperRoutingDiscoveryClient implements DiscoveryClient {
+
+	private final DiscoveryClient delegate;
+
+	private final DeveloperRoutingInstanceFilter instanceFilter;
+
+	public DeveloperRoutingDiscoveryClient(DiscoveryClient delegate, DeveloperRoutingInstanceFilter instanceFilter) {
+		this.delegate = delegate;
+		this.instanceFilter = instanceFilter;
+	}
+
+	public DiscoveryClient getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public String description() {
+		return "Developer routing " + delegate.description();
+	}
+
+	@SuppressWarnings("deprecation")
+	public ServiceInstance getLocalServiceInstance() {
+		return delegate.getLocalServiceInstance();
+	}
+
+	@Override
+	public List<ServiceInstance> getInstances(String serviceId) {
+		return instanceFilter.filter(serviceId, delegate.getInstances(serviceId));
+	}
+
+	@Override
+	public List<String> getServices() {
+		return delegate.getServices();
+	}
+
+}
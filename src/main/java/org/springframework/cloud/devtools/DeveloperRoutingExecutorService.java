@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link ExecutorService} that runs each task with the developer routing that was in effect on
+ * the thread that submitted it.
+ *
+ * @author Andy Clement
+ * @see DeveloperRoutingContext
+ */
+public class DeveloperRoutingExecutorService implements ExecutorService {
+
+	private final ExecutorService delegate;
+
+	public DeveloperRoutingExecutorService(ExecutorService delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		delegate.execute(DeveloperRoutingContext.capture().wrap(command));
+	}
+
+	@Override
+	public Future<?> submit(Runnable task) {
+		return delegate.submit(DeveloperRoutingContext.capture().wrap(task));
+	}
+
+	@Override
+	public <T> Future<T> submit(Runnable task, T result) {
+		return delegate.submit(DeveloperRoutingContext.capture().wrap(task), result);
+	}
+
+	@Override
+	public <T> Future<T> submit(Callable<T> task) {
+		return delegate.submit(DeveloperRoutingContext.capture().wrap(task));
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+		return delegate.invokeAll(wrap(tasks));
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return delegate.invokeAll(wrap(tasks), timeout, unit);
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+		return delegate.invokeAny(wrap(tasks));
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		return delegate.invokeAny(wrap(tasks), timeout, unit);
+	}
+
+	private static <T> List<Callable<T>> wrap(Collection<? extends Callable<T>> tasks) {
+		DeveloperRoutingContext context = DeveloperRoutingContext.capture();
+		List<Callable<T>> wrapped = new ArrayList<>(tasks.size());
+		for (Callable<T> task : tasks) {
+			wrapped.add(context.wrap(task));
+		}
+		return wrapped;
+	}
+
+	@Override
+	public void shutdown() {
+		delegate.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		return delegate.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return delegate.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return delegate.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return delegate.awaitTermination(timeout, unit);
+	}
+
+}
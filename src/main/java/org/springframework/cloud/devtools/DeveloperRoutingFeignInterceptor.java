@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import feign.RequestInterceptor;
+import feign.RequestTemplate;
+
+/**
+ * Carries the developer routing in effect on the calling thread on Feign calls, as the
+ * <tt>baggage-devtools</tt> header sleuth reads on the receiving side. The ribbon server choice
+ * for a Feign call happens on the calling thread, so within
+ * {@link DeveloperRouting#with(DeveloperRoutingDescriptor, java.util.function.Supplier)} it is
+ * routed already.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingFeignInterceptor implements RequestInterceptor {
+
+	@Override
+	public void apply(RequestTemplate template) {
+		String baggage = DeveloperRoutingContext.capture().getBaggage();
+		if (baggage != null && !template.headers().containsKey(DeveloperRoutingAsyncRequestInterceptor.BAGGAGE_HEADER)) {
+			template.header(DeveloperRoutingAsyncRequestInterceptor.BAGGAGE_HEADER, baggage);
+		}
+	}
+
+}
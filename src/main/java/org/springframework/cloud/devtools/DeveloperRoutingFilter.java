@@ -16,8 +16,8 @@
 package org.springframework.cloud.devtools;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -33,14 +33,23 @@ import org.springframework.cloud.sleuth.Tracer;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.GenericFilterBean;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-
-import io.jmnarloch.spring.cloud.ribbon.support.RibbonFilterContextHolder;
-
 /**
- * 
+ * Attaches developer routing information to the sleuth baggage of incoming requests and hands
+ * it to the ribbon filter context so outbound calls are routed accordingly. The routing comes
+ * from a configured {@link DeveloperRoutingDescriptor} bean, a DEVELOPER-ROUTE header, a
+ * DEVELOPER-ROUTE-ID header naming a descriptor in the {@link DeveloperRoutingDescriptorRegistry}
+ * (only the id then travels in the baggage) or baggage that arrived with the request.
+ * <p>
+ * A DEVELOPER-ROUTE header holds one or more route constraints written as in the compact
+ * baggage form, for example <tt>b:foo=bar,env=dev;c:version=2</tt>. Malformed headers are
+ * rejected with a 400 response. What each header value turned into (baggage or an error) is
+ * remembered, so repeated headers cost a map lookup. A request carrying none of those passes straight through
+ * without allocating or logging anything. Per request diagnostics are logged at debug level for
+ * one in every {@link DeveloperRoutingProperties#getDebugSampleRate()} requests.
+ * <p>
+ * The filter also runs for async dispatches, so a request resumed on another thread routes the
+ * same way. The baggage is left in the {@link #BAGGAGE_ATTRIBUTE} request attribute too. Work
+ * handed to other threads can take the routing with it using {@link DeveloperRoutingContext}.
  * 
  * @author Andy Clement
  */
@@ -48,27 +57,63 @@ import io.jmnarloch.spring.cloud.ribbon.support.RibbonFilterContextHolder;
 public class DeveloperRoutingFilter extends GenericFilterBean {
 
 	private static Logger log = LoggerFactory.getLogger(DeveloperRoutingFilter.class);
+
+	static final String ROUTE_HEADER = "DEVELOPER-ROUTE";
+
+	static final String ROUTE_ID_HEADER = "DEVELOPER-ROUTE-ID";
+
+	static final String BAGGAGE_KEY = "devtools";
+
+	private static final int MAX_MEMOIZED_HEADERS = 256;
+
+	/**
+	 * Request attribute holding the routing baggage that applies to the request.
+	 */
+	public static final String BAGGAGE_ATTRIBUTE = DeveloperRoutingFilter.class.getName() + ".BAGGAGE";
 	
 	public Tracer tracer;
 	
-	private DeveloperRoutingDescriptor developerRoutingDescriptor;
+	private final DeveloperRoutingDescriptor developerRoutingDescriptor;
+
+	private final DeveloperRoutingDescriptorCache descriptorCache;
+
+	// Baggage form of the configured descriptor, computed once since the bean never changes
+	private final String developerRoutingBaggage;
+
+	private final int debugSampleRate;
+
+	private final AtomicLong requestCount = new AtomicLong();
+
+	private final ConcurrentHashMap<String, HeaderRoute> headerRoutes = new ConcurrentHashMap<>();
+
+	/**
+	 * The outcome of parsing a DEVELOPER-ROUTE header value.
+	 */
+	private static final class HeaderRoute {
+
+		final String baggage;
+
+		final String error;
+
+		HeaderRoute(String baggage, String error) {
+			this.baggage = baggage;
+			this.error = error;
+		}
+	}
 	
 	DeveloperRoutingFilter(Tracer tracer, DeveloperRoutingDescriptor developerRoutingDescriptor) {
+		this(tracer, developerRoutingDescriptor, new DeveloperRoutingDescriptorCache(), 0);
+	}
+
+	DeveloperRoutingFilter(Tracer tracer, DeveloperRoutingDescriptor developerRoutingDescriptor,
+			DeveloperRoutingDescriptorCache descriptorCache, int debugSampleRate) {
 		log.info("Filter created, developer routing descriptor = {}",developerRoutingDescriptor);
 		this.tracer = tracer;
 		this.developerRoutingDescriptor = developerRoutingDescriptor;
-	}
-	
-	private String jsonVersionOfDeveloperRoutingDescriptor(DeveloperRoutingDescriptor drd) {
-		try {
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-			String json = mapper.writeValueAsString(drd);
-			// {"id":"Andy","routeConstraints":[{"serviceName":"b","metadataConstraints":{"foo":"bar"}}]}
-			return json;
-		} catch (JsonProcessingException e) {
-			throw new IllegalStateException(e);
-		}
+		this.descriptorCache = descriptorCache;
+		this.developerRoutingBaggage = developerRoutingDescriptor == null ? null
+				: descriptorCache.toBaggage(developerRoutingDescriptor);
+		this.debugSampleRate = debugSampleRate;
 	}
 
 	@Override
@@ -77,51 +122,81 @@ public class DeveloperRoutingFilter extends GenericFilterBean {
 		if (!(servletRequest instanceof HttpServletRequest) || !(servletResponse instanceof HttpServletResponse)) {
 			throw new ServletException("Filter just supports HTTP requests");
 		}
-		DeveloperRoutingDescriptor drd = this.developerRoutingDescriptor;
 		HttpServletRequest request = (HttpServletRequest) servletRequest;
 		HttpServletResponse response = (HttpServletResponse) servletResponse;
-		
-		String inputHeaderRoutingConfig = request.getHeader("DEVELOPER-ROUTE"); // service:key=value
-		
+
 		Span currentSpan = tracer.getCurrentSpan();
-		String devtoolsBaggage = currentSpan.getBaggageItem("devtools");
-		log.info("Incoming request has routing info? {}", devtoolsBaggage != null);
-
-		log.info("Current active span: "+currentSpan);
-
-		// If we don't have a developer routing descriptor but there is a header, build one from 
-		// the header
-		if (drd == null && inputHeaderRoutingConfig !=null) {
-			log.info("building developer routing descriptor from incoming header {}",inputHeaderRoutingConfig);
-			int colon = inputHeaderRoutingConfig.indexOf(":");
-			int equalsPos = inputHeaderRoutingConfig.indexOf("=");
-			drd = new DeveloperRoutingDescriptor();
-			Map<String,String> m = new HashMap<>();
-			m.put(inputHeaderRoutingConfig.substring(colon+1,equalsPos), inputHeaderRoutingConfig.substring(equalsPos+1));
-			drd.addRouteConfig(inputHeaderRoutingConfig.substring(0,colon), m);
+		if (currentSpan == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		// A configured descriptor wins, otherwise build one from the header if there is one
+		String baggage = this.developerRoutingBaggage;
+		String inputHeaderRoutingConfig = null;
+		if (baggage == null) {
+			inputHeaderRoutingConfig = request.getHeader(ROUTE_HEADER); // service:key=value
+			if (inputHeaderRoutingConfig != null) {
+				HeaderRoute route = routeFor(inputHeaderRoutingConfig);
+				if (route.error != null) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+							"Malformed " + ROUTE_HEADER + " header: " + route.error);
+					return;
+				}
+				baggage = route.baggage;
+			} else {
+				inputHeaderRoutingConfig = request.getHeader(ROUTE_ID_HEADER);
+				if (inputHeaderRoutingConfig != null) {
+					baggage = DeveloperRoutingDescriptorCodec.reference(inputHeaderRoutingConfig);
+				}
+			}
 		}
 
-		if (currentSpan !=null && drd != null) {
-			log.info("adding routing info to span {} {}",currentSpan,drd);
-			currentSpan.setBaggageItem("devtools",jsonVersionOfDeveloperRoutingDescriptor(drd));
+		if (baggage != null) {
+			currentSpan.setBaggageItem(BAGGAGE_KEY, baggage);
+		} else {
+			baggage = currentSpan.getBaggageItem(BAGGAGE_KEY);
 		}
 
-		// Tell the ribbon filter about the routing descriptor it should use to make decisions
-		if (currentSpan != null) {
-			String inflightDeveloperRoutingDescriptor = currentSpan.getBaggageItem("devtools");
-			log.info("attaching routing constraints to ribbon {}",inflightDeveloperRoutingDescriptor);
-			RibbonFilterContextHolder.getCurrentContext().add("devtools", inflightDeveloperRoutingDescriptor);
+		if (isSampled()) {
+			log.debug("span {} header {} routing {}", currentSpan, inputHeaderRoutingConfig, baggage);
+		}
+		if (baggage == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		// Tell the ribbon filter about the routing descriptor it should use to make decisions, and
+		// keep it with the request for code that continues the request on other threads. The
+		// thread's ribbon context is put back afterwards so the routing cannot leak into whatever
+		// the (pooled) thread handles next.
+		request.setAttribute(BAGGAGE_ATTRIBUTE, baggage);
+		try (DeveloperRoutingContext.Scope scope = DeveloperRoutingContext.of(baggage).open()) {
+			chain.doFilter(request, response);
 		}
-		chain.doFilter(request, response);
 	}
 
-//	private String toHeaderNames(Enumeration<String> headerNames) {
-//		StringBuilder s= new StringBuilder();
-//		while (headerNames.hasMoreElements()) {
-//			s.append(headerNames.nextElement());
-//			s.append(" ");
-//		}
-//		return s.toString().trim();
-//	}
-	
+	private HeaderRoute routeFor(String header) {
+		HeaderRoute route = headerRoutes.get(header);
+		if (route == null) {
+			try {
+				route = new HeaderRoute(descriptorCache.toBaggage(DeveloperRoutingDescriptorCodec.fromHeader(header)), null);
+			} catch (IllegalArgumentException e) {
+				// Just the first line, pattern syntax errors go on to point at the problem
+				String message = e.getMessage();
+				int newline = message == null ? -1 : message.indexOf('\n');
+				route = new HeaderRoute(null, newline == -1 ? message : message.substring(0, newline));
+			}
+			if (headerRoutes.size() >= MAX_MEMOIZED_HEADERS) {
+				headerRoutes.clear();
+			}
+			headerRoutes.put(header, route);
+		}
+		return route;
+	}
+
+	private boolean isSampled() {
+		return debugSampleRate > 0 && log.isDebugEnabled() && (requestCount.incrementAndGet() % debugSampleRate) == 0;
+	}
+
 }
\ No newline at end of file
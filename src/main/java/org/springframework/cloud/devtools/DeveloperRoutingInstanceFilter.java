@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.cloud.client.ServiceInstance;
+
+/**
+ * Applies developer routing to lists of {@link ServiceInstance}, the registry neutral view of
+ * service instances in Spring Cloud, so it works whatever the registry and whatever picks the
+ * instance afterwards. The rules are those of the {@link BaggageAwarePredicate}.
+ * <p>
+ * Decisions are cached per service and routing. Registries tend to hand out fresh instance
+ * objects on every lookup so a cached decision is reused when each instance has the same host,
+ * port and metadata map (by identity) as when it was made.
+ * <p>
+ * If a preferred zone is set then, after the routing constraints have been applied, instances
+ * in that zone (the <tt>zone</tt> metadata entry) are used when there are any. Metadata used
+ * for weighting by whatever picks from the list is passed through untouched.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingInstanceFilter {
+
+	private static final int MAX_CACHED_DECISIONS = 256;
+
+	// Fingerprint standing in for no routing at all
+	private static final Long NO_ROUTING = 0L;
+
+	private final DeveloperRoutingDescriptorCache descriptorCache;
+
+	private final DeveloperRoutingMetrics metrics;
+
+	private final String preferredZone;
+
+	// By descriptor fingerprint then service id
+	private final ConcurrentHashMap<Long, ConcurrentHashMap<String, Decision>> decisions = new ConcurrentHashMap<>();
+
+	/**
+	 * Which of the instances of a service were accepted, along with what identifies those instances.
+	 */
+	private static final class Decision {
+
+		final String[] hosts;
+
+		final int[] ports;
+
+		final Map<?, ?>[] metadata;
+
+		final BitSet accepted;
+
+		Decision(List<ServiceInstance> instances, BitSet accepted) {
+			int size = instances.size();
+			this.hosts = new String[size];
+			this.ports = new int[size];
+			this.metadata = new Map<?, ?>[size];
+			for (int i = 0; i < size; i++) {
+				ServiceInstance instance = instances.get(i);
+				hosts[i] = instance.getHost();
+				ports[i] = instance.getPort();
+				metadata[i] = instance.getMetadata();
+			}
+			this.accepted = accepted;
+		}
+
+		boolean appliesTo(List<ServiceInstance> instances) {
+			if (instances.size() != hosts.length) {
+				return false;
+			}
+			for (int i = 0; i < hosts.length; i++) {
+				ServiceInstance instance = instances.get(i);
+				if (instance.getMetadata() != metadata[i] || instance.getPort() != ports[i]
+						|| !hosts[i].equals(instance.getHost())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	public DeveloperRoutingInstanceFilter(DeveloperRoutingDescriptorCache descriptorCache) {
+		this(descriptorCache, DeveloperRoutingMetrics.NONE, null);
+	}
+
+	/**
+	 * @param preferredZone zone to prefer among eligible instances, may be null
+	 */
+	public DeveloperRoutingInstanceFilter(DeveloperRoutingDescriptorCache descriptorCache,
+			DeveloperRoutingMetrics metrics, String preferredZone) {
+		this.descriptorCache = descriptorCache;
+		this.metrics = metrics;
+		this.preferredZone = preferredZone;
+	}
+
+	/**
+	 * Filter instances according to the routing in effect on the current thread.
+	 */
+	public List<ServiceInstance> filter(String serviceId, List<ServiceInstance> instances) {
+		return filter(serviceId, instances, DeveloperRoutingContext.capture().getBaggage());
+	}
+
+	/**
+	 * @param serviceId the service the instances belong to
+	 * @param instances the candidates
+	 * @param baggage the routing to apply, as carried in the "devtools" baggage item, may be null
+	 * @return the instances that may be used
+	 */
+	public List<ServiceInstance> filter(String serviceId, List<ServiceInstance> instances, String baggage) {
+		if (instances == null || instances.isEmpty()) {
+			metrics.noServer(serviceId);
+			return instances;
+		}
+		DeveloperRoutingDescriptor drd = null;
+		if (baggage != null) {
+			drd = descriptorCache.get(baggage);
+			if (drd == null) {
+				// Unusable baggage, as with the predicate be lenient
+				metrics.routed(serviceId);
+				return instances;
+			}
+		}
+		Long fingerprint = drd == null ? NO_ROUTING : drd.fingerprintKey();
+		ConcurrentHashMap<String, Decision> byService = decisions.get(fingerprint);
+		if (byService == null) {
+			if (decisions.size() >= MAX_CACHED_DECISIONS) {
+				decisions.clear();
+			}
+			byService = new ConcurrentHashMap<>();
+			ConcurrentHashMap<String, Decision> raced = decisions.putIfAbsent(fingerprint, byService);
+			if (raced != null) {
+				byService = raced;
+			}
+		}
+		Decision decision = byService.get(serviceId);
+		if (decision == null || !decision.appliesTo(instances)) {
+			decision = new Decision(instances, decide(serviceId, instances, drd));
+			byService.put(serviceId, decision);
+		}
+		return select(serviceId, instances, decision.accepted);
+	}
+
+	private BitSet decide(String serviceId, List<ServiceInstance> instances, DeveloperRoutingDescriptor drd) {
+		BitSet accepted = new BitSet(instances.size());
+		RouteMatcher matcher = drd == null ? null : drd.matcher();
+		RouteMatcher.Constraint constraint = matcher == null ? null : matcher.constraintFor(serviceId);
+		for (int i = 0; i < instances.size(); i++) {
+			Map<String, String> metadata = instances.get(i).getMetadata();
+			if (constraint != null) {
+				if (constraint.matches(metadata)) {
+					metrics.serverAccepted(serviceId);
+					accepted.set(i);
+				} else {
+					metrics.serverRejected(serviceId);
+				}
+			} else if ((matcher == null || !matcher.hasConstraints()) && BaggageAwarePredicate.needsExplicitRouting(metadata)) {
+				metrics.explicitRoutingExcluded(serviceId);
+			} else {
+				metrics.defaultRouting(serviceId);
+				accepted.set(i);
+			}
+		}
+		return accepted;
+	}
+
+	private List<ServiceInstance> select(String serviceId, List<ServiceInstance> instances, BitSet accepted) {
+		int count = accepted.cardinality();
+		if (count == 0) {
+			metrics.noServer(serviceId);
+			return Collections.emptyList();
+		}
+		if (preferredZone != null) {
+			List<ServiceInstance> inZone = new ArrayList<>(count);
+			for (int i = accepted.nextSetBit(0); i >= 0; i = accepted.nextSetBit(i + 1)) {
+				if (preferredZone.equalsIgnoreCase(instances.get(i).getMetadata().get("zone"))) {
+					inZone.add(instances.get(i));
+				}
+			}
+			if (!inZone.isEmpty()) {
+				metrics.routed(serviceId);
+				return inZone;
+			}
+			metrics.fallback(serviceId);
+		} else {
+			metrics.routed(serviceId);
+		}
+		if (count == instances.size()) {
+			return instances;
+		}
+		List<ServiceInstance> result = new ArrayList<>(count);
+		for (int i = accepted.nextSetBit(0); i >= 0; i = accepted.nextSetBit(i + 1)) {
+			result.add(instances.get(i));
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+/**
+ * Records routing decisions through the actuator {@link CounterService} and
+ * {@link GaugeService}. Every call that picks a server, a choose() of the {@link BaggageAwareRule}
+ * or a filter() of the {@link DeveloperRoutingInstanceFilter}, counts exactly one outcome for the
+ * service:
+ * <ul>
+ * <li><tt>devtools.routing.routed.&lt;service&gt;</tt> calls given a server the routing in effect
+ * selects
+ * <li><tt>devtools.routing.fallback.&lt;service&gt;</tt> calls given a server the routing did not
+ * prefer, because all the ones it selected were saturated (rule) or none of them were in the
+ * preferred zone (instance filter)
+ * <li><tt>devtools.routing.no-server.&lt;service&gt;</tt> calls for which no server could be used
+ * </ul>
+ * The routing decided for a server list is cached, so servers are only examined when that list
+ * is rebuilt. What each one was found to be is then counted per service:
+ * <ul>
+ * <li><tt>devtools.routing.accepted.&lt;service&gt;</tt> servers that satisfied a route constraint
+ * <li><tt>devtools.routing.rejected.&lt;service&gt;</tt> servers that failed a route constraint
+ * <li><tt>devtools.routing.default.&lt;service&gt;</tt> servers accepted because no constraint applied
+ * <li><tt>devtools.routing.explicit-excluded.&lt;service&gt;</tt> servers skipped because they need
+ * explicit routing
+ * </ul>
+ * as is, per call, <tt>devtools.routing.saturated.&lt;service&gt;</tt> for servers skipped because
+ * the caller already has as many requests in flight to them as they accept.
+ * <p>
+ * Evaluating the predicate for a server while rebuilding is submitted as
+ * <tt>histogram.devtools.routing.rebuild.predicate</tt> (microseconds) and the whole rebuild as
+ * <tt>timer.devtools.routing.rebuild</tt> (milliseconds). With Dropwizard metrics on the
+ * classpath these become a real histogram and timer, otherwise they are reported as the most
+ * recent value.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingMetrics {
+
+	public static final DeveloperRoutingMetrics NONE = new DeveloperRoutingMetrics(null, null);
+
+	static final String PREFIX = "devtools.routing.";
+
+	private static final String REBUILD_PREDICATE_HISTOGRAM = "histogram." + PREFIX + "rebuild.predicate";
+
+	private static final String REBUILD_TIMER = "timer." + PREFIX + "rebuild";
+
+	private static final int ACCEPTED = 0, REJECTED = 1, DEFAULT = 2, EXPLICIT_EXCLUDED = 3, SATURATED = 4,
+			FALLBACK = 5, ROUTED = 6, NO_SERVER = 7;
+
+	private final CounterService counterService;
+
+	private final GaugeService gaugeService;
+
+	// Metric names per service, computed once
+	private final ConcurrentHashMap<String, String[]> names = new ConcurrentHashMap<>();
+
+	public DeveloperRoutingMetrics(CounterService counterService, GaugeService gaugeService) {
+		this.counterService = counterService;
+		this.gaugeService = gaugeService;
+	}
+
+	/**
+	 * @return true if latencies are being recorded, so worth measuring
+	 */
+	public boolean isTimingEnabled() {
+		return gaugeService != null;
+	}
+
+	public void serverAccepted(String serviceName) {
+		increment(serviceName, ACCEPTED);
+	}
+
+	public void serverRejected(String serviceName) {
+		increment(serviceName, REJECTED);
+	}
+
+	public void defaultRouting(String serviceName) {
+		increment(serviceName, DEFAULT);
+	}
+
+	public void explicitRoutingExcluded(String serviceName) {
+		increment(serviceName, EXPLICIT_EXCLUDED);
+	}
+
+	public void serverSaturated(String serviceName) {
+		increment(serviceName, SATURATED);
+	}
+
+	public void routed(String serviceName) {
+		increment(serviceName, ROUTED);
+	}
+
+	public void fallback(String serviceName) {
+		increment(serviceName, FALLBACK);
+	}
+
+	public void noServer(String serviceName) {
+		increment(serviceName, NO_SERVER);
+	}
+
+	public void rebuildPredicateEvaluated(long nanos) {
+		if (gaugeService != null) {
+			gaugeService.submit(REBUILD_PREDICATE_HISTOGRAM, nanos / 1000d);
+		}
+	}
+
+	public void rebuilt(long nanos) {
+		if (gaugeService != null) {
+			gaugeService.submit(REBUILD_TIMER, nanos / 1000000d);
+		}
+	}
+
+	private void increment(String serviceName, int kind) {
+		if (counterService == null) {
+			return;
+		}
+		String key = serviceName == null ? "unknown" : serviceName;
+		String[] serviceNames = names.get(key);
+		if (serviceNames == null) {
+			String service = key.toLowerCase(Locale.ENGLISH);
+			serviceNames = new String[] { PREFIX + "accepted." + service, PREFIX + "rejected." + service,
+					PREFIX + "default." + service, PREFIX + "explicit-excluded." + service,
+					PREFIX + "saturated." + service, PREFIX + "fallback." + service, PREFIX + "routed." + service,
+					PREFIX + "no-server." + service };
+			names.put(key, serviceNames);
+		}
+		counterService.increment(serviceNames[kind]);
+	}
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Tuning knobs for the developer routing support.
+ *
+ * @author Andy Clement
+ */
+@ConfigurationProperties("spring.cloud.devtools.routing")
+public class DeveloperRoutingProperties {
+
+	/**
+	 * Maximum number of distinct parsed routing descriptors to keep around.
+	 */
+	private int descriptorCacheSize = DeveloperRoutingDescriptorCache.DEFAULT_MAX_SIZE;
+
+	/**
+	 * Log routing diagnostics at debug level for one in every this many requests, 0 to disable.
+	 */
+	private int debugSampleRate = 0;
+
+	/**
+	 * How routing descriptors are encoded into the devtools baggage item. Every format is
+	 * accepted on input, so compact can be switched on once all services are upgraded. The
+	 * digest form only works when every service on the route already knows the full descriptor.
+	 */
+	private DeveloperRoutingDescriptorCodec.Format baggageFormat = DeveloperRoutingDescriptorCodec.Format.JSON;
+
+	/**
+	 * Zone to prefer among the instances developer routing allows, when routing through a
+	 * DiscoveryClient.
+	 */
+	private String preferredZone;
+
+	/**
+	 * Whether to apply developer routing to the instances returned by DiscoveryClient beans,
+	 * for registries and load balancers other than eureka and ribbon.
+	 */
+	private boolean filterDiscoveryClient = false;
+
+	/**
+	 * Whether to keep an index of eureka instance metadata that ribbon uses to answer route
+	 * constraints, worthwhile when routing among many instances.
+	 */
+	private boolean metadataIndex = false;
+
+	/**
+	 * File of routing descriptors to keep the descriptor registry in step with, so requests
+	 * can refer to them by id (with the DEVELOPER-ROUTE-ID header).
+	 */
+	private String registryFile;
+
+	/**
+	 * How often to check the registry file for changes, in milliseconds.
+	 */
+	private long registryRefreshInterval = 2000;
+
+	/**
+	 * How ribbon picks among the servers developer routing allows. Power of two choices
+	 * prefers the server with the lower moving average latency and fewer active requests.
+	 */
+	private BaggageAwareRule.SelectionMode selection = BaggageAwareRule.SelectionMode.ROUND_ROBIN;
+
+	/**
+	 * Time constant of the moving average server latency, in milliseconds.
+	 */
+	private long latencyDecay = BaggageAwareRule.DEFAULT_LATENCY_DECAY;
+
+	private final Admission admission = new Admission();
+
+	/**
+	 * Admission control for instances that need explicit routing, see
+	 * {@link DeveloperRoutingAdmissionFilter}.
+	 */
+	public static class Admission {
+
+		/**
+		 * Whether to limit the requests this instance accepts.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Requests handled at once, 0 for no limit.
+		 */
+		private int maxConcurrentRequests = 4;
+
+		/**
+		 * Sustained requests per second, 0 for no limit.
+		 */
+		private double requestsPerSecond = 20;
+
+		/**
+		 * Requests that may arrive together within the rate.
+		 */
+		private int burst = 10;
+
+		/**
+		 * Whether callers route to instances that do not need explicit routing when all the
+		 * instances a route constraint selects are saturated, rather than failing the call.
+		 */
+		private boolean fallback = true;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getMaxConcurrentRequests() {
+			return maxConcurrentRequests;
+		}
+
+		public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+			this.maxConcurrentRequests = maxConcurrentRequests;
+		}
+
+		public double getRequestsPerSecond() {
+			return requestsPerSecond;
+		}
+
+		public void setRequestsPerSecond(double requestsPerSecond) {
+			this.requestsPerSecond = requestsPerSecond;
+		}
+
+		public int getBurst() {
+			return burst;
+		}
+
+		public void setBurst(int burst) {
+			this.burst = burst;
+		}
+
+		public boolean isFallback() {
+			return fallback;
+		}
+
+		public void setFallback(boolean fallback) {
+			this.fallback = fallback;
+		}
+	}
+
+	public int getDescriptorCacheSize() {
+		return descriptorCacheSize;
+	}
+
+	public void setDescriptorCacheSize(int descriptorCacheSize) {
+		this.descriptorCacheSize = descriptorCacheSize;
+	}
+
+	public int getDebugSampleRate() {
+		return debugSampleRate;
+	}
+
+	public void setDebugSampleRate(int debugSampleRate) {
+		this.debugSampleRate = debugSampleRate;
+	}
+
+	public DeveloperRoutingDescriptorCodec.Format getBaggageFormat() {
+		return baggageFormat;
+	}
+
+	public void setBaggageFormat(DeveloperRoutingDescriptorCodec.Format baggageFormat) {
+		this.baggageFormat = baggageFormat;
+	}
+
+	public String getPreferredZone() {
+		return preferredZone;
+	}
+
+	public void setPreferredZone(String preferredZone) {
+		this.preferredZone = preferredZone;
+	}
+
+	public boolean isFilterDiscoveryClient() {
+		return filterDiscoveryClient;
+	}
+
+	public void setFilterDiscoveryClient(boolean filterDiscoveryClient) {
+		this.filterDiscoveryClient = filterDiscoveryClient;
+	}
+
+	public boolean isMetadataIndex() {
+		return metadataIndex;
+	}
+
+	public void setMetadataIndex(boolean metadataIndex) {
+		this.metadataIndex = metadataIndex;
+	}
+
+	public String getRegistryFile() {
+		return registryFile;
+	}
+
+	public void setRegistryFile(String registryFile) {
+		this.registryFile = registryFile;
+	}
+
+	public BaggageAwareRule.SelectionMode getSelection() {
+		return selection;
+	}
+
+	public void setSelection(BaggageAwareRule.SelectionMode selection) {
+		this.selection = selection;
+	}
+
+	public long getLatencyDecay() {
+		return latencyDecay;
+	}
+
+	public void setLatencyDecay(long latencyDecay) {
+		this.latencyDecay = latencyDecay;
+	}
+
+	public Admission getAdmission() {
+		return admission;
+	}
+
+	public long getRegistryRefreshInterval() {
+		return registryRefreshInterval;
+	}
+
+	public void setRegistryRefreshInterval(long registryRefreshInterval) {
+		this.registryRefreshInterval = registryRefreshInterval;
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Exposes the state of the routing descriptor cache and metadata index on the metrics endpoint.
+ * Baggage that could not be parsed shows up as <tt>devtools.routing.baggage.parse-failures</tt>.
+ * With admission control on, <tt>devtools.routing.admission.*</tt> shows what it let through and turned away.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingPublicMetrics implements PublicMetrics {
+
+	private final DeveloperRoutingDescriptorCache descriptorCache;
+
+	private final InstanceMetadataIndex metadataIndex;
+
+	private final DeveloperRoutingAdmissionFilter admissionFilter;
+
+	public DeveloperRoutingPublicMetrics(DeveloperRoutingDescriptorCache descriptorCache,
+			InstanceMetadataIndex metadataIndex) {
+		this(descriptorCache, metadataIndex, null);
+	}
+
+	/**
+	 * @param admissionFilter admission control for this instance, may be null
+	 */
+	public DeveloperRoutingPublicMetrics(DeveloperRoutingDescriptorCache descriptorCache,
+			InstanceMetadataIndex metadataIndex, DeveloperRoutingAdmissionFilter admissionFilter) {
+		this.descriptorCache = descriptorCache;
+		this.metadataIndex = metadataIndex;
+		this.admissionFilter = admissionFilter;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		String prefix = DeveloperRoutingMetrics.PREFIX;
+		metrics.add(new Metric<Integer>(prefix + "descriptor-cache.size", descriptorCache.size()));
+		metrics.add(new Metric<Integer>(prefix + "descriptor-cache.interned", descriptorCache.getInternedCount()));
+		metrics.add(new Metric<Long>(prefix + "descriptor-cache.hits", descriptorCache.getHits()));
+		metrics.add(new Metric<Long>(prefix + "descriptor-cache.misses", descriptorCache.getMisses()));
+		metrics.add(new Metric<Long>(prefix + "descriptor-cache.evictions", descriptorCache.getEvictions()));
+		metrics.add(new Metric<Long>(prefix + "baggage.parse-failures", descriptorCache.getParseFailures()));
+		metrics.add(new Metric<Long>(prefix + "baggage.unknown-digests", descriptorCache.getUnknownDigests()));
+		metrics.add(new Metric<Long>(prefix + "baggage.unknown-references", descriptorCache.getUnknownReferences()));
+		if (descriptorCache.getRegistry() != null) {
+			metrics.add(new Metric<Integer>(prefix + "registry.size", descriptorCache.getRegistry().size()));
+			metrics.add(new Metric<Long>(prefix + "registry.version", descriptorCache.getRegistry().getVersion()));
+		}
+		if (metadataIndex != null) {
+			metrics.add(new Metric<Integer>(prefix + "metadata-index.instances", metadataIndex.size()));
+		}
+		if (admissionFilter != null) {
+			metrics.add(new Metric<Integer>(prefix + "admission.in-flight", admissionFilter.getInFlight()));
+			metrics.add(new Metric<Long>(prefix + "admission.admitted", admissionFilter.getAdmitted()));
+			metrics.add(new Metric<Long>(prefix + "admission.rejected.concurrency", admissionFilter.getRejectedConcurrency()));
+			metrics.add(new Metric<Long>(prefix + "admission.rejected.rate", admissionFilter.getRejectedRate()));
+		}
+		return metrics;
+	}
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import org.springframework.boot.actuate.endpoint.mvc.AbstractNamedMvcEndpoint;
+import org.springframework.boot.actuate.endpoint.mvc.MvcEndpoint;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Actuator endpoint over the {@link DeveloperRoutingDescriptorRegistry} of this process.
+ * <ul>
+ * <li><tt>GET /devtoolsroutes</tt> lists the registered descriptors by id
+ * <li><tt>GET /devtoolsroutes/{id}</tt> shows one
+ * <li><tt>PUT /devtoolsroutes/{id}</tt> registers the descriptor in the body, in json or compact
+ * form, replacing any with that id
+ * <li><tt>DELETE /devtoolsroutes/{id}</tt> removes one
+ * </ul>
+ * Changes made here only apply to this process and are overwritten when a watched descriptor
+ * file changes. The endpoint is sensitive by default.
+ *
+ * @author Andy Clement
+ */
+@ConfigurationProperties(prefix = "endpoints.devtoolsroutes")
+public class DeveloperRoutingRegistryMvcEndpoint extends AbstractNamedMvcEndpoint {
+
+	private final DeveloperRoutingDescriptorRegistry registry;
+
+	private final DeveloperRoutingDescriptorCodec codec = new DeveloperRoutingDescriptorCodec();
+
+	public DeveloperRoutingRegistryMvcEndpoint(DeveloperRoutingDescriptorRegistry registry) {
+		super("devtoolsroutes", "/devtoolsroutes", true);
+		this.registry = registry;
+	}
+
+	@RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseBody
+	public Object descriptors() {
+		if (!isEnabled()) {
+			return MvcEndpoint.DISABLED_RESPONSE;
+		}
+		return registry.getDescriptors();
+	}
+
+	@RequestMapping(value = "/{id:.+}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseBody
+	public Object descriptor(@PathVariable String id) {
+		if (!isEnabled()) {
+			return MvcEndpoint.DISABLED_RESPONSE;
+		}
+		DeveloperRoutingDescriptor drd = registry.get(id);
+		if (drd == null) {
+			return ResponseEntity.notFound().build();
+		}
+		return drd;
+	}
+
+	@RequestMapping(value = "/{id:.+}", method = RequestMethod.PUT, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseBody
+	public Object register(@PathVariable String id, @RequestBody String body) {
+		if (!isEnabled()) {
+			return MvcEndpoint.DISABLED_RESPONSE;
+		}
+		DeveloperRoutingDescriptor drd;
+		try {
+			drd = codec.decode(body.trim());
+			if (drd == null) {
+				return ResponseEntity.badRequest().body("Digest and reference forms cannot be registered");
+			}
+			if (drd.getId() == null) {
+				drd.setId(id);
+			} else if (!drd.getId().equals(id)) {
+				return ResponseEntity.badRequest().body("Descriptor id " + drd.getId() + " does not match " + id);
+			}
+			registry.register(drd);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().body(e.getMessage());
+		}
+		return registry.get(id);
+	}
+
+	@RequestMapping(value = "/{id:.+}", method = RequestMethod.DELETE)
+	@ResponseBody
+	public Object unregister(@PathVariable String id) {
+		if (!isEnabled()) {
+			return MvcEndpoint.DISABLED_RESPONSE;
+		}
+		return new ResponseEntity<Void>(registry.unregister(id) ? HttpStatus.NO_CONTENT : HttpStatus.NOT_FOUND);
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.io.IOException;
+
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * Carries developer routing on calls made with a {@code RestTemplate}, as the
+ * <tt>baggage-devtools</tt> header sleuth reads on the receiving side. Sleuth only sends that
+ * header when there is a span with the baggage, which there is not for work started with
+ * {@link DeveloperRouting#with(DeveloperRoutingDescriptor, java.util.function.Supplier)}.
+ * <p>
+ * By default the routing in effect on the calling thread is used. An interceptor made for a
+ * particular routing, such as {@link DeveloperRouting#context(DeveloperRoutingDescriptor)} of a
+ * descriptor, always routes with that one, including the server choice made by a load balancer
+ * interceptor after it, which suits a {@code RestTemplate} dedicated to a pipeline.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingRequestInterceptor implements ClientHttpRequestInterceptor {
+
+	// Null to use the routing of the calling thread
+	private final DeveloperRoutingContext routing;
+
+	public DeveloperRoutingRequestInterceptor() {
+		this.routing = null;
+	}
+
+	/**
+	 * @param routing the routing for every call
+	 */
+	public DeveloperRoutingRequestInterceptor(DeveloperRoutingContext routing) {
+		if (routing == null) {
+			throw new IllegalArgumentException("Routing must not be null");
+		}
+		this.routing = routing;
+	}
+
+	@Override
+	public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution)
+			throws IOException {
+		DeveloperRoutingContext context = routing == null ? DeveloperRoutingContext.capture() : routing;
+		String baggage = context.getBaggage();
+		if (baggage == null) {
+			return execution.execute(request, body);
+		}
+		if (!request.getHeaders().containsKey(DeveloperRoutingAsyncRequestInterceptor.BAGGAGE_HEADER)) {
+			request.getHeaders().set(DeveloperRoutingAsyncRequestInterceptor.BAGGAGE_HEADER, baggage);
+		}
+		if (routing == null) {
+			return execution.execute(request, body);
+		}
+		try (DeveloperRoutingContext.Scope scope = routing.open()) {
+			return execution.execute(request, body);
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import org.springframework.core.task.TaskDecorator;
+
+/**
+ * Runs tasks given to a {@code ThreadPoolTaskExecutor} with the developer routing that was in
+ * effect when they were submitted. Set it with {@code setTaskDecorator} when defining the
+ * executor, for example the one behind {@code @Async}.
+ *
+ * @author Andy Clement
+ * @see DeveloperRoutingContext
+ */
+public class DeveloperRoutingTaskDecorator implements TaskDecorator {
+
+	@Override
+	public Runnable decorate(Runnable runnable) {
+		return DeveloperRoutingContext.capture().wrap(runnable);
+	}
+
+}
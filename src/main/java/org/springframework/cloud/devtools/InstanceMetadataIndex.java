@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.CacheRefreshedEvent;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaEvent;
+import com.netflix.discovery.EurekaEventListener;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
+
+/**
+ * Inverted index from (application, metadata key, metadata value) to the set of eureka
+ * instances carrying that metadata. Each instance is given a small integer slot so the sets
+ * are bitsets and a route constraint resolves to its eligible instances by intersecting them.
+ * <p>
+ * The index follows the eureka client's local registry copy. Eureka replaces the
+ * {@link InstanceInfo} objects of instances that changed in a delta, so on each cache refresh
+ * only instances whose object identity changed (or that appeared or vanished) are reindexed.
+ * Refreshes that leave the registry's apps hash code unchanged are skipped without scanning,
+ * apart from every {@link #MAX_SKIPPED_REFRESHES}th. An instance replaced meanwhile no longer
+ * matches its slot, so queries answer {@link #UNKNOWN} for it until the next scan rather than
+ * giving a stale answer. Posting bitsets are copied on write, readers never see a partially
+ * updated set.
+ *
+ * @author Andy Clement
+ */
+public class InstanceMetadataIndex implements EurekaEventListener, DisposableBean {
+
+	private static Logger log = LoggerFactory.getLogger(InstanceMetadataIndex.class);
+
+	/**
+	 * Results of {@link Query#test(DiscoveryEnabledServer)}.
+	 */
+	public static final int REJECT = 0, ACCEPT = 1, UNKNOWN = -1;
+
+	private final EurekaClient eurekaClient;
+
+	private final ConcurrentHashMap<String, Slot> slotsById = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<String, AppPostings> postingsByApp = new ConcurrentHashMap<>();
+
+	// Guards updates, queries do not lock
+	private final Object updateLock = new Object();
+
+	private final BitSet usedSlots = new BitSet();
+
+	// Scan at least this often even if the apps hash code does not change, it only reflects
+	// instance counts per status so misses instances replaced with new metadata
+	static final int MAX_SKIPPED_REFRESHES = 10;
+
+	// Apps hash code of the last snapshot scanned, guarded by updateLock
+	private String lastAppsHashCode;
+
+	private int skippedRefreshes;
+
+	private static final class Slot {
+
+		final int index;
+
+		final String id;
+
+		final InstanceInfo instance;
+
+		final String appName;
+
+		// Copied, the map inside an InstanceInfo is not guaranteed to stay the same
+		final Map<String, String> metadata;
+
+		Slot(int index, String id, InstanceInfo instance) {
+			this.index = index;
+			this.id = id;
+			this.instance = instance;
+			this.appName = instance.getAppName();
+			this.metadata = new HashMap<>(instance.getMetadata());
+		}
+	}
+
+	private static final class AppPostings {
+
+		volatile BitSet all = new BitSet();
+
+		final ConcurrentHashMap<String, ConcurrentHashMap<String, BitSet>> byKeyValue = new ConcurrentHashMap<>();
+	}
+
+	public InstanceMetadataIndex(EurekaClient eurekaClient) {
+		this.eurekaClient = eurekaClient;
+		if (eurekaClient != null) {
+			eurekaClient.registerEventListener(this);
+			update(eurekaClient.getApplications());
+		}
+	}
+
+	@Override
+	public void onEvent(EurekaEvent event) {
+		if (event instanceof CacheRefreshedEvent) {
+			update(eurekaClient.getApplications());
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (eurekaClient != null) {
+			eurekaClient.unregisterEventListener(this);
+		}
+	}
+
+	/**
+	 * Bring the index in line with a registry snapshot, reindexing only what changed.
+	 */
+	public void update(Applications applications) {
+		if (applications == null) {
+			return;
+		}
+		synchronized (updateLock) {
+			String appsHashCode = applications.getAppsHashCode();
+			if (appsHashCode != null && appsHashCode.equals(lastAppsHashCode)
+					&& skippedRefreshes < MAX_SKIPPED_REFRESHES) {
+				skippedRefreshes++;
+				return;
+			}
+			lastAppsHashCode = appsHashCode;
+			skippedRefreshes = 0;
+			int added = 0, removed = 0;
+			Set<String> seen = new HashSet<>();
+			for (Application application : applications.getRegisteredApplications()) {
+				for (InstanceInfo instance : application.getInstances()) {
+					String id = instance.getId();
+					seen.add(id);
+					Slot slot = slotsById.get(id);
+					if (slot != null && slot.instance == instance) {
+						continue;
+					}
+					if (slot != null) {
+						remove(slot);
+						removed++;
+					}
+					add(id, instance);
+					added++;
+				}
+			}
+			List<Slot> vanished = new ArrayList<>();
+			for (Slot slot : slotsById.values()) {
+				if (!seen.contains(slot.id)) {
+					vanished.add(slot);
+				}
+			}
+			for (Slot slot : vanished) {
+				remove(slot);
+				removed++;
+			}
+			if (log.isDebugEnabled() && (added != 0 || removed != 0)) {
+				log.debug("metadata index updated: {} indexed, {} removed, {} instances", added, removed, slotsById.size());
+			}
+		}
+	}
+
+	private void add(String id, InstanceInfo instance) {
+		int index = usedSlots.nextClearBit(0);
+		usedSlots.set(index);
+		Slot slot = new Slot(index, id, instance);
+		AppPostings postings = postingsByApp.get(slot.appName);
+		if (postings == null) {
+			postings = new AppPostings();
+			postingsByApp.put(slot.appName, postings);
+		}
+		postings.all = copyAndSet(postings.all, index, true);
+		for (Map.Entry<String, String> entry : slot.metadata.entrySet()) {
+			if (entry.getValue() == null) {
+				continue;
+			}
+			ConcurrentHashMap<String, BitSet> byValue = postings.byKeyValue.get(entry.getKey());
+			if (byValue == null) {
+				byValue = new ConcurrentHashMap<>();
+				postings.byKeyValue.put(entry.getKey(), byValue);
+			}
+			byValue.put(entry.getValue(), copyAndSet(byValue.get(entry.getValue()), index, true));
+		}
+		slotsById.put(id, slot);
+	}
+
+	private void remove(Slot slot) {
+		slotsById.remove(slot.id);
+		AppPostings postings = postingsByApp.get(slot.appName);
+		if (postings != null) {
+			postings.all = copyAndSet(postings.all, slot.index, false);
+			for (Map.Entry<String, String> entry : slot.metadata.entrySet()) {
+				ConcurrentHashMap<String, BitSet> byValue = postings.byKeyValue.get(entry.getKey());
+				if (byValue != null && entry.getValue() != null) {
+					BitSet bits = copyAndSet(byValue.get(entry.getValue()), slot.index, false);
+					if (bits.isEmpty()) {
+						byValue.remove(entry.getValue());
+					} else {
+						byValue.put(entry.getValue(), bits);
+					}
+				}
+			}
+		}
+		usedSlots.clear(slot.index);
+	}
+
+	private static BitSet copyAndSet(BitSet bits, int index, boolean value) {
+		BitSet copy = bits == null ? new BitSet() : (BitSet) bits.clone();
+		copy.set(index, value);
+		return copy;
+	}
+
+	/**
+	 * @return the instances of an application satisfying all the metadata constraints of a
+	 * route constraint, or null if the constraint cannot be answered from the index
+	 */
+	BitSet eligible(String appName, RouteMatcher.Constraint constraint) {
+		if (constraint.excludesExplicitRouting()) {
+			return null;
+		}
+		AppPostings postings = postingsByApp.get(appName);
+		if (postings == null) {
+			return null;
+		}
+		BitSet result = (BitSet) postings.all.clone();
+		for (int i = 0, max = constraint.getMetadataConstraintCount(); i < max && !result.isEmpty(); i++) {
+			String value = constraint.getMetadataValue(i);
+			if (value == null) {
+				return null;
+			}
+			ConcurrentHashMap<String, BitSet> byValue = postings.byKeyValue.get(constraint.getMetadataKey(i));
+			BitSet bits = byValue == null ? null : byValue.get(value);
+			if (bits == null) {
+				result.clear();
+			} else {
+				result.and(bits);
+			}
+		}
+		for (int i = 0, max = constraint.getMetadataPatternCount(); i < max && !result.isEmpty(); i++) {
+			// Union of the postings for every indexed value the pattern accepts
+			ConcurrentHashMap<String, BitSet> byValue = postings.byKeyValue.get(constraint.getMetadataPatternKey(i));
+			BitSet matching = new BitSet();
+			if (byValue != null) {
+				Pattern pattern = constraint.getMetadataPattern(i);
+				for (Map.Entry<String, BitSet> entry : byValue.entrySet()) {
+					if (PatternCache.matches(pattern, entry.getKey())) {
+						matching.or(entry.getValue());
+					}
+				}
+			}
+			result.and(matching);
+		}
+		return result;
+	}
+
+	public int size() {
+		return slotsById.size();
+	}
+
+	/**
+	 * @return the slots of the instances of an application, or null if it has none indexed. The
+	 * set itself, which is replaced rather than changed by later updates.
+	 */
+	BitSet instances(String appName) {
+		AppPostings postings = postingsByApp.get(appName);
+		return postings == null ? null : postings.all;
+	}
+
+	/**
+	 * Start a query answering whether servers satisfy the constraints of a routing descriptor.
+	 * Not thread safe, intended to be used for one pass over a server list.
+	 */
+	public Query query(RouteMatcher matcher) {
+		return new Query(matcher);
+	}
+
+	public final class Query {
+
+		private final RouteMatcher matcher;
+
+		private String lastAppName;
+
+		private BitSet lastEligible;
+
+		private Query(RouteMatcher matcher) {
+			this.matcher = matcher;
+		}
+
+		/**
+		 * @return {@link #ACCEPT} or {@link #REJECT} if the index can decide the server, otherwise
+		 * {@link #UNKNOWN} (no constraint applies to it or the index has not caught up with it yet)
+		 */
+		public int test(DiscoveryEnabledServer server) {
+			InstanceInfo instance = server.getInstanceInfo();
+			Slot slot = slotsById.get(instance.getId());
+			if (slot == null || slot.instance != instance) {
+				return UNKNOWN;
+			}
+			String appName = instance.getAppName();
+			if (!appName.equals(lastAppName)) {
+				RouteMatcher.Constraint constraint = matcher.constraintFor(appName);
+				lastEligible = constraint == null ? null : eligible(appName, constraint);
+				lastAppName = appName;
+			}
+			if (lastEligible == null) {
+				return UNKNOWN;
+			}
+			return lastEligible.get(slot.index) ? ACCEPT : REJECT;
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded LRU cache of compiled regular expressions and globs, shared by all route matchers so
+ * descriptors using the same patterns compile them only once.
+ * <p>
+ * Patterns can arrive in baggage from any caller, so they are only ever applied through
+ * {@link #matches(Pattern, String)}, which gives up on a match that examines the input more
+ * than {@link #MAX_MATCH_STEPS} times. A catastrophically backtracking expression then costs a
+ * bounded amount of work and simply does not match.
+ *
+ * @author Andy Clement
+ */
+final class PatternCache {
+
+	private static Logger log = LoggerFactory.getLogger(PatternCache.class);
+
+	private static final int MAX_SIZE = 256;
+
+	static final int MAX_MATCH_STEPS = 100000;
+
+	private static final MatchTooExpensive MATCH_TOO_EXPENSIVE = new MatchTooExpensive();
+
+	// Access ordered, guarded by itself
+	private static final Map<String, Pattern> patterns = new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	private PatternCache() {
+	}
+
+	/**
+	 * @throws java.util.regex.PatternSyntaxException if the regex is invalid
+	 */
+	static Pattern regex(String regex) {
+		return compile("r:", regex, 0);
+	}
+
+	/**
+	 * A case insensitive glob, where <tt>*</tt> matches any run of characters and <tt>?</tt>
+	 * any single character.
+	 */
+	static Pattern glob(String glob) {
+		return compile("g:", glob, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+	}
+
+	/**
+	 * @return true if the pattern matches all of the value, false if it does not or if finding
+	 * out takes more than {@link #MAX_MATCH_STEPS} steps
+	 */
+	static boolean matches(Pattern pattern, String value) {
+		try {
+			return pattern.matcher(new BoundedCharSequence(value, MAX_MATCH_STEPS)).matches();
+		} catch (MatchTooExpensive e) {
+			// Not a warning, any caller could otherwise flood the log
+			log.debug("Abandoned matching '{}' against pattern '{}', too expensive", value, pattern.pattern());
+			return false;
+		}
+	}
+
+	static boolean isGlob(String s) {
+		return s.indexOf('*') != -1 || s.indexOf('?') != -1;
+	}
+
+	private static Pattern compile(String kind, String source, int flags) {
+		String key = kind + source;
+		Pattern pattern;
+		synchronized (patterns) {
+			pattern = patterns.get(key);
+		}
+		if (pattern == null) {
+			pattern = Pattern.compile(kind.equals("g:") ? globToRegex(source) : source, flags);
+			synchronized (patterns) {
+				patterns.put(key, pattern);
+			}
+		}
+		return pattern;
+	}
+
+	/**
+	 * Input to the regex engine that counts the characters read, so the effort spent on one
+	 * match can be capped.
+	 */
+	private static final class BoundedCharSequence implements CharSequence {
+
+		private final String text;
+
+		private final int[] budget;
+
+		BoundedCharSequence(String text, int budget) {
+			this(text, new int[] { budget });
+		}
+
+		// Sub sequences share the budget
+		private BoundedCharSequence(String text, int[] budget) {
+			this.text = text;
+			this.budget = budget;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (--budget[0] < 0) {
+				throw MATCH_TOO_EXPENSIVE;
+			}
+			return text.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new BoundedCharSequence(text.substring(start, end), budget);
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+
+	private static final class MatchTooExpensive extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		MatchTooExpensive() {
+			super("Pattern match exceeded " + MAX_MATCH_STEPS + " steps", null, false, false);
+		}
+	}
+
+	private static String globToRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int literalStart = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char ch = glob.charAt(i);
+			if (ch == '*' || ch == '?') {
+				if (i > literalStart) {
+					regex.append(Pattern.quote(glob.substring(literalStart, i)));
+				}
+				regex.append(ch == '*' ? ".*" : ".");
+				literalStart = i + 1;
+			}
+		}
+		if (literalStart < glob.length()) {
+			regex.append(Pattern.quote(glob.substring(literalStart)));
+		}
+		return regex.toString();
+	}
+
+}
@@ -15,15 +15,18 @@
  */
 package org.springframework.cloud.devtools;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.boot.autoconfigure.AutoConfigureBefore;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cloud.netflix.ribbon.RibbonClientConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Scope;
 
+import com.netflix.discovery.EurekaClient;
 import com.netflix.niws.loadbalancer.DiscoveryEnabledNIWSServerList;
 
 import io.jmnarloch.spring.cloud.ribbon.rule.DiscoveryEnabledRule;
@@ -41,7 +44,23 @@ public class RibbonDiscoveryRuleAutoConfiguration {
     @Bean
     @ConditionalOnMissingBean
     @Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
-    public DiscoveryEnabledRule metadataAwareRule() {
-        return new BaggageAwareRule(); 
+    public DiscoveryEnabledRule metadataAwareRule(DeveloperRoutingDescriptorCache descriptorCache,
+    		DeveloperRoutingMetrics metrics, ObjectProvider<InstanceMetadataIndex> metadataIndex,
+    		ObjectProvider<DeveloperRoutingProperties> properties) {
+        BaggageAwareRule rule = new BaggageAwareRule(new BaggageAwarePredicate(descriptorCache, metrics), metadataIndex.getIfAvailable());
+        DeveloperRoutingProperties routingProperties = properties.getIfAvailable();
+        if (routingProperties != null) {
+        	rule.setSaturationFallback(routingProperties.getAdmission().isFallback());
+        	rule.setSelectionMode(routingProperties.getSelection());
+        	rule.setLatencyDecay(routingProperties.getLatencyDecay());
+        }
+        return rule;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty("spring.cloud.devtools.routing.metadata-index")
+    public InstanceMetadataIndex instanceMetadataIndex(ObjectProvider<EurekaClient> eurekaClient) {
+    	return new InstanceMetadataIndex(eurekaClient.getIfAvailable());
     }
 }
\ No newline at end of file
@@ -0,0 +1,526 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+import org.springframework.cloud.devtools.DeveloperRoutingDescriptor.RouteConstraint;
+
+/**
+ * Immutable, precompiled form of the route constraints in a {@link DeveloperRoutingDescriptor}.
+ * Only the first constraint that applies to a service is ever consulted so compilation keeps
+ * just that one per service, indexed by case insensitive service name in a small open addressed
+ * table. Metadata constraints are flattened into parallel key/value arrays. Looking up and
+ * checking a server does not allocate.
+ * <p>
+ * When the first constraint for a service carries a weight, it and any further weighted
+ * constraints for the service form a {@link Split}: each request to the service is routed by
+ * one of them, chosen in proportion to the weights. Weights are percentages, the remainder
+ * goes to the next unweighted constraint for the service or, if there isn't one, to default
+ * routing (which avoids instances needing explicit routing). Weights adding up to more than 100
+ * are rejected when the matcher is built. Where no choice is made, for
+ * example by a plain predicate, the remainder applies.
+ * <p>
+ * Service names containing <tt>*</tt> or <tt>?</tt> are case insensitive globs, consulted in
+ * order when a service has no constraint of its own (which is only kept if no earlier glob
+ * covers it). Which glob governs a service is remembered. Metadata patterns are regular
+ * expressions values must match in full. All patterns are compiled once, when the matcher is
+ * built, through a shared cache. Weights on glob constraints are ignored.
+ *
+ * @author Andy Clement
+ */
+public final class RouteMatcher {
+
+	private static final String[] NO_STRINGS = new String[0];
+
+	private static final Pattern[] NO_PATTERNS = new Pattern[0];
+
+	private static final Constraint[] NO_CONSTRAINTS = new Constraint[0];
+
+	private static final int MAX_GLOB_RESOLUTIONS = 256;
+
+	// Marks a service no glob applies to
+	private static final Constraint NO_GLOB = new Constraint("");
+
+	private final Constraint[] table;
+
+	private final int mask;
+
+	// Constraint with no service name, applies to any service without an earlier specific constraint
+	private final Constraint wildcard;
+
+	private final boolean hasConstraints;
+
+	private final boolean hasSplits;
+
+	// Constraints with a glob service name, in order
+	private final Constraint[] globs;
+
+	// Service name to the glob constraint governing it, or NO_GLOB
+	private final ConcurrentHashMap<String, Constraint> globResolutions;
+
+	/**
+	 * A compiled route constraint.
+	 */
+	public static final class Constraint {
+
+		private final String serviceName;
+
+		private final int hash;
+
+		private final String[] keys;
+
+		private final String[] values;
+
+		// Non null if the service name is a glob
+		private final Pattern servicePattern;
+
+		private final String[] patternKeys;
+
+		private final Pattern[] patterns;
+
+		// Remainder of a split without an unweighted constraint, behaves like default routing
+		private final boolean excludeExplicitRouting;
+
+		// Set on the constraint standing for the remainder of a split
+		private Split split;
+
+		private Constraint(String serviceName) {
+			this.serviceName = serviceName;
+			this.hash = hashIgnoreCase(serviceName);
+			this.keys = NO_STRINGS;
+			this.values = NO_STRINGS;
+			this.servicePattern = null;
+			this.patternKeys = NO_STRINGS;
+			this.patterns = NO_PATTERNS;
+			this.excludeExplicitRouting = true;
+		}
+
+		Constraint(RouteConstraint rc) {
+			this.excludeExplicitRouting = false;
+			this.serviceName = rc.getServiceName();
+			this.hash = serviceName == null ? 0 : hashIgnoreCase(serviceName);
+			Map<String, String> metadataConstraints = rc.getMetadataConstraints();
+			if (metadataConstraints == null || metadataConstraints.isEmpty()) {
+				this.keys = NO_STRINGS;
+				this.values = NO_STRINGS;
+			} else {
+				this.keys = new String[metadataConstraints.size()];
+				this.values = new String[metadataConstraints.size()];
+				int i = 0;
+				for (Map.Entry<String, String> entry : metadataConstraints.entrySet()) {
+					keys[i] = entry.getKey();
+					values[i] = entry.getValue();
+					i++;
+				}
+			}
+			this.servicePattern = (serviceName != null && PatternCache.isGlob(serviceName)) ? PatternCache.glob(serviceName)
+					: null;
+			Map<String, String> metadataPatterns = rc.getMetadataPatterns();
+			if (metadataPatterns == null || metadataPatterns.isEmpty()) {
+				this.patternKeys = NO_STRINGS;
+				this.patterns = NO_PATTERNS;
+			} else {
+				this.patternKeys = new String[metadataPatterns.size()];
+				this.patterns = new Pattern[metadataPatterns.size()];
+				int i = 0;
+				for (Map.Entry<String, String> entry : metadataPatterns.entrySet()) {
+					if (entry.getValue() == null) {
+						throw new IllegalArgumentException("Missing pattern for metadata key " + entry.getKey());
+					}
+					patternKeys[i] = entry.getKey();
+					patterns[i] = PatternCache.regex(entry.getValue());
+					i++;
+				}
+			}
+		}
+
+		/**
+		 * @return true if all the metadata constraints are satisfied by the supplied metadata
+		 */
+		public boolean matches(Map<String, String> metadata) {
+			if (excludeExplicitRouting && BaggageAwarePredicate.needsExplicitRouting(metadata)) {
+				return false;
+			}
+			for (int i = 0; i < keys.length; i++) {
+				String actual = metadata.get(keys[i]);
+				if (values[i] == null) {
+					if (actual != null || !metadata.containsKey(keys[i])) {
+						return false;
+					}
+				} else if (!values[i].equals(actual)) {
+					return false;
+				}
+			}
+			for (int i = 0; i < patterns.length; i++) {
+				String actual = metadata.get(patternKeys[i]);
+				if (actual == null || !PatternCache.matches(patterns[i], actual)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public String getServiceName() {
+			return serviceName;
+		}
+
+		int getMetadataConstraintCount() {
+			return keys.length;
+		}
+
+		String getMetadataKey(int i) {
+			return keys[i];
+		}
+
+		String getMetadataValue(int i) {
+			return values[i];
+		}
+
+		int getMetadataPatternCount() {
+			return patterns.length;
+		}
+
+		String getMetadataPatternKey(int i) {
+			return patternKeys[i];
+		}
+
+		Pattern getMetadataPattern(int i) {
+			return patterns[i];
+		}
+
+		/**
+		 * @return true if this constraint does more than check metadata values
+		 */
+		boolean excludesExplicitRouting() {
+			return excludeExplicitRouting;
+		}
+
+		public String toString() {
+			StringBuilder s = new StringBuilder();
+			if (excludeExplicitRouting) {
+				return s.append(serviceName).append(":default").toString();
+			}
+			s.append(serviceName).append(":{");
+			for (int i = 0; i < keys.length; i++) {
+				if (i > 0) {
+					s.append(", ");
+				}
+				s.append(keys[i]).append('=').append(values[i]);
+			}
+			for (int i = 0; i < patterns.length; i++) {
+				if (i > 0 || keys.length > 0) {
+					s.append(", ");
+				}
+				s.append(patternKeys[i]).append("=~").append(patterns[i].pattern());
+			}
+			return s.append('}').toString();
+		}
+	}
+
+	RouteMatcher(RouteConstraint[] routeConstraints) {
+		int count = routeConstraints == null ? 0 : routeConstraints.length;
+		this.hasConstraints = count != 0;
+		int capacity = 2;
+		while (capacity < count * 2) {
+			capacity <<= 1;
+		}
+		this.table = new Constraint[capacity];
+		this.mask = capacity - 1;
+		Constraint wildcard = null;
+		List<Constraint> globs = null;
+		List<Constraint> splitRemainders = null;
+		List<List<RouteConstraint>> splitOptions = null;
+		for (int i = 0; i < count; i++) {
+			RouteConstraint rc = routeConstraints[i];
+			if (rc.getServiceName() == null) {
+				if (wildcard == null) {
+					wildcard = new Constraint(rc);
+				}
+			} else if (wildcard == null && PatternCache.isGlob(rc.getServiceName())) {
+				if (globs == null) {
+					globs = new ArrayList<>();
+				}
+				globs.add(new Constraint(rc));
+			} else if (wildcard == null && find(rc.getServiceName()) == null && !coveredBy(globs, rc.getServiceName())) {
+				// Anything after the wildcard or repeating an earlier service is unreachable
+				if (rc.getWeight() == 0) {
+					insert(new Constraint(rc));
+					continue;
+				}
+				List<RouteConstraint> options = new ArrayList<>();
+				Constraint remainder = null;
+				for (int j = i; j < count && remainder == null; j++) {
+					RouteConstraint other = routeConstraints[j];
+					if (other.getServiceName() != null && other.getServiceName().equalsIgnoreCase(rc.getServiceName())) {
+						if (other.getWeight() > 0) {
+							options.add(other);
+						} else {
+							remainder = new Constraint(other);
+						}
+					}
+				}
+				if (remainder == null) {
+					remainder = new Constraint(rc.getServiceName());
+				}
+				insert(remainder);
+				if (splitRemainders == null) {
+					splitRemainders = new ArrayList<>();
+					splitOptions = new ArrayList<>();
+				}
+				splitRemainders.add(remainder);
+				splitOptions.add(options);
+			}
+		}
+		this.wildcard = wildcard;
+		this.globs = globs == null ? NO_CONSTRAINTS : globs.toArray(new Constraint[globs.size()]);
+		this.globResolutions = globs == null ? null : new ConcurrentHashMap<String, Constraint>();
+		this.hasSplits = splitRemainders != null;
+		// Now the table is complete the variants of each split can be made from it
+		for (int i = 0; hasSplits && i < splitRemainders.size(); i++) {
+			Constraint remainder = splitRemainders.get(i);
+			List<RouteConstraint> options = splitOptions.get(i);
+			int total = 0;
+			for (RouteConstraint option : options) {
+				total += option.getWeight();
+			}
+			if (total > 100) {
+				throw new IllegalArgumentException("Route constraint weights for " + remainder.getServiceName()
+						+ " add up to " + total + " which is more than 100");
+			}
+			int outcomes = options.size() + (total < 100 ? 1 : 0);
+			RouteMatcher[] variants = new RouteMatcher[outcomes];
+			int[] weights = new int[outcomes];
+			for (int o = 0; o < options.size(); o++) {
+				variants[o] = new RouteMatcher(this, new Constraint(options.get(o)));
+				weights[o] = options.get(o).getWeight();
+			}
+			if (total < 100) {
+				variants[outcomes - 1] = this;
+				weights[outcomes - 1] = 100 - total;
+			}
+			remainder.split = new Split(variants, weights);
+		}
+	}
+
+	/**
+	 * Copy of a matcher with the constraint for one service replaced.
+	 */
+	private RouteMatcher(RouteMatcher base, Constraint replacement) {
+		this.table = base.table.clone();
+		this.mask = base.mask;
+		this.wildcard = base.wildcard;
+		this.hasConstraints = base.hasConstraints;
+		this.hasSplits = false;
+		this.globs = base.globs;
+		this.globResolutions = base.globResolutions;
+		int index = spread(replacement.hash) & mask;
+		while (!(table[index].hash == replacement.hash && table[index].serviceName.equalsIgnoreCase(replacement.serviceName))) {
+			index = (index + 1) & mask;
+		}
+		table[index] = replacement;
+	}
+
+	/**
+	 * A weighted choice between ways of routing to one service, made in constant time with
+	 * Vose's alias method.
+	 */
+	public static final class Split {
+
+		private final RouteMatcher[] variants;
+
+		private final double[] probability;
+
+		private final int[] alias;
+
+		Split(RouteMatcher[] variants, int[] weights) {
+			int n = weights.length;
+			this.variants = variants;
+			this.probability = new double[n];
+			this.alias = new int[n];
+			long total = 0;
+			for (int weight : weights) {
+				total += weight;
+			}
+			double[] scaled = new double[n];
+			int[] small = new int[n];
+			int[] large = new int[n];
+			int smallCount = 0, largeCount = 0;
+			for (int i = 0; i < n; i++) {
+				scaled[i] = weights[i] * (double) n / total;
+				if (scaled[i] < 1.0) {
+					small[smallCount++] = i;
+				} else {
+					large[largeCount++] = i;
+				}
+			}
+			while (smallCount > 0 && largeCount > 0) {
+				int less = small[--smallCount];
+				int more = large[--largeCount];
+				probability[less] = scaled[less];
+				alias[less] = more;
+				scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+				if (scaled[more] < 1.0) {
+					small[smallCount++] = more;
+				} else {
+					large[largeCount++] = more;
+				}
+			}
+			while (largeCount > 0) {
+				probability[large[--largeCount]] = 1.0;
+			}
+			while (smallCount > 0) {
+				// Only reachable through rounding error
+				probability[small[--smallCount]] = 1.0;
+			}
+		}
+
+		/**
+		 * @return the index of a randomly chosen outcome, distributed according to the weights
+		 */
+		public int choose() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int i = random.nextInt(probability.length);
+			return random.nextDouble() < probability[i] ? i : alias[i];
+		}
+
+		public int size() {
+			return variants.length;
+		}
+
+		/**
+		 * @return the matcher that routes the way the given outcome says
+		 */
+		public RouteMatcher variant(int outcome) {
+			return variants[outcome];
+		}
+	}
+
+	/**
+	 * @param serviceName the name of the service (case insensitive)
+	 * @return the weighted split governing the service, or null if its routing is not weighted
+	 */
+	public Split splitFor(String serviceName) {
+		if (!hasSplits || serviceName == null) {
+			return null;
+		}
+		Constraint c = find(serviceName);
+		return c == null ? null : c.split;
+	}
+
+	/**
+	 * @return true if routing to any service is split by weight
+	 */
+	public boolean hasSplits() {
+		return hasSplits;
+	}
+
+	/**
+	 * @param serviceName the name of the service (case insensitive)
+	 * @return the constraint that governs the service or null if there isn't one
+	 */
+	public Constraint constraintFor(String serviceName) {
+		if (serviceName != null) {
+			Constraint c = find(serviceName);
+			if (c != null) {
+				return c;
+			}
+			if (globResolutions != null) {
+				c = findGlob(serviceName);
+				if (c != null) {
+					return c;
+				}
+			}
+		}
+		return wildcard;
+	}
+
+	private Constraint findGlob(String serviceName) {
+		Constraint c = globResolutions.get(serviceName);
+		if (c == null) {
+			c = NO_GLOB;
+			for (Constraint glob : globs) {
+				if (PatternCache.matches(glob.servicePattern, serviceName)) {
+					c = glob;
+					break;
+				}
+			}
+			if (globResolutions.size() >= MAX_GLOB_RESOLUTIONS) {
+				globResolutions.clear();
+			}
+			globResolutions.put(serviceName, c);
+		}
+		return c == NO_GLOB ? null : c;
+	}
+
+	private static boolean coveredBy(List<Constraint> globs, String serviceName) {
+		if (globs != null) {
+			for (Constraint glob : globs) {
+				if (PatternCache.matches(glob.servicePattern, serviceName)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the descriptor this was compiled from had any route constraints at all
+	 */
+	public boolean hasConstraints() {
+		return hasConstraints;
+	}
+
+	private Constraint find(String serviceName) {
+		int hash = hashIgnoreCase(serviceName);
+		int index = spread(hash) & mask;
+		Constraint c;
+		while ((c = table[index]) != null) {
+			if (c.hash == hash && c.serviceName.equalsIgnoreCase(serviceName)) {
+				return c;
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+
+	private void insert(Constraint c) {
+		int index = spread(c.hash) & mask;
+		while (table[index] != null) {
+			index = (index + 1) & mask;
+		}
+		table[index] = c;
+	}
+
+	// Consistent with String.equalsIgnoreCase
+	private static int hashIgnoreCase(String s) {
+		int h = 0;
+		for (int i = 0, max = s.length(); i < max; i++) {
+			h = 31 * h + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+		}
+		return h;
+	}
+
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+
+}
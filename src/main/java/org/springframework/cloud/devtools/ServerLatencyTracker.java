@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.netflix.loadbalancer.Server;
+import com.netflix.loadbalancer.ServerStats;
+
+/**
+ * Exponentially weighted moving average of each server's response time, derived from what ribbon
+ * records in {@link ServerStats}. Those only offer a mean over all requests so far, so each
+ * update works out the mean of the requests completed since the previous update from the change
+ * in request count and total time, and folds it in with a weight that depends on how long ago
+ * the previous update was: a sample replaces half of the average after <tt>decay * ln 2</tt>.
+ * <p>
+ * The cost of a server is its latency scaled by the requests currently active on it, so a server
+ * that is slow or busy costs more. A server with requests outstanding but none completing is
+ * taken to be at least as slow as the time since it last completed one (or since it became
+ * busy), so the cost of a server that has hung keeps growing. A server nothing has completed on
+ * yet is assumed to be typical, its latency is the moving average over all servers.
+ *
+ * @author Andy Clement
+ */
+class ServerLatencyTracker {
+
+	private static final int MAX_TRACKED_SERVERS = 1024;
+
+	// Latency assumed before anything has completed anywhere, so active requests still count
+	private static final double INITIAL_TYPICAL_LATENCY = 1.0;
+
+	// System.nanoTime() can be any value, zero included, so 'never' is kept apart from it
+	private static final long NEVER = Long.MIN_VALUE;
+
+	private final double decayNanos;
+
+	// Keyed by server id (host:port) as ribbon creates new server objects on refresh
+	private final ConcurrentHashMap<String, Latency> latencies = new ConcurrentHashMap<>();
+
+	// Moving average over all servers, updates race harmlessly
+	private volatile double typicalLatency = INITIAL_TYPICAL_LATENCY;
+
+	private volatile long typicalUpdated = NEVER;
+
+	private final class Latency {
+
+		long requests;
+
+		double totalMillis;
+
+		long updated = NEVER;
+
+		double average;
+
+		// When a request last completed, or when requests became outstanding after none were
+		long progress;
+
+		int active;
+
+		/**
+		 * @return the latency to assume for the server in milliseconds
+		 */
+		synchronized double update(ServerStats stats, long now) {
+			long count = stats.getTotalRequestsCount();
+			int activeNow = stats.getActiveRequestsCount();
+			if (count > requests) {
+				double total = stats.getResponseTimeAvg() * count;
+				double sample = (total - totalMillis) / (count - requests);
+				if (updated == NEVER) {
+					average = sample;
+				} else {
+					average += weight(now, updated) * (sample - average);
+				}
+				observed(sample, now);
+				requests = count;
+				totalMillis = total;
+				updated = now;
+				progress = now;
+			} else if (activeNow > 0 && active == 0) {
+				progress = now;
+			}
+			active = activeNow;
+			double latency = updated == NEVER ? typicalLatency : average;
+			if (activeNow > 0) {
+				latency = Math.max(latency, (now - progress) / 1e6);
+			}
+			return latency;
+		}
+	}
+
+	/**
+	 * @param decayMillis time constant of the moving average in milliseconds
+	 */
+	ServerLatencyTracker(long decayMillis) {
+		if (decayMillis <= 0) {
+			throw new IllegalArgumentException("Latency decay must be positive but was " + decayMillis);
+		}
+		this.decayNanos = TimeUnit.MILLISECONDS.toNanos(decayMillis);
+	}
+
+	private double weight(long now, long then) {
+		return 1 - Math.exp(-(now - then) / decayNanos);
+	}
+
+	private void observed(double sample, long now) {
+		long then = typicalUpdated;
+		typicalLatency = then == NEVER ? sample : typicalLatency + weight(now, then) * (sample - typicalLatency);
+		typicalUpdated = now;
+	}
+
+	/**
+	 * @return the response time to assume for a server in milliseconds: its moving average (or
+	 * the typical one if none of its requests have completed), raised to the time its outstanding
+	 * requests have been waiting if they are not completing
+	 */
+	double latency(Server server, ServerStats stats) {
+		return latency(server, stats, System.nanoTime());
+	}
+
+	double latency(Server server, ServerStats stats, long now) {
+		Latency latency = latencies.get(server.getId());
+		if (latency == null) {
+			if (latencies.size() >= MAX_TRACKED_SERVERS) {
+				latencies.clear();
+			}
+			latency = new Latency();
+			Latency raced = latencies.putIfAbsent(server.getId(), latency);
+			if (raced != null) {
+				latency = raced;
+			}
+		}
+		return latency.update(stats, now);
+	}
+
+	double cost(Server server, ServerStats stats) {
+		return cost(server, stats, System.nanoTime());
+	}
+
+	double cost(Server server, ServerStats stats, long now) {
+		return latency(server, stats, now) * (stats.getActiveRequestsCount() + 1);
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Works out how to ssh into instance 0 of a CF app, the same way {@code cf ssh} does, using the
+ * login state the cf CLI keeps in {@code ~/.cf/config.json} (or {@code $CF_HOME/.cf/config.json}).
+ * The ssh user is {@code cf:<app-guid>/0} and the password a one time code from the UAA. The
+ * endpoint carries the host key fingerprint CF publishes, so the code is only ever sent to the
+ * genuine CF ssh proxy.
+ *
+ * @author Andy Clement
+ */
+public class CloudFoundrySshCredentials {
+
+	static final int DEFAULT_TIMEOUT = 30000;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final File cfConfig;
+
+	private int timeoutMillis = DEFAULT_TIMEOUT;
+
+	public CloudFoundrySshCredentials() {
+		this(defaultConfigFile());
+	}
+
+	public CloudFoundrySshCredentials(File cfConfig) {
+		this.cfConfig = cfConfig;
+	}
+
+	/**
+	 * @param timeoutMillis connect and read timeout for the calls to Cloud Foundry and the UAA
+	 */
+	public void setTimeout(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	static File defaultConfigFile() {
+		String cfHome = System.getenv("CF_HOME");
+		return new File(cfHome != null ? cfHome : System.getProperty("user.home"), ".cf/config.json");
+	}
+
+	public SshEndpoint forApp(String appName) throws IOException {
+		if (!cfConfig.exists()) {
+			throw new IOException("No cf CLI configuration at " + cfConfig + ", run 'cf login'");
+		}
+		JsonNode config = mapper.readTree(cfConfig);
+		String target = config.path("Target").asText();
+		String accessToken = config.path("AccessToken").asText();
+		String spaceGuid = config.path("SpaceFields").path("GUID").asText();
+		if (target.isEmpty() || accessToken.isEmpty() || spaceGuid.isEmpty()) {
+			throw new IOException("Not logged in to Cloud Foundry or no space targeted, run 'cf login'");
+		}
+		JsonNode info = get(target + "/v2/info", null);
+		String sshEndpoint = info.path("app_ssh_endpoint").asText();
+		String sshOAuthClient = info.path("app_ssh_oauth_client").asText();
+		String uaa = info.path("token_endpoint").asText();
+		String hostKeyFingerprint = info.path("app_ssh_host_key_fingerprint").asText();
+		if (hostKeyFingerprint.isEmpty()) {
+			throw new IOException("Cloud Foundry at " + target + " does not publish an app ssh host key fingerprint");
+		}
+		JsonNode apps = get(target + "/v2/spaces/" + spaceGuid + "/apps?q=" + URLEncoder.encode("name:" + appName, "UTF-8"),
+				accessToken);
+		String appGuid = apps.path("resources").path(0).path("metadata").path("guid").asText();
+		if (appGuid.isEmpty()) {
+			throw new IOException("App '" + appName + "' not found in the targeted space");
+		}
+		int colon = sshEndpoint.lastIndexOf(':');
+		if (colon == -1) {
+			throw new IOException("Unexpected app ssh endpoint '" + sshEndpoint + "'");
+		}
+		return new SshEndpoint(sshEndpoint.substring(0, colon), Integer.parseInt(sshEndpoint.substring(colon + 1)),
+				"cf:" + appGuid + "/0", sshCode(uaa, sshOAuthClient, accessToken), hostKeyFingerprint);
+	}
+
+	/**
+	 * Equivalent of {@code cf ssh-code}, the code arrives in the redirect the UAA sends back.
+	 */
+	private String sshCode(String uaa, String sshOAuthClient, String accessToken) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(uaa + "/oauth/authorize?response_type=code&client_id="
+				+ URLEncoder.encode(sshOAuthClient, "UTF-8")).openConnection();
+		setTimeouts(connection);
+		connection.setInstanceFollowRedirects(false);
+		connection.setRequestProperty("Authorization", accessToken);
+		try {
+			int status = connection.getResponseCode();
+			checkAuthorized(status);
+			String location = connection.getHeaderField("Location");
+			int code = location == null ? -1 : location.indexOf("code=");
+			if (status != HttpURLConnection.HTTP_MOVED_TEMP || code == -1) {
+				throw new IOException("Unable to obtain ssh code from " + uaa + " (status " + status + ")");
+			}
+			int end = location.indexOf('&', code);
+			return location.substring(code + 5, end == -1 ? location.length() : end);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private JsonNode get(String url, String accessToken) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		setTimeouts(connection);
+		connection.setRequestProperty("Accept", "application/json");
+		if (accessToken != null) {
+			connection.setRequestProperty("Authorization", accessToken);
+		}
+		try {
+			int status = connection.getResponseCode();
+			checkAuthorized(status);
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("GET " + url + " returned " + status);
+			}
+			try (InputStream in = connection.getInputStream()) {
+				return mapper.readTree(in);
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private void setTimeouts(HttpURLConnection connection) {
+		connection.setConnectTimeout(timeoutMillis);
+		connection.setReadTimeout(timeoutMillis);
+	}
+
+	private static void checkAuthorized(int status) throws IOException {
+		if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+			throw new IOException("Cloud Foundry rejected the cf CLI access token, run any cf command to refresh it");
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.net.SocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Base64;
+
+import org.apache.sshd.client.keyverifier.ServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accepts only the server key with a particular fingerprint, as {@code cf ssh} checks the key of
+ * the CF ssh proxy against the {@code app_ssh_host_key_fingerprint} from {@code /v2/info}. The
+ * form of the fingerprint is recognized by its length, like the cf CLI does:
+ * <ul>
+ * <li>43 characters: unpadded base64 of the SHA-256 of the key (optionally prefixed
+ * <tt>SHA256:</tt>, as {@code ssh-keygen -l} shows it)
+ * <li>47 characters: colon separated hex of the MD5 of the key
+ * <li>59 characters: colon separated hex of the SHA-1 of the key
+ * </ul>
+ *
+ * @author Andy Clement
+ */
+public class FingerprintServerKeyVerifier implements ServerKeyVerifier {
+
+	private static Logger log = LoggerFactory.getLogger(FingerprintServerKeyVerifier.class);
+
+	private static final String SHA256_PREFIX = "SHA256:";
+
+	private final String expectedFingerprint;
+
+	private final String algorithm;
+
+	/**
+	 * @throws IllegalArgumentException if the fingerprint is not in a recognized form
+	 */
+	public FingerprintServerKeyVerifier(String expectedFingerprint) {
+		String fingerprint = expectedFingerprint.startsWith(SHA256_PREFIX)
+				? expectedFingerprint.substring(SHA256_PREFIX.length()) : expectedFingerprint;
+		this.algorithm = algorithmFor(fingerprint);
+		this.expectedFingerprint = fingerprint;
+	}
+
+	private static String algorithmFor(String fingerprint) {
+		switch (fingerprint.length()) {
+		case 43:
+			return "SHA-256";
+		case 47:
+			return "MD5";
+		case 59:
+			return "SHA-1";
+		default:
+			throw new IllegalArgumentException("Unsupported host key fingerprint format: '" + fingerprint + "'");
+		}
+	}
+
+	@Override
+	public boolean verifyServerKey(ClientSession session, SocketAddress remoteAddress, PublicKey serverKey) {
+		String actual = fingerprint(serverKey, algorithm);
+		boolean matches = algorithm.equals("SHA-256") ? actual.equals(expectedFingerprint)
+				: actual.equalsIgnoreCase(expectedFingerprint);
+		if (!matches) {
+			log.warn("Host key of {} has fingerprint {} but {} was expected, refusing to connect", remoteAddress, actual,
+					expectedFingerprint);
+		}
+		return matches;
+	}
+
+	/**
+	 * @return the SHA-256 fingerprint of a key in the form this verifier accepts
+	 */
+	public static String sha256(PublicKey key) {
+		return fingerprint(key, "SHA-256");
+	}
+
+	static String fingerprint(PublicKey key, String algorithm) {
+		ByteArrayBuffer buffer = new ByteArrayBuffer();
+		buffer.putRawPublicKey(key);
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance(algorithm).digest(buffer.getCompactData());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		if (algorithm.equals("SHA-256")) {
+			return Base64.getEncoder().withoutPadding().encodeToString(digest);
+		}
+		StringBuilder s = new StringBuilder(digest.length * 3);
+		for (byte b : digest) {
+			if (s.length() > 0) {
+				s.append(':');
+			}
+			s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return s.toString();
+	}
+
+}
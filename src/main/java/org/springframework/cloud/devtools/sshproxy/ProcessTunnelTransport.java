@@ -0,0 +1,462 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Need to setup two things.
+// 1) The cf port forwarding from localhost 2225 into the container on localhost:9099 (where the Apache mina is running)
+//    Can be done via:
+//    	cf ssh zzz-ac -v -L 2225:localhost:9099
+//    or with ssh using a one time code:
+//      export GUID=`cf app zzz-ac --guid`
+//      cf ssh-code | pbcopy
+//      ssh -v cf:$GUID/0@ssh.run.pivotal.io -A -p 2222 -L 2225:localhost:9099
+//
+//    From the shell that gets created can look at the available interfaces
+// 		/sbin/ifconfig -a | head
+//
+// 2) Reverse forwarding from 8080 on the container to localhost where the boot app is running 
+//  ssh -4 -N -vvv localhost -p 2225 -R 10.252.85.233:8080:127.0.0.1:65228
+
+// The use of ProcessBuilder in here should probably be replaced with cf java client and 
+// a real ssh java client library. The only trickyness may be around the need to run the ifconfig
+// to gain the right interface address
+
+// Or in fact maybe this should all be pushed into a cf cli plugin alongside the one that
+// deploys the proxy that this talks to.
+
+/**
+ * {@link TunnelTransport} that drives the {@code cf}, {@code ssh} and {@code sshpass} command
+ * line tools, which must be on the path. Kept as a fallback for the embedded
+ * {@link SshTunnelTransport}. Each forward costs another {@code ssh} process.
+ *
+ * @author Andy Clement
+ */
+public class ProcessTunnelTransport implements TunnelTransport {
+
+	private static Logger log = LoggerFactory.getLogger(ProcessTunnelTransport.class);
+
+	private final LocalRemoteConnection localRemoteConnection;
+
+	private final List<ReverseTunnelConnection> reverseTunnelConnections = new CopyOnWriteArrayList<>();
+
+	private final int localForwardPort;
+
+	private final String proxySshdPassword;
+
+	private boolean showProcessOutput = true;
+
+	public ProcessTunnelTransport(int localForwardPort, int proxySshdPort, String proxySshdPassword) {
+		this.localRemoteConnection = new LocalRemoteConnection(localForwardPort, proxySshdPort);
+		this.localForwardPort = localForwardPort;
+		this.proxySshdPassword = proxySshdPassword;
+	}
+
+	public void setShowProcessOutput(boolean s) {
+		this.showProcessOutput = s;
+	}
+
+	@Override
+	public String connect(String appName) throws IOException {
+		localRemoteConnection.setAppName(appName);
+		localRemoteConnection.start(showProcessOutput);
+		if (localRemoteConnection.getInetAddr() == null) {
+			throw new IOException("Unable to determine address of CF app " + appName);
+		}
+		return localRemoteConnection.getInetAddr();
+	}
+
+	@Override
+	public void forward(String containerAddress, int remotePort, int localPort) throws IOException {
+		ReverseTunnelConnection reverseTunnelConnection = new ReverseTunnelConnection(localForwardPort, proxySshdPassword);
+		reverseTunnelConnection.setHostAddress(containerAddress);
+		reverseTunnelConnection.setRemotePort(remotePort);
+		reverseTunnelConnection.setLocalPort(localPort);
+		reverseTunnelConnections.add(reverseTunnelConnection);
+		reverseTunnelConnection.start(showProcessOutput);
+	}
+
+	@Override
+	public boolean isAlive() {
+		if (!localRemoteConnection.isAlive()) {
+			return false;
+		}
+		for (ReverseTunnelConnection reverseTunnelConnection : reverseTunnelConnections) {
+			if (!reverseTunnelConnection.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean probe(int timeoutMillis) {
+		return SshBannerProbe.check("localhost", localForwardPort, timeoutMillis);
+	}
+
+	@Override
+	public void close() {
+		localRemoteConnection.stop();
+		for (ReverseTunnelConnection reverseTunnelConnection : reverseTunnelConnections) {
+			reverseTunnelConnection.stop();
+		}
+		reverseTunnelConnections.clear();
+	}
+
+	static abstract class CommandRunner {
+
+		protected Process process;
+
+		InputStream outputStreamFromProcess;
+		
+		OutputStream inputStreamToProcess;
+		
+		boolean showProcessOutput;
+		
+		static class OutputResponse {
+			final boolean success;
+			final String lastK;
+			// Index of the stop string that was found, -1 if none was
+			final int matched;
+			public OutputResponse(boolean b, String lastK2, int matched) {
+				this.success =b;
+				this.lastK = lastK2;
+				this.matched = matched;
+			}
+		}
+		
+		protected OutputWatcher outputWatcher;
+
+		protected OutputWatcher errorWatcher;
+
+		/**
+		 * Start the threads that drain the process output, must be called once the process is running.
+		 */
+		protected void watch(Process process, String name) {
+			this.outputWatcher = new OutputWatcher(process.getInputStream(), name, showProcessOutput);
+			this.errorWatcher = new OutputWatcher(process.getErrorStream(), name, showProcessOutput);
+			startDaemon(outputWatcher, name + "-stdout");
+			startDaemon(errorWatcher, name + "-stderr");
+		}
+
+		private static void startDaemon(Runnable runnable, String name) {
+			Thread t = new Thread(runnable, name);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		protected OutputResponse readOutputStream(OutputWatcher watcher, String stopOnString, int timeoutInMilliseconds) {
+			return readOutputStream(watcher, new StreamMatcher(stopOnString), timeoutInMilliseconds);
+		}
+
+		protected OutputResponse readOutputStream(OutputWatcher watcher, StreamMatcher stopOn, int timeoutInMilliseconds) {
+			try {
+				return watcher.expect(stopOn, timeoutInMilliseconds);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new OutputResponse(false, "", -1);
+			}
+		}
+
+		/**
+		 * Blocks reading a process stream on its own thread, waking anyone waiting for
+		 * particular output as soon as data arrives. Output not yet consumed by an
+		 * {@link #expect(StreamMatcher, int)} is held in a fixed size ring buffer and each
+		 * character is only examined once while waiting, so nothing is copied or rescanned as
+		 * output accumulates.
+		 */
+		static class OutputWatcher implements Runnable {
+
+			static final int CAPACITY = 4096;
+
+			private final Reader reader;
+
+			private final String name;
+
+			private final boolean showProcessOutput;
+
+			// Guarded by this
+			private final char[] ring = new char[CAPACITY];
+
+			// Total characters ever read, and the position up to which output has been consumed
+			private long written;
+
+			private long consumed;
+
+			private long lastDataTime = System.currentTimeMillis();
+
+			private boolean closed;
+
+			OutputWatcher(InputStream stream, String name, boolean showProcessOutput) {
+				this.reader = new InputStreamReader(stream, StandardCharsets.UTF_8);
+				this.name = name;
+				this.showProcessOutput = showProcessOutput;
+			}
+
+			@Override
+			public void run() {
+				char[] chunk = new char[1024];
+				StringBuilder line = new StringBuilder();
+				try {
+					int n;
+					while ((n = reader.read(chunk)) != -1) {
+						if (showProcessOutput) {
+							logLines(chunk, n, line);
+						}
+						synchronized (this) {
+							for (int i = 0; i < n; i++) {
+								ring[(int) (written++ % CAPACITY)] = chunk[i];
+							}
+							lastDataTime = System.currentTimeMillis();
+							notifyAll();
+						}
+					}
+				} catch (IOException e) {
+					// process went away
+				} finally {
+					if (line.length() > 0) {
+						log.info("[{}] {}", name, line);
+					}
+					synchronized (this) {
+						closed = true;
+						notifyAll();
+					}
+				}
+			}
+
+			private void logLines(char[] chunk, int n, StringBuilder line) {
+				for (int i = 0; i < n; i++) {
+					char ch = chunk[i];
+					if (ch == '\n' || ch == '\r') {
+						if (line.length() > 0) {
+							log.info("[{}] {}", name, line);
+							line.setLength(0);
+						}
+					} else {
+						line.append(ch);
+					}
+				}
+			}
+
+			/**
+			 * Wait for one of the matcher's strings to appear, failing if nothing new arrives for
+			 * the timeout period. Output up to the end of the match is consumed.
+			 */
+			synchronized OutputResponse expect(StreamMatcher stopOn, int timeoutInMilliseconds) throws InterruptedException {
+				long start = System.currentTimeMillis();
+				stopOn.reset();
+				long scanned = consumed;
+				while (true) {
+					long oldest = Math.max(consumed, written - CAPACITY);
+					if (oldest > scanned) {
+						// Output overran the buffer while nobody was looking
+						stopOn.reset();
+						scanned = oldest;
+					}
+					for (; scanned < written; scanned++) {
+						int matched = stopOn.feed(ring[(int) (scanned % CAPACITY)]);
+						if (matched != -1) {
+							String output = text(oldest, scanned + 1);
+							consumed = scanned + 1;
+							return new OutputResponse(true, output, matched);
+						}
+					}
+					if (closed) {
+						return new OutputResponse(false, text(oldest, written), -1);
+					}
+					long remaining = Math.max(start, lastDataTime) + timeoutInMilliseconds - System.currentTimeMillis();
+					if (remaining <= 0) {
+						log.warn("[{}] Timeout, no output for {}ms", name, timeoutInMilliseconds);
+						return new OutputResponse(false, text(oldest, written), -1);
+					}
+					wait(remaining);
+				}
+			}
+
+			private String text(long from, long to) {
+				char[] chars = new char[(int) (to - from)];
+				for (long i = from; i < to; i++) {
+					chars[(int) (i - from)] = ring[(int) (i % CAPACITY)];
+				}
+				return new String(chars);
+			}
+		}
+
+		public boolean isAlive() {
+			return process != null && process.isAlive();
+		}
+
+		public void stop() {
+			if (process != null) {
+				process.destroy();
+			}
+		}
+	}
+	
+//	ssh -o StrictHostKeyChecking=no -4 -N -vvv localhost -p 2225 -R 10.252.85.233:8080:127.0.0.1:65228
+	static class ReverseTunnelConnection extends CommandRunner {
+
+		// Success first, then the ways ssh reports failure
+		private static final String[] FORWARDING_OUTCOMES = { "All remote forwarding requests processed",
+				"remote port forwarding failed", "Permission denied", "Connection refused" };
+		
+		private int localPort;
+
+		private String hostAddress;
+
+		private int remotePort;
+
+		private final int localForwardPort;
+
+		private final String password;
+		
+		public ReverseTunnelConnection(int localForwardPort, String password) {
+			this.localForwardPort = localForwardPort;
+			this.password = password;
+		}
+
+		public void setRemotePort(int remotePort) {
+			this.remotePort = remotePort;
+		}
+		
+		public void setLocalPort(int i) {
+			this.localPort = i;
+		}
+
+		public void setHostAddress(String string) {
+			this.hostAddress = string;
+		}
+
+		// Note the use of 'sshpass' here. That is due to the lack of proper security between the client
+		// and server connections, we should use something better.
+		public void start(boolean showProcessOutput) {
+			this.showProcessOutput = showProcessOutput;
+			// Example: ssh -o StrictHostKeyChecking=no -o UserKnownHostsFile=/dev/null -4 -N -vvv localhost -p 2225 -R 10.252.85.233:8080:127.0.0.1:65228
+			ProcessBuilder pb = new ProcessBuilder().
+					command("sshpass","-p",password,"ssh","-o","StrictHostKeyChecking=no","-o","UserKnownHostsFile=/dev/null","-4","-N","-v","localhost","-p",Integer.toString(localForwardPort),
+							"-R",hostAddress+":"+remotePort+":127.0.0.1:"+localPort);
+			try {
+				process = pb.start();
+				inputStreamToProcess = process.getOutputStream();
+//				inputStreamToProcess.close();
+				outputStreamFromProcess = process.getInputStream();
+				watch(process, "reverse-tunnel");
+				OutputResponse response = readOutputStream(errorWatcher, new StreamMatcher(FORWARDING_OUTCOMES), 2000);
+				if (response.matched > 0) {
+					log.error("Reverse tunnel to local port {} failed: {}", localPort, FORWARDING_OUTCOMES[response.matched]);
+				}
+			} catch (IOException e) {
+				log.error("Unable to start reverse tunnel to local port " + localPort, e);
+			}
+		}
+		
+		public void stop() {
+			try {
+				if (inputStreamToProcess != null) {
+					inputStreamToProcess.close();
+				}
+			} catch (IOException e) {
+				log.warn("Problem closing reverse tunnel process input: {}", e.toString());
+			}
+			if (process != null) {
+				process.destroyForcibly();
+			}
+		}
+	}
+	
+	static class LocalRemoteConnection extends CommandRunner {
+		
+		private String appName;
+
+		private volatile String inetAddr;
+
+		private final int localForwardPort;
+
+		private final int proxySshdPort;
+		
+		public LocalRemoteConnection(int localForwardPort, int proxySshdPort) {
+			this.localForwardPort = localForwardPort;
+			this.proxySshdPort = proxySshdPort;
+		}
+		
+		public void start(boolean showProcessOutput) {
+			this.showProcessOutput = showProcessOutput;
+			// Example: cf ssh zzz-ac -v --force-pseudo-tty -L 2225:localhost:9099
+			log.info("AppName is {}", this.appName);
+			ProcessBuilder pb = new ProcessBuilder().
+					command("cf","ssh",this.appName,"-v", "--force-pseudo-tty", "-L",localForwardPort+":localhost:"+proxySshdPort);
+			try {
+				process = pb.start();
+				inputStreamToProcess = process.getOutputStream();
+				outputStreamFromProcess = process.getInputStream();
+				watch(process, "cf-ssh");
+				OutputResponse response = readOutputStream(outputWatcher,":~$",5000);
+				if (response.success) {
+//					System.out.println("Attempting shell interaction...");
+				
+					// Attempt to grab inet address for eth0:
+					// /sbin/ifconfig eth0 | grep "inet addr" | sed 's/^[^:]*:\([^ ]*\).*$/\1/'
+					inputStreamToProcess.write("/sbin/ifconfig eth0 | grep \"inet addr\" | sed 's/^[^:]*:\\([^ ]*\\).*$/>>\\1<</'\n".getBytes());
+					inputStreamToProcess.flush();
+					OutputResponse or = readOutputStream(outputWatcher,":~$",5000);
+					// Without both markers the address is left unset, connect() then reports the failure
+					int start = or.success && or.lastK != null ? or.lastK.lastIndexOf(">>") : -1;
+					int end = start == -1 ? -1 : or.lastK.lastIndexOf("<<");
+					if (end > start) {
+						this.inetAddr = or.lastK.substring(start + 2, end);
+					} else {
+						log.warn("Unable to read the container address from the cf ssh session");
+					}
+				}
+				
+			} catch (IOException e) {
+				log.error("Unable to run cf ssh for app " + appName, e);
+			}
+		}
+		
+		public void stop() {
+			try {
+				if (inputStreamToProcess != null) {
+					inputStreamToProcess.write("exit\n".getBytes());
+					inputStreamToProcess.flush();
+				}
+			} catch (IOException e) {
+				log.warn("Problem asking cf ssh session to exit: {}", e.toString());
+			}
+			super.stop();
+		}
+		
+		public void setAppName(String appName) {
+			this.appName = appName;
+		}
+		
+		public String getInetAddr() {
+			return this.inetAddr;
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Checks an ssh server is answering by connecting and reading the start of the identification
+ * string every ssh server sends first. When pointed at a forwarded port this checks the forward
+ * too.
+ *
+ * @author Andy Clement
+ */
+final class SshBannerProbe {
+
+	private static final byte[] BANNER_PREFIX = { 'S', 'S', 'H', '-' };
+
+	private SshBannerProbe() {
+	}
+
+	static boolean check(String host, int port, int timeoutMillis) {
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+			InputStream in = socket.getInputStream();
+			for (byte b : BANNER_PREFIX) {
+				if (in.read() != b) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+/**
+ * Where and how to log in to an ssh server.
+ *
+ * @author Andy Clement
+ */
+public class SshEndpoint {
+
+	private final String host;
+
+	private final int port;
+
+	private final String username;
+
+	private final String password;
+
+	private final String hostKeyFingerprint;
+
+	/**
+	 * An endpoint whose host key is not checked, only for servers reached some other trusted way.
+	 */
+	public SshEndpoint(String host, int port, String username, String password) {
+		this(host, port, username, password, null);
+	}
+
+	/**
+	 * @param hostKeyFingerprint fingerprint the server's host key must have, see
+	 * {@link FingerprintServerKeyVerifier}
+	 */
+	public SshEndpoint(String host, int port, String username, String password, String hostKeyFingerprint) {
+		this.host = host;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.hostKeyFingerprint = hostKeyFingerprint;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * @return the fingerprint the server's host key must have, or null if it is not checked
+	 */
+	public String getHostKeyFingerprint() {
+		return hostKeyFingerprint;
+	}
+
+	public String toString() {
+		return "SshEndpoint(" + username + "@" + host + ":" + port + ")";
+	}
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.keyverifier.AcceptAllServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.ServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.PropertyResolverUtils;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TunnelTransport} implemented with an in-process Apache MINA SSHD client, no {@code cf},
+ * {@code ssh} or {@code sshpass} processes are involved.
+ * <ul>
+ * <li>A session to the CF ssh proxy (as {@code cf ssh} would) local forwards an ephemeral port on
+ * this machine to the sshd inside the proxy app. The container address is obtained by running
+ * a command on that session rather than scraping a terminal.
+ * <li>A second session, through that forward, to the sshd inside the proxy app carries the
+ * reverse forwards. Any number of forwards can share it.
+ * </ul>
+ * Every connection accepted on a forwarded port becomes its own channel within the session and
+ * each channel has its own ssh flow control window, so one busy or stalled stream does not hold
+ * up the others. The window size can be tuned with {@link #setChannelWindowSize(long)}.
+ * The endpoint for the first session is pluggable so the transport can be pointed at any sshd,
+ * for example an embedded one standing in for CF.
+ * <p>
+ * The host key of the first session's server must match the fingerprint of the
+ * {@link SshEndpoint}, as {@code cf ssh} requires. The proxy app generates its host keys when it
+ * starts so the second session accepts any key, but it can only reach the proxy sshd: it runs
+ * over the local forward of the first, already verified, session.
+ *
+ * @author Andy Clement
+ */
+public class SshTunnelTransport implements TunnelTransport {
+
+	private static Logger log = LoggerFactory.getLogger(SshTunnelTransport.class);
+
+	static final String CONTAINER_ADDRESS_COMMAND = "echo ${CF_INSTANCE_INTERNAL_IP:-$(hostname -I | cut -d' ' -f1)}";
+
+	/**
+	 * Resolves the ssh endpoint for a CF app.
+	 */
+	public interface EndpointResolver {
+		SshEndpoint resolve(String appName) throws IOException;
+	}
+
+	private final EndpointResolver endpointResolver;
+
+	private final int proxySshdPort;
+
+	private final String proxySshdPassword;
+
+	private final long timeoutMillis;
+
+	private long channelWindowSize;
+
+	private SshClient client;
+
+	private volatile ClientSession cfSession;
+
+	private volatile ClientSession proxySession;
+
+	private volatile int localForwardPort;
+
+	// Checks the host key of the endpoint the first session connects to
+	private volatile ServerKeyVerifier endpointKeyVerifier;
+
+	public SshTunnelTransport(EndpointResolver endpointResolver, int proxySshdPort, String proxySshdPassword,
+			long timeoutMillis) {
+		this.endpointResolver = endpointResolver;
+		this.proxySshdPort = proxySshdPort;
+		this.proxySshdPassword = proxySshdPassword;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @param channelWindowSize bytes a forwarded stream may have in flight before the sender
+	 * waits for the receiver, or 0 for the MINA default
+	 */
+	public void setChannelWindowSize(long channelWindowSize) {
+		this.channelWindowSize = channelWindowSize;
+	}
+
+	@Override
+	public synchronized String connect(String appName) throws IOException {
+		if (client == null) {
+			client = SshClient.setUpDefaultClient();
+			client.setServerKeyVerifier(new ServerKeyVerifier() {
+				@Override
+				public boolean verifyServerKey(ClientSession session, SocketAddress remoteAddress, PublicKey serverKey) {
+					if (isLocalForward(remoteAddress)) {
+						return true;
+					}
+					ServerKeyVerifier verifier = endpointKeyVerifier;
+					return verifier != null && verifier.verifyServerKey(session, remoteAddress, serverKey);
+				}
+			});
+			if (channelWindowSize > 0) {
+				PropertyResolverUtils.updateProperty(client, FactoryManager.WINDOW_SIZE, channelWindowSize);
+			}
+			client.start();
+		}
+		// Until the forward is made again no loopback connection is taken to be through it
+		localForwardPort = 0;
+		SshEndpoint endpoint = endpointResolver.resolve(appName);
+		log.info("Connecting to {} for app {}", endpoint, appName);
+		if (endpoint.getHostKeyFingerprint() == null) {
+			log.warn("No host key fingerprint for {}, its host key will not be checked", endpoint);
+			endpointKeyVerifier = AcceptAllServerKeyVerifier.INSTANCE;
+		} else {
+			endpointKeyVerifier = new FingerprintServerKeyVerifier(endpoint.getHostKeyFingerprint());
+		}
+		cfSession = login(endpoint.getHost(), endpoint.getPort(), endpoint.getUsername(), endpoint.getPassword());
+		String containerAddress = cfSession.executeRemoteCommand(CONTAINER_ADDRESS_COMMAND).trim();
+		SshdSocketAddress local = cfSession.startLocalPortForwarding(new SshdSocketAddress("localhost", 0),
+				new SshdSocketAddress("localhost", proxySshdPort));
+		localForwardPort = local.getPort();
+		log.info("Proxy sshd available locally on port {}, container address is {}", local.getPort(), containerAddress);
+		proxySession = login("localhost", local.getPort(), System.getProperty("user.name"), proxySshdPassword);
+		return containerAddress;
+	}
+
+	private boolean isLocalForward(SocketAddress remoteAddress) {
+		int port = localForwardPort;
+		return port != 0 && remoteAddress instanceof InetSocketAddress
+				&& ((InetSocketAddress) remoteAddress).getPort() == port
+				&& ((InetSocketAddress) remoteAddress).getAddress() != null
+				&& ((InetSocketAddress) remoteAddress).getAddress().isLoopbackAddress();
+	}
+
+	private ClientSession login(String host, int port, String username, String password) throws IOException {
+		ClientSession session = client.connect(username, host, port).verify(timeoutMillis, TimeUnit.MILLISECONDS)
+				.getSession();
+		session.addPasswordIdentity(password);
+		session.auth().verify(timeoutMillis, TimeUnit.MILLISECONDS);
+		return session;
+	}
+
+	@Override
+	public void forward(String containerAddress, int remotePort, int localPort) throws IOException {
+		ClientSession session = proxySession;
+		if (session == null) {
+			throw new IllegalStateException("Not connected");
+		}
+		SshdSocketAddress bound = session.startRemotePortForwarding(new SshdSocketAddress(containerAddress, remotePort),
+				new SshdSocketAddress("127.0.0.1", localPort));
+		log.info("Forwarding {} on the proxy container to local port {}", bound, localPort);
+	}
+
+	@Override
+	public boolean isAlive() {
+		ClientSession cf = cfSession;
+		ClientSession proxy = proxySession;
+		return cf != null && cf.isOpen() && proxy != null && proxy.isOpen();
+	}
+
+	@Override
+	public boolean probe(int timeoutMillis) {
+		int port = localForwardPort;
+		return port != 0 && SshBannerProbe.check("localhost", port, timeoutMillis);
+	}
+
+	@Override
+	public synchronized void close() {
+		closeQuietly(proxySession);
+		closeQuietly(cfSession);
+		proxySession = null;
+		cfSession = null;
+		localForwardPort = 0;
+		if (client != null) {
+			client.stop();
+			client = null;
+		}
+	}
+
+	private static void closeQuietly(ClientSession session) {
+		if (session != null) {
+			session.close(true);
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.util.Arrays;
+
+/**
+ * Incrementally searches a stream of characters for any of a set of ASCII strings
+ * (Aho-Corasick). The automaton is compiled into a full transition table so each character
+ * costs one array lookup, no matter how many strings are being looked for and without
+ * retaining or rescanning earlier output.
+ *
+ * @author Andy Clement
+ */
+public final class StreamMatcher {
+
+	private static final int ALPHABET = 128;
+
+	private final String[] patterns;
+
+	// State x character to next state
+	private final int[][] delta;
+
+	// State to the index of a pattern ending there, or -1
+	private final int[] output;
+
+	private int state;
+
+	public StreamMatcher(String... patterns) {
+		if (patterns.length == 0) {
+			throw new IllegalArgumentException("At least one pattern is required");
+		}
+		this.patterns = patterns.clone();
+		int maxStates = 1;
+		for (String pattern : patterns) {
+			if (pattern.isEmpty()) {
+				throw new IllegalArgumentException("Patterns must not be empty");
+			}
+			for (int i = 0; i < pattern.length(); i++) {
+				if (pattern.charAt(i) >= ALPHABET) {
+					throw new IllegalArgumentException("Only ASCII patterns are supported: " + pattern);
+				}
+			}
+			maxStates += pattern.length();
+		}
+		int[][] go = new int[maxStates][];
+		int[] out = new int[maxStates];
+		Arrays.fill(out, -1);
+		go[0] = newRow();
+		int states = 1;
+		for (int p = 0; p < patterns.length; p++) {
+			int s = 0;
+			for (int i = 0; i < patterns[p].length(); i++) {
+				char ch = patterns[p].charAt(i);
+				if (go[s][ch] == -1) {
+					go[states] = newRow();
+					go[s][ch] = states++;
+				}
+				s = go[s][ch];
+			}
+			if (out[s] == -1) {
+				out[s] = p;
+			}
+		}
+		// Breadth first, filling in missing transitions from the failure state to make a DFA
+		int[] fail = new int[states];
+		int[] queue = new int[states];
+		int head = 0, tail = 0;
+		for (int ch = 0; ch < ALPHABET; ch++) {
+			if (go[0][ch] == -1) {
+				go[0][ch] = 0;
+			} else {
+				queue[tail++] = go[0][ch];
+			}
+		}
+		while (head < tail) {
+			int s = queue[head++];
+			if (out[s] == -1) {
+				out[s] = out[fail[s]];
+			}
+			for (int ch = 0; ch < ALPHABET; ch++) {
+				int t = go[s][ch];
+				if (t == -1) {
+					go[s][ch] = go[fail[s]][ch];
+				} else {
+					fail[t] = go[fail[s]][ch];
+					queue[tail++] = t;
+				}
+			}
+		}
+		this.delta = Arrays.copyOf(go, states);
+		this.output = Arrays.copyOf(out, states);
+	}
+
+	private static int[] newRow() {
+		int[] row = new int[ALPHABET];
+		Arrays.fill(row, -1);
+		return row;
+	}
+
+	/**
+	 * @param ch the next character of the stream
+	 * @return the index of a pattern that ends with this character, or -1
+	 */
+	public int feed(char ch) {
+		state = ch < ALPHABET ? delta[state][ch] : 0;
+		return output[state];
+	}
+
+	/**
+	 * Forget any partial match, the next character is treated as the start of the stream.
+	 */
+	public void reset() {
+		state = 0;
+	}
+
+	public String getPattern(int index) {
+		return patterns[index];
+	}
+
+}
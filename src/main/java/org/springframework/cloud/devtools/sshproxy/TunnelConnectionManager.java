@@ -1,47 +1,102 @@
 package org.springframework.cloud.devtools.sshproxy;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
-import org.springframework.boot.context.embedded.EmbeddedServletContainer;
-
-// Need to setup two things.
-// 1) The cf port forwarding from localhost 2225 into the container on localhost:9099 (where the Apache mina is running)
-//    Can be done via:
-//    	cf ssh zzz-ac -v -L 2225:localhost:9099
-//    or with ssh using a one time code:
-//      export GUID=`cf app zzz-ac --guid`
-//      cf ssh-code | pbcopy
-//      ssh -v cf:$GUID/0@ssh.run.pivotal.io -A -p 2222 -L 2225:localhost:9099
-//
-//    From the shell that gets created can look at the available interfaces
-// 		/sbin/ifconfig -a | head
-//
-// 2) Reverse forwarding from 8080 on the container to localhost where the boot app is running 
-//  ssh -4 -N -vvv localhost -p 2225 -R 10.252.85.233:8080:127.0.0.1:65228
-
-// The use of ProcessBuilder in here should probably be replaced with cf java client and 
-// a real ssh java client library. The only trickyness may be around the need to run the ifconfig
-// to gain the right interface address
-
-// Or in fact maybe this should all be pushed into a cf cli plugin alongside the one that
-// deploys the proxy that this talks to.
+import org.springframework.boot.context.embedded.EmbeddedServletContainerInitializedEvent;
+import org.springframework.context.ApplicationListener;
 
 /**
+ * Brings up the tunnels that let a CF deployed proxy app forward its traffic to this app.
+ * <p>
+ * The link to the proxy's sshd does not depend on anything in this app so it is started as
+ * soon as {@link #start()} is called. The reverse tunnel needs
+ * the servlet container port, which arrives with the {@link EmbeddedServletContainerInitializedEvent}.
+ * The two are combined as {@link CompletableFuture} stages so the reverse tunnel is created the
+ * moment both are available. How the tunnel is carried is up to the {@link TunnelTransport}. Once
+ * up, a {@link TunnelSupervisor} re-establishes the tunnel whenever it breaks. Unless disabled,
+ * forwards lead to a {@link TunnelRelay} in front of each local port which keeps traffic stats.
+ * <p>
+ * Besides the servlet container, any number of other local ports can be exposed on the proxy
+ * container through port mappings (remote port to local port), supplied up front or added with
+ * {@link #addMapping(int, int)} at any time. All of them share the one link to the proxy.
+ *
  * @author Andy Clement
  */
-public class TunnelConnectionManager implements DisposableBean {
+public class TunnelConnectionManager implements ApplicationListener<EmbeddedServletContainerInitializedEvent>, DisposableBean {
+
+	private static Logger log = LoggerFactory.getLogger(TunnelConnectionManager.class);
 
 	private String appname;
-	private EmbeddedServletContainer embeddedServletContainer;
-	
-	private boolean showProcessOutput = true;
+
+	private final TunnelTransport transport;
+
+	private final int remotePort;
+
+	// Remote port to local port, guarded by itself
+	private final Map<Integer, Integer> mappings = new LinkedHashMap<>();
+
+	// Guarded by mappings
+	private CompletableFuture<String> containerAddress;
+
+	private final CompletableFuture<Integer> localPort = new CompletableFuture<>();
+
+	private volatile CompletableFuture<Void> tunnel;
+
+	private volatile TunnelSupervisor supervisor;
+
+	private long probeInterval = 5000;
+
+	private int probeTimeout = 2000;
+
+	private long initialBackoff = 250;
+
+	private long maxBackoff = 30000;
+
+	private boolean relayEnabled = true;
+
+	// Local port to the relay in front of it
+	private final Map<Integer, TunnelRelay> relays = new ConcurrentHashMap<>();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "devtools-tunnel-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
 		
-	public TunnelConnectionManager(String appname, EmbeddedServletContainer embeddedServletContainer) {
+	public TunnelConnectionManager(String appname, TunnelTransport transport, int remotePort) {
+		this(appname, transport, remotePort, null);
+	}
+
+	/**
+	 * @param remotePort the port on the proxy container forwarded to the servlet container
+	 * @param mappings further remote to local port mappings, may be null
+	 */
+	public TunnelConnectionManager(String appname, TunnelTransport transport, int remotePort, Map<Integer, Integer> mappings) {
 		this.appname = appname;//+"-proxy";
-		this.embeddedServletContainer = embeddedServletContainer;
+		this.transport = transport;
+		this.remotePort = remotePort;
+		if (mappings != null) {
+			this.mappings.putAll(mappings);
+		}
 	}
 	
 	private class JVMShutdownHook extends Thread {
@@ -50,230 +105,157 @@ public class TunnelConnectionManager implements DisposableBean {
 	    }
 	  }
 	
-	LocalRemoteConnection localRemoteConnection = new LocalRemoteConnection();
-	
-	ReverseTunnelConnection reverseTunnelConnection = new ReverseTunnelConnection();
-	
 	public void start() {
 		if (appname == null) {
-			System.out.println("TUNNELING NOT ACTIVATED: set " + 
-					"spring.cloud.devtools.tunnel.deployed-app-name=<app>");
+			log.info("Tunneling not activated: set spring.cloud.devtools.tunnel.deployed-app-name=<app>");
 			return;
 		}
-		// Crude way to just do this later, once the port is available...
-		Thread t = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				System.out.println("Sleeping a moment...");
-				long stime = System.currentTimeMillis();
-				while ((System.currentTimeMillis()-stime)<20000) { // wait up to 20 seconds
-					int num = embeddedServletContainer.getPort();
-					if (num>0) {
-						break;
-					}
-					try {
-						Thread.sleep(500);
-					} catch (Exception e) {
-					}
-				}
-				System.out.println("Starting local port forward to remote embedded sshd (waited "+(System.currentTimeMillis()-stime)+"ms)");
-				localRemoteConnection.setAppName(appname);
-				localRemoteConnection.start(showProcessOutput);
-				System.out.println("Creating reverse tunnel from CF app ("+localRemoteConnection.getInetAddr()+") to local port "+embeddedServletContainer.getPort());
-				reverseTunnelConnection.setHostAddress(localRemoteConnection.getInetAddr());
-				reverseTunnelConnection.setLocalPort(embeddedServletContainer.getPort());
-				reverseTunnelConnection.start(showProcessOutput);
-				JVMShutdownHook jvmShutdownHook = new JVMShutdownHook();
-			    Runtime.getRuntime().addShutdownHook(jvmShutdownHook);
+		final long stime = System.currentTimeMillis();
+		Runtime.getRuntime().addShutdownHook(new JVMShutdownHook());
+		supervisor = new TunnelSupervisor(transport, this::connect, probeInterval, probeTimeout, initialBackoff, maxBackoff);
+		tunnel = supervisor.start();
+		tunnel.whenComplete((result, failure) -> {
+			if (failure != null) {
+				log.error("Tunnel setup failed", failure);
+			} else {
+				log.info("Tunnel ready in {}ms", System.currentTimeMillis() - stime);
 			}
-			
 		});
-		t.start();
 	}
 
-	public void stop() {
-		System.out.println("Shutting down all magic");
-		localRemoteConnection.stop();
-		reverseTunnelConnection.stop();
-	}
-	
-	static abstract class CommandRunner {
-
-		protected Process process;
-
-		InputStream outputStreamFromProcess;
-		
-		OutputStream inputStreamToProcess;
-		
-		boolean showProcessOutput;
-		
-		static class OutputResponse {
-			final boolean success;
-			final String lastK;
-			public OutputResponse(boolean b, String lastK2) {
-				this.success =b;
-				this.lastK = lastK2;
-			}
-		}
-		
-		protected OutputResponse readOutputStream(InputStream stream, String stopOnString, int timeoutInMilliseconds) {
-			byte[] bs = new byte[10000];
-			int i = 0;
-			long lastDataTime = System.currentTimeMillis();
-			String lastK = new String();
+	/**
+	 * Connect the transport and make all the forwards. Called for the initial connection and
+	 * by the supervisor whenever the tunnel has to be re-established.
+	 */
+	private CompletableFuture<Void> connect() {
+		CompletableFuture<String> containerAddress = CompletableFuture.supplyAsync(() -> {
+			log.info("Connecting to remote embedded sshd");
 			try {
-				while (true) {
-					if (stream.available() != 0) {
-						lastDataTime = System.currentTimeMillis();
-						i = stream.read(bs);
-						String s = new String(bs,0,i);
-						if (showProcessOutput) {
-							System.out.print(s);
-						}
-						lastK = lastK + s;
-						if (lastK.length()>1000) {
-							lastK = lastK.substring(lastK.length()-1000);
-						}
-						if (lastK.contains(stopOnString)) {
-//							System.out.println("\nFound expected string: "+stopOnString);
-							return new OutputResponse(true,lastK);
-						}
-					}
-					if ((System.currentTimeMillis()-lastDataTime) > timeoutInMilliseconds) {
-						System.out.println("Timeout, no output for "+timeoutInMilliseconds);
-						return new OutputResponse(false,lastK);
-					}
-					try { Thread.sleep(100); } catch(Exception e) {}
-				}
+				return transport.connect(appname);
 			} catch (IOException e) {
-				e.printStackTrace();
+				throw new UncheckedIOException(e);
 			}
-			return new OutputResponse(false,lastK);
-		}
-
-		public void stop() {
-			if (process != null) {
-				process.destroy();
+		}, executor);
+		List<CompletableFuture<Void>> forwards = new ArrayList<>();
+		forwards.add(containerAddress.thenAcceptBothAsync(localPort, (inetAddr, port) -> forward(inetAddr, remotePort, port),
+				executor));
+		synchronized (mappings) {
+			this.containerAddress = containerAddress;
+			for (Map.Entry<Integer, Integer> mapping : mappings.entrySet()) {
+				forwards.add(containerAddress.thenAcceptAsync(
+						inetAddr -> forward(inetAddr, mapping.getKey(), mapping.getValue()), executor));
 			}
 		}
+		return CompletableFuture.allOf(forwards.toArray(new CompletableFuture[forwards.size()]));
 	}
-	
-//	ssh -o StrictHostKeyChecking=no -4 -N -vvv localhost -p 2225 -R 10.252.85.233:8080:127.0.0.1:65228
-	static class ReverseTunnelConnection extends CommandRunner {
-		
-		private int localPort;
 
-		private String hostAddress;
-		
-		public ReverseTunnelConnection() {
-		}
-		
-		public void setLocalPort(int i) {
-			this.localPort = i;
+	private void forward(String inetAddr, int remote, int local) {
+		log.info("Creating reverse tunnel from CF app ({}:{}) to local port {}", inetAddr, remote, local);
+		try {
+			transport.forward(inetAddr, remote, relayEnabled ? relayFor(local).start() : local);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
+	}
 
-		public void setHostAddress(String string) {
-			this.hostAddress = string;
-		}
+	private TunnelRelay relayFor(int local) {
+		// Relays outlive reconnects, the forward is simply pointed at the same relay again
+		return relays.computeIfAbsent(local, TunnelRelay::new);
+	}
 
-		// Note the use of 'sshpass' here. That is due to the lack of proper security between the client
-		// and server connections, we should use something better.
-		public void start(boolean showProcessOutput) {
-			this.showProcessOutput = showProcessOutput;
-			// Example: ssh -o StrictHostKeyChecking=no -o UserKnownHostsFile=/dev/null -4 -N -vvv localhost -p 2225 -R 10.252.85.233:8080:127.0.0.1:65228
-			ProcessBuilder pb = new ProcessBuilder().
-					command("sshpass","-p","foobar","ssh","-o","StrictHostKeyChecking=no","-o","UserKnownHostsFile=/dev/null","-4","-N","-v","localhost","-p","2225",
-							"-R",hostAddress+":8080:127.0.0.1:"+localPort);
-			try {
-				process = pb.start();
-				inputStreamToProcess = process.getOutputStream();
-//				inputStreamToProcess.close();
-				outputStreamFromProcess = process.getInputStream();
-				readOutputStream(process.getErrorStream(),"All remote forwarding requests processed",2000);
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * Expose another local port on the proxy container. If tunneling has started the forward is
+	 * made straight away, over the existing link.
+	 * @return completes when the forward is usable
+	 */
+	public CompletableFuture<Void> addMapping(int remotePort, int localPort) {
+		CompletableFuture<String> address;
+		synchronized (mappings) {
+			if (mappings.containsKey(remotePort) || remotePort == this.remotePort) {
+				throw new IllegalArgumentException("Remote port " + remotePort + " is already mapped");
 			}
+			mappings.put(remotePort, localPort);
+			address = containerAddress;
 		}
-		
-		public void stop() {
-			try {
-				if (inputStreamToProcess != null) {
-					inputStreamToProcess.close();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			process.destroyForcibly();
+		if (address == null) {
+			return CompletableFuture.completedFuture(null);
 		}
+		return address.thenAcceptAsync(inetAddr -> forward(inetAddr, remotePort, localPort), executor);
 	}
-	
-	static class LocalRemoteConnection extends CommandRunner {
-		
-		private String appName;
-
-		private Process process;
-		
-		InputStream outputStreamFromProcess;
-		
-		OutputStream inputStreamToProcess;
 
-		private String inetAddr;
-		
-		public LocalRemoteConnection() {
-		}
-		
-		public void start(boolean showProcessOutput) {
-			this.showProcessOutput = showProcessOutput;
-			// Example: cf ssh zzz-ac -v --force-pseudo-tty -L 2225:localhost:9099
-			System.out.println("AppName is "+this.appName);
-			ProcessBuilder pb = new ProcessBuilder().
-					command("cf","ssh",this.appName,"-v", "--force-pseudo-tty", "-L","2225:localhost:9099");
-			try {
-				process = pb.start();
-				inputStreamToProcess = process.getOutputStream();
-				outputStreamFromProcess = process.getInputStream();
-				OutputResponse response = readOutputStream(outputStreamFromProcess,":~$",5000);
-				if (response.success) {
-//					System.out.println("Attempting shell interaction...");
-				
-					// Attempt to grab inet address for eth0:
-					// /sbin/ifconfig eth0 | grep "inet addr" | sed 's/^[^:]*:\([^ ]*\).*$/\1/'
-					inputStreamToProcess.write("/sbin/ifconfig eth0 | grep \"inet addr\" | sed 's/^[^:]*:\\([^ ]*\\).*$/>>\\1<</'\n".getBytes());
-					inputStreamToProcess.flush();
-					OutputResponse or = readOutputStream(outputStreamFromProcess,":~$",5000);
-					this.inetAddr = or.lastK.substring(or.lastK.lastIndexOf(">>")+2,or.lastK.lastIndexOf("<<"));
-				}
-				
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		
-		public void stop() {
-			try {
-				if (inputStreamToProcess != null) {
-					inputStreamToProcess.write("exit\n".getBytes());
-					inputStreamToProcess.flush();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			super.stop();
-		}
-		
-		public void setAppName(String appName) {
-			this.appName = appName;
+	/**
+	 * @return the remote to local port mappings besides the one for the servlet container
+	 */
+	public Map<Integer, Integer> getMappings() {
+		synchronized (mappings) {
+			return new LinkedHashMap<>(mappings);
 		}
-		
-		public String getInetAddr() {
-			return this.inetAddr;
+	}
+
+	@Override
+	public void onApplicationEvent(EmbeddedServletContainerInitializedEvent event) {
+		// Ignore the separate management server if there is one
+		if ("management".equals(event.getApplicationContext().getNamespace())) {
+			return;
 		}
+		localPort.complete(event.getEmbeddedServletContainer().getPort());
+	}
+
+	/**
+	 * @param relayEnabled whether forwarded traffic passes through a {@link TunnelRelay} (which
+	 * measures it) on its way to the local port
+	 */
+	public void setRelayEnabled(boolean relayEnabled) {
+		this.relayEnabled = relayEnabled;
+	}
+
+	/**
+	 * @return the relays in front of local ports, keyed by local port
+	 */
+	public Map<Integer, TunnelRelay> getRelays() {
+		return relays;
+	}
+
+	public void setProbeInterval(long probeInterval) {
+		this.probeInterval = probeInterval;
 	}
 
-	public void setShowProcessOutput(boolean s) {
-		this.showProcessOutput = s;
+	public void setProbeTimeout(int probeTimeout) {
+		this.probeTimeout = probeTimeout;
 	}
 
+	public void setReconnectBackoff(long initialBackoff, long maxBackoff) {
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * @return the supervisor keeping the tunnel up, or null if tunneling has not been started
+	 */
+	public TunnelSupervisor getSupervisor() {
+		return supervisor;
+	}
+
+	/**
+	 * @return completes when the tunnel is first usable, or null if tunneling has not been started
+	 */
+	public CompletableFuture<Void> getTunnel() {
+		return tunnel;
+	}
+
+	public void stop() {
+		log.info("Shutting down tunnels");
+		TunnelSupervisor supervisor = this.supervisor;
+		if (supervisor != null) {
+			supervisor.stop();
+		}
+		transport.close();
+		for (TunnelRelay relay : relays.values()) {
+			relay.close();
+		}
+		executor.shutdownNow();
+	}
+	
 	@Override
 	public void destroy() throws Exception {
 		stop();
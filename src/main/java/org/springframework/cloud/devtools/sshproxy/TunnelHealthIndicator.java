@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.util.Date;
+
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+
+/**
+ * Reports the state of the tunnel to the deployed proxy app: up when the last probe through the
+ * tunnel succeeded, down while it is being re-established.
+ *
+ * @author Andy Clement
+ */
+public class TunnelHealthIndicator extends AbstractHealthIndicator {
+
+	private final TunnelConnectionManager tunnelConnectionManager;
+
+	public TunnelHealthIndicator(TunnelConnectionManager tunnelConnectionManager) {
+		this.tunnelConnectionManager = tunnelConnectionManager;
+	}
+
+	@Override
+	protected void doHealthCheck(Health.Builder builder) throws Exception {
+		TunnelSupervisor supervisor = tunnelConnectionManager.getSupervisor();
+		if (supervisor == null) {
+			builder.unknown().withDetail("state", "NOT_ACTIVATED");
+			return;
+		}
+		TunnelSupervisor.State state = supervisor.getState();
+		switch (state) {
+		case UP:
+			builder.up();
+			break;
+		case STARTING:
+			builder.unknown();
+			break;
+		default:
+			builder.down();
+		}
+		builder.withDetail("state", state).withDetail("reconnects", supervisor.getReconnects())
+				.withDetail("mappings", tunnelConnectionManager.getMappings());
+		if (supervisor.getUpSince() != 0) {
+			builder.withDetail("upSince", new Date(supervisor.getUpSince()));
+		}
+		if (supervisor.getLastProbeTime() != 0) {
+			builder.withDetail("lastProbe", new Date(supervisor.getLastProbeTime()));
+		}
+		if (supervisor.getLastFailure() != null) {
+			builder.withDetail("lastFailure", supervisor.getLastFailure());
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Exposes the traffic through each {@link TunnelRelay} on the metrics endpoint, as
+ * <tt>devtools.tunnel.&lt;local port&gt;.*</tt>. Byte rates are averaged over the time since
+ * the metrics were last read.
+ *
+ * @author Andy Clement
+ */
+public class TunnelPublicMetrics implements PublicMetrics {
+
+	public static final String PREFIX = "devtools.tunnel.";
+
+	private final TunnelConnectionManager tunnelConnectionManager;
+
+	// Local port to the totals when last read, guarded by this
+	private final Map<Integer, long[]> lastSample = new HashMap<>();
+
+	public TunnelPublicMetrics(TunnelConnectionManager tunnelConnectionManager) {
+		this.tunnelConnectionManager = tunnelConnectionManager;
+	}
+
+	@Override
+	public synchronized Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		long now = System.nanoTime();
+		for (TunnelRelay relay : tunnelConnectionManager.getRelays().values()) {
+			String prefix = PREFIX + relay.getTargetPort() + ".";
+			long in = relay.getBytesFromTunnel();
+			long out = relay.getBytesToTunnel();
+			metrics.add(new Metric<Long>(prefix + "bytes.in", in));
+			metrics.add(new Metric<Long>(prefix + "bytes.out", out));
+			long[] previous = lastSample.put(relay.getTargetPort(), new long[] { now, in, out });
+			if (previous != null && now > previous[0]) {
+				double seconds = (now - previous[0]) / 1e9;
+				metrics.add(new Metric<Double>(prefix + "bytes.in.per-second", (in - previous[1]) / seconds));
+				metrics.add(new Metric<Double>(prefix + "bytes.out.per-second", (out - previous[2]) / seconds));
+			}
+			metrics.add(new Metric<Integer>(prefix + "connections.active", relay.getActiveConnections()));
+			metrics.add(new Metric<Long>(prefix + "connections.total", relay.getTotalConnections()));
+			metrics.add(new Metric<Long>(prefix + "connections.failed", relay.getFailedConnections()));
+			long samples = relay.getLatencySamples();
+			if (samples != 0) {
+				metrics.add(new Metric<Double>(prefix + "response-latency.mean", relay.getTotalLatencyNanos() / 1e6 / samples));
+				metrics.add(new Metric<Double>(prefix + "response-latency.max", relay.getMaxLatencyNanos() / 1e6));
+			}
+		}
+		return metrics;
+	}
+
+}
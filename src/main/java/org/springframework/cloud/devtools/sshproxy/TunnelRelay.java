@@ -0,0 +1,378 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays connections arriving through the tunnel to a local port, measuring the traffic on the
+ * way. Forwards point at the relay's port rather than straight at the local service.
+ * <p>
+ * A single selector thread moves bytes between each pair of non-blocking channels through
+ * pooled direct buffers, so data goes from socket to socket without being copied onto the Java
+ * heap. A side is only read while there is room to hold what it sends, so a slow reader applies
+ * backpressure to its peer rather than the relay buffering without limit.
+ * <p>
+ * Response latency is the time from the first byte of a request arriving through the tunnel to
+ * the first byte of the local service's reply, for request/response protocols like HTTP.
+ *
+ * @author Andy Clement
+ */
+public class TunnelRelay implements Closeable {
+
+	private static Logger log = LoggerFactory.getLogger(TunnelRelay.class);
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final int targetPort;
+
+	private final int bufferSize;
+
+	// Only touched by the relay thread
+	private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+
+	private Selector selector;
+
+	private ServerSocketChannel server;
+
+	private Thread thread;
+
+	private volatile boolean running;
+
+	private final AtomicLong bytesFromTunnel = new AtomicLong();
+
+	private final AtomicLong bytesToTunnel = new AtomicLong();
+
+	private final AtomicInteger activeConnections = new AtomicInteger();
+
+	private final AtomicLong totalConnections = new AtomicLong();
+
+	private final AtomicLong failedConnections = new AtomicLong();
+
+	private final AtomicLong latencySamples = new AtomicLong();
+
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	public TunnelRelay(int targetPort) {
+		this(targetPort, DEFAULT_BUFFER_SIZE);
+	}
+
+	public TunnelRelay(int targetPort, int bufferSize) {
+		this.targetPort = targetPort;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Start listening on an ephemeral loopback port.
+	 * @return the port to forward to
+	 */
+	public synchronized int start() throws IOException {
+		if (running) {
+			return getPort();
+		}
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		thread = new Thread(this::run, "devtools-tunnel-relay-" + targetPort);
+		thread.setDaemon(true);
+		thread.start();
+		return getPort();
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	public int getTargetPort() {
+		return targetPort;
+	}
+
+	@Override
+	public synchronized void close() {
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	private void run() {
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Connection connection = (Connection) key.attachment();
+						try {
+							connection.pump(key);
+						} catch (IOException e) {
+							log.debug("Relayed connection failed: {}", e.toString());
+							connection.close();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.error("Tunnel relay to port " + targetPort + " failed", e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			closeQuietly(server);
+			closeQuietly(selector);
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel tunnelSide = server.accept();
+		if (tunnelSide == null) {
+			return;
+		}
+		totalConnections.incrementAndGet();
+		SocketChannel targetSide;
+		try {
+			// The target is on this machine so a blocking connect is quick
+			targetSide = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), targetPort));
+		} catch (IOException e) {
+			failedConnections.incrementAndGet();
+			log.warn("Unable to connect relay to local port {}: {}", targetPort, e.toString());
+			closeQuietly(tunnelSide);
+			return;
+		}
+		try {
+			tunnelSide.configureBlocking(false);
+			targetSide.configureBlocking(false);
+			tunnelSide.socket().setTcpNoDelay(true);
+			targetSide.socket().setTcpNoDelay(true);
+			new Connection(tunnelSide, targetSide);
+		} catch (IOException e) {
+			failedConnections.incrementAndGet();
+			closeQuietly(tunnelSide);
+			closeQuietly(targetSide);
+		}
+	}
+
+	private ByteBuffer borrowBuffer() {
+		ByteBuffer buffer = bufferPool.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	private void returnBuffer(ByteBuffer buffer) {
+		buffer.clear();
+		bufferPool.push(buffer);
+	}
+
+	/**
+	 * A relayed connection. Each buffer holds data read from one side waiting to be written to
+	 * the other and is kept in fill mode between events.
+	 */
+	private final class Connection {
+
+		private final SocketChannel tunnelSide;
+
+		private final SocketChannel targetSide;
+
+		private final SelectionKey tunnelKey;
+
+		private final SelectionKey targetKey;
+
+		private final ByteBuffer toTarget;
+
+		private final ByteBuffer toTunnel;
+
+		private boolean tunnelEof;
+
+		private boolean targetEof;
+
+		private boolean awaitingResponse;
+
+		private long requestStart;
+
+		private boolean closed;
+
+		Connection(SocketChannel tunnelSide, SocketChannel targetSide) throws IOException {
+			this.tunnelSide = tunnelSide;
+			this.targetSide = targetSide;
+			this.tunnelKey = tunnelSide.register(selector, SelectionKey.OP_READ, this);
+			this.targetKey = targetSide.register(selector, SelectionKey.OP_READ, this);
+			this.toTarget = borrowBuffer();
+			this.toTunnel = borrowBuffer();
+			activeConnections.incrementAndGet();
+		}
+
+		void pump(SelectionKey key) throws IOException {
+			if (key.isReadable()) {
+				if (key == tunnelKey) {
+					int n = tunnelSide.read(toTarget);
+					if (n == -1) {
+						tunnelEof = true;
+					} else if (n > 0) {
+						bytesFromTunnel.addAndGet(n);
+						if (!awaitingResponse) {
+							awaitingResponse = true;
+							requestStart = System.nanoTime();
+						}
+					}
+				} else {
+					int n = targetSide.read(toTunnel);
+					if (n == -1) {
+						targetEof = true;
+					} else if (n > 0) {
+						bytesToTunnel.addAndGet(n);
+						if (awaitingResponse) {
+							awaitingResponse = false;
+							recordLatency(System.nanoTime() - requestStart);
+						}
+					}
+				}
+			}
+			flush(toTarget, targetSide);
+			flush(toTunnel, tunnelSide);
+			if (tunnelEof && toTarget.position() == 0 && !targetSide.socket().isOutputShutdown()) {
+				targetSide.shutdownOutput();
+			}
+			if (targetEof && toTunnel.position() == 0 && !tunnelSide.socket().isOutputShutdown()) {
+				tunnelSide.shutdownOutput();
+			}
+			if (tunnelEof && targetEof && toTarget.position() == 0 && toTunnel.position() == 0) {
+				close();
+				return;
+			}
+			tunnelKey.interestOps(interest(tunnelEof, toTarget, toTunnel));
+			targetKey.interestOps(interest(targetEof, toTunnel, toTarget));
+		}
+
+		private void flush(ByteBuffer buffer, SocketChannel channel) throws IOException {
+			if (buffer.position() > 0) {
+				buffer.flip();
+				channel.write(buffer);
+				buffer.compact();
+			}
+		}
+
+		/**
+		 * Read from a side while it has not finished and its outgoing buffer has room, wait to
+		 * write to it while data for it is pending.
+		 */
+		private int interest(boolean eof, ByteBuffer outgoing, ByteBuffer incoming) {
+			int ops = 0;
+			if (!eof && outgoing.hasRemaining()) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (incoming.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			return ops;
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			activeConnections.decrementAndGet();
+			tunnelKey.cancel();
+			targetKey.cancel();
+			closeQuietly(tunnelSide);
+			closeQuietly(targetSide);
+			returnBuffer(toTarget);
+			returnBuffer(toTunnel);
+		}
+	}
+
+	private void recordLatency(long nanos) {
+		latencySamples.incrementAndGet();
+		totalLatencyNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, nanos)) {
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			if (closeable != null) {
+				closeable.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	public long getBytesFromTunnel() {
+		return bytesFromTunnel.get();
+	}
+
+	public long getBytesToTunnel() {
+		return bytesToTunnel.get();
+	}
+
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	public long getTotalConnections() {
+		return totalConnections.get();
+	}
+
+	/**
+	 * @return connections that arrived through the tunnel but could not reach the local port
+	 */
+	public long getFailedConnections() {
+		return failedConnections.get();
+	}
+
+	public long getLatencySamples() {
+		return latencySamples.get();
+	}
+
+	public long getTotalLatencyNanos() {
+		return totalLatencyNanos.get();
+	}
+
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos.get();
+	}
+
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a tunnel up. The transport is probed periodically, both by asking it whether its
+ * connections are still open and by {@link TunnelTransport#probe(int) probing} through it. When
+ * the tunnel is found to be broken it is torn down and re-established, retrying with jittered
+ * exponential backoff until it comes back. The backoff only resets once a probe succeeds, so a
+ * tunnel that connects but does not pass traffic is retried no faster than one that cannot connect.
+ * <p>
+ * All checking and reconnecting happens on a single scheduler thread.
+ *
+ * @author Andy Clement
+ */
+public class TunnelSupervisor {
+
+	private static Logger log = LoggerFactory.getLogger(TunnelSupervisor.class);
+
+	// A probe can fail on a busy link, reconnect on the second failure in a row
+	private static final int PROBE_FAILURES_BEFORE_RECONNECT = 2;
+
+	private static final long CONNECTING_POLL_MILLIS = 200;
+
+	public enum State {
+		/**
+		 * The tunnel is being set up for the first time.
+		 */
+		STARTING,
+		/**
+		 * The tunnel is set up and the last probe succeeded.
+		 */
+		UP,
+		/**
+		 * The tunnel broke and is being set up again.
+		 */
+		RECONNECTING,
+		STOPPED
+	}
+
+	private final TunnelTransport transport;
+
+	private final Supplier<CompletableFuture<Void>> connector;
+
+	private final long probeIntervalMillis;
+
+	private final int probeTimeoutMillis;
+
+	private final long initialBackoffMillis;
+
+	private final long maxBackoffMillis;
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "devtools-tunnel-supervisor");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final AtomicLong reconnects = new AtomicLong();
+
+	private volatile State state = State.STARTING;
+
+	private volatile CompletableFuture<Void> connection;
+
+	private volatile long lastProbeTime;
+
+	private volatile long upSince;
+
+	private volatile String lastFailure;
+
+	// Only touched on the scheduler thread
+	private int probeFailures;
+
+	// Reconnects since a probe last succeeded
+	private int attempt;
+
+	/**
+	 * @param transport the transport carrying the tunnel
+	 * @param connector sets up the tunnel over the transport, the returned future completes when
+	 * it is usable
+	 */
+	public TunnelSupervisor(TunnelTransport transport, Supplier<CompletableFuture<Void>> connector,
+			long probeIntervalMillis, int probeTimeoutMillis, long initialBackoffMillis, long maxBackoffMillis) {
+		this.transport = transport;
+		this.connector = connector;
+		this.probeIntervalMillis = probeIntervalMillis;
+		this.probeTimeoutMillis = probeTimeoutMillis;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Set up the tunnel and start supervising it.
+	 * @return completes when the tunnel is first usable
+	 */
+	public CompletableFuture<Void> start() {
+		CompletableFuture<Void> first = connector.get();
+		connection = first;
+		scheduler.schedule(this::check, CONNECTING_POLL_MILLIS, TimeUnit.MILLISECONDS);
+		return first;
+	}
+
+	public void stop() {
+		state = State.STOPPED;
+		scheduler.shutdownNow();
+	}
+
+	private void check() {
+		if (state == State.STOPPED) {
+			return;
+		}
+		long delay;
+		try {
+			delay = checkConnection();
+		} catch (RuntimeException e) {
+			log.warn("Tunnel check failed", e);
+			delay = probeIntervalMillis;
+		}
+		if (state != State.STOPPED) {
+			scheduler.schedule(this::check, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return how long to wait before the next check
+	 */
+	long checkConnection() {
+		CompletableFuture<Void> current = connection;
+		if (current == null) {
+			return reconnect();
+		}
+		if (!current.isDone()) {
+			return CONNECTING_POLL_MILLIS;
+		}
+		if (current.isCompletedExceptionally()) {
+			lastFailure = failureOf(current);
+			log.warn("Tunnel setup failed: {}", lastFailure);
+			return backoffThenReconnect();
+		}
+		lastProbeTime = System.currentTimeMillis();
+		boolean alive = transport.isAlive();
+		if (alive && transport.probe(probeTimeoutMillis)) {
+			if (state != State.UP) {
+				log.info("Tunnel is up{}", attempt == 0 ? "" : " after " + attempt + " reconnect attempt(s)");
+				state = State.UP;
+				upSince = System.currentTimeMillis();
+			}
+			probeFailures = 0;
+			attempt = 0;
+			return probeIntervalMillis;
+		}
+		lastFailure = alive ? "probe through the tunnel failed" : "tunnel connection closed";
+		if (alive && ++probeFailures < PROBE_FAILURES_BEFORE_RECONNECT) {
+			log.debug("Tunnel probe failed, checking again shortly");
+			return Math.min(probeIntervalMillis, initialBackoffMillis);
+		}
+		// Back off here too, a tunnel that connects but never passes traffic must not be
+		// reconnected (with a fresh ssh code and sessions) as fast as it can be checked
+		log.warn("Tunnel broken ({}), reconnecting", lastFailure);
+		return backoffThenReconnect();
+	}
+
+	private long backoffThenReconnect() {
+		connection = null;
+		transport.close();
+		reconnecting();
+		return backoff(attempt++);
+	}
+
+	private long reconnect() {
+		transport.close();
+		reconnecting();
+		probeFailures = 0;
+		reconnects.incrementAndGet();
+		connection = connector.get();
+		return CONNECTING_POLL_MILLIS;
+	}
+
+	private void reconnecting() {
+		if (state != State.STOPPED) {
+			state = State.RECONNECTING;
+		}
+	}
+
+	/**
+	 * Exponential backoff with equal jitter: half the delay is fixed and half random, so a fleet
+	 * of developer machines dropped by the same outage does not hammer CF in lockstep.
+	 */
+	long backoff(int attempt) {
+		long delay = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt, 20));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	private static String failureOf(CompletableFuture<Void> future) {
+		try {
+			future.get();
+			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			while (cause instanceof CompletionException || cause instanceof UncheckedIOException) {
+				cause = cause.getCause();
+			}
+			return String.valueOf(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return e.toString();
+		} catch (RuntimeException e) {
+			return e.toString();
+		}
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	public long getLastProbeTime() {
+		return lastProbeTime;
+	}
+
+	/**
+	 * @return when the tunnel last came up, 0 if it never has
+	 */
+	public long getUpSince() {
+		return upSince;
+	}
+
+	public String getLastFailure() {
+		return lastFailure;
+	}
+
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import java.io.IOException;
+
+/**
+ * Carries the two halves of a tunnel: a link to the sshd running inside the CF deployed proxy
+ * app and the reverse forward(s) from the proxy container back to ports on this machine.
+ *
+ * @author Andy Clement
+ */
+public interface TunnelTransport {
+
+	/**
+	 * Establish the link to the sshd inside the proxy app.
+	 * @param appName the name of the deployed proxy app
+	 * @return the address of the proxy container that reverse forwards should listen on
+	 */
+	String connect(String appName) throws IOException;
+
+	/**
+	 * Forward connections made to a port on the proxy container to a port on this machine.
+	 */
+	void forward(String containerAddress, int remotePort, int localPort) throws IOException;
+
+	/**
+	 * @return true if everything established so far still appears to be working
+	 */
+	boolean isAlive();
+
+	/**
+	 * Check the link to the proxy's sshd end to end, which may find problems {@link #isAlive()}
+	 * cannot, like a connection that is open but no longer passing data.
+	 * @return true if the proxy's sshd answered within the timeout
+	 */
+	boolean probe(int timeoutMillis);
+
+	void close();
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.cloud.devtools.DeveloperRoutingDescriptorCodec.Format;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.loadbalancer.BaseLoadBalancer;
+import com.netflix.loadbalancer.LoadBalancerStats;
+import com.netflix.loadbalancer.Server;
+import com.netflix.loadbalancer.ServerStats;
+import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
+
+/**
+ * @author Andy Clement
+ */
+public class BaggageAwareRuleTests {
+
+	private final DeveloperRoutingDescriptorRegistry registry = new DeveloperRoutingDescriptorRegistry();
+
+	private final DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache(16,
+			new DeveloperRoutingDescriptorCodec(), registry);
+
+	private final CountingPredicate predicate = new CountingPredicate(cache);
+
+	private final BaggageAwareRule rule = new BaggageAwareRule(predicate);
+
+	private final BaseLoadBalancer loadBalancer = new BaseLoadBalancer();
+
+	private DeveloperRoutingContext.Scope scope;
+
+	@After
+	public void close() {
+		if (scope != null) {
+			scope.close();
+		}
+		loadBalancer.shutdown();
+	}
+
+	@Test
+	public void eligibleServersCachedByFingerprint() {
+		serve(server("b1", "env=dev"), server("b2"), server("b3", "env=dev"));
+		route("1|Andy|b:env=dev");
+		assertEquals(names("b1", "b3"), chooseAll());
+		assertEquals(3, predicate.evaluations);
+		// Different baggage routing the same way shares the filtered list
+		route(new DeveloperRoutingDescriptorCodec(Format.JSON).encode(descriptor("Andy", "env=dev")));
+		assertEquals(names("b1", "b3"), chooseAll());
+		assertEquals(3, predicate.evaluations);
+		route("1|Andy|b:env=test");
+		assertEquals(names(), chooseAll());
+		assertEquals(6, predicate.evaluations);
+		route(null);
+		assertEquals(names("b1", "b2", "b3"), chooseAll());
+		assertEquals(9, predicate.evaluations);
+	}
+
+	@Test
+	public void changedServerListRebuilds() {
+		serve(server("b1", "env=dev"), server("b2"));
+		route("1|Andy|b:env=dev");
+		assertEquals(names("b1"), chooseAll());
+		serve(server("b1", "env=dev"), server("b2"), server("b3", "env=dev"));
+		assertEquals(names("b1", "b3"), chooseAll());
+		assertEquals(5, predicate.evaluations);
+	}
+
+	@Test
+	public void equalServerListWithNewServersRebuilds() {
+		serve(server("b1", "env=dev"), server("b2"));
+		route("1|Andy|b:env=dev");
+		assertEquals(names("b1"), chooseAll());
+		// A refresh creating new server objects for the same hosts does not notify listeners, the
+		// size and first server of the list show it has changed
+		serve(server("b1", "env=dev"), server("b2", "env=dev"));
+		assertEquals(names("b1", "b2"), chooseAll());
+		assertEquals(4, predicate.evaluations);
+	}
+
+	@Test
+	public void serverListVersionRebuilds() {
+		serve(server("b1", "env=dev"), server("b2"));
+		route("1|Andy|b:env=dev");
+		chooseAll();
+		chooseAll();
+		assertEquals(2, predicate.evaluations);
+		rule.invalidate();
+		chooseAll();
+		assertEquals(4, predicate.evaluations);
+	}
+
+	@Test
+	public void registryVersionRebuilds() {
+		serve(server("b1", "env=dev"), server("b2", "env=test"), server("b3"));
+		route(DeveloperRoutingDescriptorCodec.reference("Andy"));
+		registry.register(descriptor("Andy", "env=dev"));
+		assertEquals(names("b1"), chooseAll());
+		registry.register(descriptor("Andy", "env=test"));
+		assertEquals(names("b2"), chooseAll());
+		assertEquals(6, predicate.evaluations);
+		registry.register(descriptor("Andy", "env=dev"));
+		assertEquals(names("b1"), chooseAll());
+		assertEquals(6, predicate.evaluations);
+	}
+
+	@Test
+	public void powerOfTwoChoicesPrefersCheaperServer() {
+		final Map<String, ServerStats> stats = new HashMap<>();
+		loadBalancer.setLoadBalancerStats(new LoadBalancerStats("b") {
+			@Override
+			public ServerStats getSingleServerStat(Server server) {
+				return stats.get(server.getHost());
+			}
+		});
+		rule.setSelectionMode(BaggageAwareRule.SelectionMode.POWER_OF_TWO_CHOICES);
+		serve(server("fast", "env=dev"), server("slow", "env=dev"), server("other"));
+		route("1|Andy|b:env=dev");
+		stats.put("fast", ServerLatencyTrackerTests.stats(10, 5, 0));
+		stats.put("slow", ServerLatencyTrackerTests.stats(10, 200, 0));
+		stats.put("other", ServerLatencyTrackerTests.stats(10, 1, 0));
+		for (int i = 0; i < 20; i++) {
+			assertEquals("fast", rule.choose(null).getHost());
+		}
+		// Cost is latency scaled by active requests
+		stats.put("fast", ServerLatencyTrackerTests.stats(10, 5, 99));
+		for (int i = 0; i < 20; i++) {
+			assertEquals("slow", rule.choose(null).getHost());
+		}
+	}
+
+	private void serve(Server... servers) {
+		if (loadBalancer.getRule() != rule) {
+			loadBalancer.setRule(rule);
+		}
+		loadBalancer.setServersList(new ArrayList<>(Arrays.asList(servers)));
+	}
+
+	private void route(String baggage) {
+		if (scope != null) {
+			scope.close();
+		}
+		scope = DeveloperRoutingContext.of(baggage).open();
+	}
+
+	/**
+	 * @return the hosts chosen over enough calls to go round all the eligible servers
+	 */
+	private Set<String> chooseAll() {
+		Set<String> chosen = new TreeSet<>();
+		for (int i = 0; i < 2 * loadBalancer.getAllServers().size(); i++) {
+			Server server = rule.choose(null);
+			if (server != null) {
+				chosen.add(server.getHost());
+			}
+		}
+		return chosen;
+	}
+
+	private static Set<String> names(String... hosts) {
+		return new TreeSet<>(Arrays.asList(hosts));
+	}
+
+	private static DiscoveryEnabledServer server(String host, String... metadata) {
+		Map<String, String> map = new HashMap<>();
+		for (String keyValue : metadata) {
+			int equals = keyValue.indexOf('=');
+			map.put(keyValue.substring(0, equals), keyValue.substring(equals + 1));
+		}
+		InstanceInfo instanceInfo = InstanceInfo.Builder.newBuilder()
+				.setAppName("b")
+				.setInstanceId(host)
+				.setHostName(host)
+				.setIPAddr("10.0.0.1")
+				.setPort(8080)
+				.setMetadata(map)
+				.build();
+		return new DiscoveryEnabledServer(instanceInfo, false);
+	}
+
+	private static DeveloperRoutingDescriptor descriptor(String id, String constraint) {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor(id);
+		drd.addRouteConstraint("b", constraint);
+		return drd;
+	}
+
+	/**
+	 * Counts the servers examined, which only happens when eligible servers are (re)built.
+	 */
+	private static class CountingPredicate extends BaggageAwarePredicate {
+
+		int evaluations;
+
+		CountingPredicate(DeveloperRoutingDescriptorCache descriptorCache) {
+			super(descriptorCache);
+		}
+
+		@Override
+		boolean apply(DiscoveryEnabledServer server, RouteMatcher matcher) {
+			evaluations++;
+			return super.apply(server, matcher);
+		}
+	}
+
+}
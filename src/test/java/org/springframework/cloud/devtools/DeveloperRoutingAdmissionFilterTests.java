@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @author Andy Clement
+ */
+public class DeveloperRoutingAdmissionFilterTests {
+
+	private static final FilterChain OK = (request, response) -> {
+	};
+
+	@Test
+	public void concurrencyLimited() throws Exception {
+		DeveloperRoutingAdmissionFilter filter = new DeveloperRoutingAdmissionFilter(1, 0, 1);
+		MockHttpServletResponse nested = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), new MockHttpServletResponse(),
+				(request, response) -> {
+					assertEquals(1, filter.getInFlight());
+					filter.doFilter(new MockHttpServletRequest("GET", "/orders"), nested, OK);
+				});
+		assertRejected(nested);
+		assertEquals(0, filter.getInFlight());
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), response, OK);
+		assertEquals(200, response.getStatus());
+		assertEquals(2, filter.getAdmitted());
+		assertEquals(1, filter.getRejectedConcurrency());
+		assertEquals(0, filter.getRejectedRate());
+	}
+
+	@Test
+	public void permitReleasedWhenChainFails() throws Exception {
+		DeveloperRoutingAdmissionFilter filter = new DeveloperRoutingAdmissionFilter(1, 0, 1);
+		try {
+			filter.doFilter(new MockHttpServletRequest("GET", "/orders"), new MockHttpServletResponse(),
+					(request, response) -> {
+						throw new IllegalStateException("failed");
+					});
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, filter.getInFlight());
+	}
+
+	@Test
+	public void rateLimitedWithBurst() throws Exception {
+		// One request a second, so nothing accrues while the test runs
+		DeveloperRoutingAdmissionFilter filter = new DeveloperRoutingAdmissionFilter(0, 1, 3);
+		for (int i = 0; i < 3; i++) {
+			MockHttpServletResponse response = new MockHttpServletResponse();
+			filter.doFilter(new MockHttpServletRequest("GET", "/orders"), response, OK);
+			assertEquals(200, response.getStatus());
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), response, OK);
+		assertRejected(response);
+		assertEquals(3, filter.getAdmitted());
+		assertEquals(1, filter.getRejectedRate());
+		assertEquals(0, filter.getRejectedConcurrency());
+	}
+
+	@Test
+	public void rateRecovers() throws Exception {
+		DeveloperRoutingAdmissionFilter filter = new DeveloperRoutingAdmissionFilter(0, 10, 1);
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), new MockHttpServletResponse(), OK);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), response, OK);
+		assertRejected(response);
+		// The emission interval is 100ms
+		Thread.sleep(150);
+		response = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), response, OK);
+		assertEquals(200, response.getStatus());
+	}
+
+	@Test
+	public void unlimited() throws Exception {
+		DeveloperRoutingAdmissionFilter filter = new DeveloperRoutingAdmissionFilter(0, 0, 1);
+		for (int i = 0; i < 1000; i++) {
+			MockHttpServletResponse response = new MockHttpServletResponse();
+			filter.doFilter(new MockHttpServletRequest("GET", "/orders"), response, OK);
+			assertEquals(200, response.getStatus());
+		}
+		assertEquals(0, filter.getInFlight());
+		assertTrue(filter.getMetadata().isEmpty());
+	}
+
+	@Test
+	public void excludedPathsNotLimited() throws Exception {
+		DeveloperRoutingAdmissionFilter filter = new DeveloperRoutingAdmissionFilter(1, 0, 1);
+		filter.setExcludedPaths(Arrays.asList("/admin", "/health"));
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), new MockHttpServletResponse(),
+				(request, response) -> {
+					assertAdmitted(filter, "/admin");
+					assertAdmitted(filter, "/admin/health");
+					assertAdmitted(filter, "/health");
+					assertAdmitted(filter, "/health.json");
+					MockHttpServletResponse limited = new MockHttpServletResponse();
+					filter.doFilter(new MockHttpServletRequest("GET", "/healthy"), limited, OK);
+					assertRejected(limited);
+					limited = new MockHttpServletResponse();
+					filter.doFilter(new MockHttpServletRequest("GET", "/orders/admin"), limited, OK);
+					assertRejected(limited);
+				});
+		assertEquals(1, filter.getAdmitted());
+		assertEquals(2, filter.getRejectedConcurrency());
+	}
+
+	@Test
+	public void excludedPathsWithinContextPath() throws Exception {
+		DeveloperRoutingAdmissionFilter filter = new DeveloperRoutingAdmissionFilter(0, 1, 1);
+		filter.setExcludedPaths(Arrays.asList("/health"));
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), new MockHttpServletResponse(), OK);
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/shop/health");
+		request.setContextPath("/shop");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request, response, OK);
+		assertEquals(200, response.getStatus());
+		assertEquals(0, filter.getRejectedRate());
+	}
+
+	@Test
+	public void asyncRequestHoldsPermitUntilComplete() throws Exception {
+		DeveloperRoutingAdmissionFilter filter = new DeveloperRoutingAdmissionFilter(1, 0, 1);
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/orders");
+		request.setAsyncSupported(true);
+		filter.doFilter(request, new MockHttpServletResponse(), (req, res) -> req.startAsync());
+		assertEquals(1, filter.getInFlight());
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), response, OK);
+		assertRejected(response);
+		MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+		asyncContext.complete();
+		assertEquals(0, filter.getInFlight());
+		// Only released once
+		asyncContext.complete();
+		assertEquals(0, filter.getInFlight());
+		response = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", "/orders"), response, OK);
+		assertEquals(200, response.getStatus());
+	}
+
+	@Test
+	public void metadata() {
+		Map<String, String> metadata = new DeveloperRoutingAdmissionFilter(4, 2.5, 1).getMetadata();
+		assertEquals("4", metadata.get(DeveloperRoutingAdmissionFilter.MAX_CONCURRENT_REQUESTS_METADATA));
+		assertEquals("2.5", metadata.get(DeveloperRoutingAdmissionFilter.REQUESTS_PER_SECOND_METADATA));
+		metadata = new DeveloperRoutingAdmissionFilter(4, 0, 1).getMetadata();
+		assertEquals(1, metadata.size());
+		assertNull(metadata.get(DeveloperRoutingAdmissionFilter.REQUESTS_PER_SECOND_METADATA));
+	}
+
+	@Test
+	public void invalidLimits() {
+		assertInvalid(-1, 0, 1);
+		assertInvalid(0, -1, 1);
+		assertInvalid(0, 1, 0);
+	}
+
+	private static void assertAdmitted(DeveloperRoutingAdmissionFilter filter, String path)
+			throws IOException, ServletException {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("GET", path), response, OK);
+		assertEquals(path, 200, response.getStatus());
+	}
+
+	private static void assertRejected(MockHttpServletResponse response) {
+		assertEquals(503, response.getStatus());
+		assertEquals("1", response.getHeader("Retry-After"));
+	}
+
+	private static void assertInvalid(int maxConcurrentRequests, double requestsPerSecond, int burst) {
+		try {
+			new DeveloperRoutingAdmissionFilter(maxConcurrentRequests, requestsPerSecond, burst);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.jmnarloch.spring.cloud.ribbon.api.RibbonFilterContext;
+import io.jmnarloch.spring.cloud.ribbon.support.RibbonFilterContextHolder;
+
+/**
+ * @author Andy Clement
+ */
+public class DeveloperRoutingContextTests {
+
+	@After
+	public void clear() {
+		RibbonFilterContextHolder.clearCurrentContext();
+	}
+
+	@Test
+	public void scopeRestoresPreviousContext() {
+		RibbonFilterContext original = RibbonFilterContextHolder.getCurrentContext();
+		original.add("other", "x");
+		try (DeveloperRoutingContext.Scope outer = DeveloperRoutingContext.of("a").open()) {
+			assertEquals("a", DeveloperRoutingContext.capture().getBaggage());
+			assertEquals("x", RibbonFilterContextHolder.getCurrentContext().get("other"));
+			try (DeveloperRoutingContext.Scope inner = DeveloperRoutingContext.of(null).open()) {
+				assertNull(DeveloperRoutingContext.capture().getBaggage());
+			}
+			assertEquals("a", DeveloperRoutingContext.capture().getBaggage());
+		}
+		assertSame(original, RibbonFilterContextHolder.getCurrentContext());
+		assertNull(original.get(DeveloperRoutingFilter.BAGGAGE_KEY));
+	}
+
+	@Test
+	public void overlappingScopesOnDifferentThreads() throws Exception {
+		final CountDownLatch childOpened = new CountDownLatch(1);
+		final CountDownLatch parentOpened = new CountDownLatch(1);
+		final AtomicReference<Throwable> childFailure = new AtomicReference<>();
+		try (DeveloperRoutingContext.Scope parent = DeveloperRoutingContext.of("parent").open()) {
+			// Created inside the scope so it inherits the parent's ribbon filter context object
+			Thread child = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						try (DeveloperRoutingContext.Scope scope = DeveloperRoutingContext.of("child").open()) {
+							childOpened.countDown();
+							assertTrue(parentOpened.await(10, TimeUnit.SECONDS));
+							assertEquals("child", DeveloperRoutingContext.capture().getBaggage());
+						}
+						assertEquals("parent", DeveloperRoutingContext.capture().getBaggage());
+					} catch (Throwable t) {
+						childFailure.set(t);
+					} finally {
+						childOpened.countDown();
+					}
+				}
+			});
+			child.start();
+			assertTrue(childOpened.await(10, TimeUnit.SECONDS));
+			assertEquals("parent", DeveloperRoutingContext.capture().getBaggage());
+			try (DeveloperRoutingContext.Scope overlapping = DeveloperRoutingContext.of("other").open()) {
+				parentOpened.countDown();
+				child.join(10000);
+				assertEquals("other", DeveloperRoutingContext.capture().getBaggage());
+			}
+			assertEquals("parent", DeveloperRoutingContext.capture().getBaggage());
+		}
+		assertNull(DeveloperRoutingContext.capture().getBaggage());
+		if (childFailure.get() != null) {
+			throw new AssertionError(childFailure.get());
+		}
+	}
+
+	@Test
+	public void wrappedTaskRunsWithCapturedRouting() throws Exception {
+		DeveloperRoutingContext captured;
+		try (DeveloperRoutingContext.Scope scope = DeveloperRoutingContext.of("a").open()) {
+			captured = DeveloperRoutingContext.capture();
+		}
+		final AtomicReference<String> seen = new AtomicReference<>();
+		captured.wrap(new Runnable() {
+			@Override
+			public void run() {
+				seen.set(DeveloperRoutingContext.capture().getBaggage());
+			}
+		}).run();
+		assertEquals("a", seen.get());
+		assertNull(DeveloperRoutingContext.capture().getBaggage());
+		assertEquals("b", DeveloperRoutingContext.of("b").wrap(() -> DeveloperRoutingContext.capture().getBaggage()).call());
+	}
+
+}
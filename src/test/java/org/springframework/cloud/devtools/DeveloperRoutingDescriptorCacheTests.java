@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.springframework.cloud.devtools.DeveloperRoutingDescriptorCodec.Format;
+
+/**
+ * @author Andy Clement
+ */
+public class DeveloperRoutingDescriptorCacheTests {
+
+	@Test
+	public void parsesOnce() {
+		DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache();
+		String baggage = new DeveloperRoutingDescriptorCodec(Format.COMPACT).encode(descriptor("env=dev"));
+		DeveloperRoutingDescriptor drd = cache.get(baggage);
+		assertTrue(drd.canonical());
+		assertSame(drd, cache.get(baggage));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertNull(cache.get("1|Andy|b"));
+		assertEquals(1, cache.getParseFailures());
+	}
+
+	@Test
+	public void internsEquivalentBaggage() {
+		DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache();
+		DeveloperRoutingDescriptor json = cache.get(new DeveloperRoutingDescriptorCodec(Format.JSON).encode(descriptor("env=dev")));
+		DeveloperRoutingDescriptor compact = cache.get("1|Andy|b:env=dev");
+		assertSame(json, compact);
+		assertSame(json, cache.intern(descriptor("env=dev")));
+		assertEquals(1, cache.getInternedCount());
+	}
+
+	@Test
+	public void digestsResolveOnceSeen() {
+		DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache();
+		DeveloperRoutingDescriptor drd = descriptor("env=dev");
+		String digest = DeveloperRoutingDescriptorCodec.digest(drd.fingerprint());
+		assertNull(cache.get(digest));
+		assertEquals(1, cache.getUnknownDigests());
+		DeveloperRoutingDescriptor seen = cache.get("1|Andy|b:env=dev");
+		assertSame(seen, cache.get(digest));
+	}
+
+	@Test
+	public void toBaggageUsesTheConfiguredFormat() {
+		DeveloperRoutingDescriptor drd = descriptor("env=dev");
+		for (Format format : Format.values()) {
+			DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache(16,
+					new DeveloperRoutingDescriptorCodec(format));
+			String baggage = cache.toBaggage(drd);
+			assertEquals(new DeveloperRoutingDescriptorCodec(format).encode(drd), baggage);
+			// Serialized once, and resolved without parsing
+			assertSame(baggage, cache.toBaggage(descriptor("env=dev")));
+			assertSame(drd.canonicalForm(), cache.get(baggage));
+			assertEquals(0, cache.getMisses());
+		}
+	}
+
+	@Test
+	public void clearForgetsEverything() {
+		DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache();
+		DeveloperRoutingDescriptor drd = descriptor("env=dev");
+		String baggage = cache.toBaggage(drd);
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getInternedCount());
+		assertNull(cache.get(DeveloperRoutingDescriptorCodec.digest(drd.fingerprint())));
+		assertEquals(baggage, cache.toBaggage(drd));
+		assertSame(drd.canonicalForm(), cache.get(DeveloperRoutingDescriptorCodec.digest(drd.fingerprint())));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache(2);
+		DeveloperRoutingDescriptor first = cache.get("1|Andy|b:env=dev");
+		cache.get("1|Andy|b:env=test");
+		cache.get("1|Andy|b:env=dev");
+		assertTrue(cache.size() <= 2);
+		assertTrue(cache.getEvictions() > 0);
+		assertSame(first, cache.get("1|Andy|b:env=dev"));
+	}
+
+	@Test
+	public void referencesFollowTheRegistry() {
+		DeveloperRoutingDescriptorRegistry registry = new DeveloperRoutingDescriptorRegistry();
+		DeveloperRoutingDescriptorCache cache = new DeveloperRoutingDescriptorCache(16,
+				new DeveloperRoutingDescriptorCodec(), registry);
+		String reference = DeveloperRoutingDescriptorCodec.reference("Andy");
+		assertNull(cache.get(reference));
+		long version = cache.getRegistryVersion();
+		registry.register(descriptor("env=dev"));
+		assertNotEquals(version, cache.getRegistryVersion());
+		assertEquals(descriptor("env=dev").compactForm(), cache.get(reference).compactForm());
+		registry.register(descriptor("env=test"));
+		assertEquals(descriptor("env=test").compactForm(), cache.get(reference).compactForm());
+		registry.unregister("Andy");
+		assertNull(cache.get(reference));
+		assertEquals(2, cache.getUnknownReferences());
+	}
+
+	private static DeveloperRoutingDescriptor descriptor(String constraint) {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy");
+		drd.addRouteConstraint("b", constraint);
+		return drd;
+	}
+
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.cloud.devtools.DeveloperRoutingDescriptor.RouteConstraint;
+import org.springframework.cloud.devtools.DeveloperRoutingDescriptorCodec.Format;
+
+/**
+ * @author Andy Clement
+ */
+public class DeveloperRoutingDescriptorCodecTests {
+
+	@Test
+	public void headerConstraints() {
+		DeveloperRoutingDescriptor drd = DeveloperRoutingDescriptorCodec.fromHeader("b:foo=bar,env=dev;c:version=2");
+		assertNull(drd.getId());
+		RouteConstraint[] rcs = drd.getRouteConstraints();
+		assertEquals(2, rcs.length);
+		assertEquals("b", rcs[0].getServiceName());
+		assertEquals(map("foo", "bar", "env", "dev"), rcs[0].getMetadataConstraints());
+		assertEquals(0, rcs[0].getWeight());
+		assertEquals("c", rcs[1].getServiceName());
+		assertEquals(map("version", "2"), rcs[1].getMetadataConstraints());
+	}
+
+	@Test
+	public void headerWildcardGlobsAndWeights() {
+		DeveloperRoutingDescriptor drd = DeveloperRoutingDescriptorCodec
+				.fromHeader("b@5:version=canary;b:env=dev;orders-*:env=dev;*:user=kryten");
+		RouteConstraint[] rcs = drd.getRouteConstraints();
+		assertEquals(4, rcs.length);
+		assertEquals(5, rcs[0].getWeight());
+		assertEquals(0, rcs[1].getWeight());
+		assertEquals("orders-*", rcs[2].getServiceName());
+		assertNull(rcs[3].getServiceName());
+		assertEquals(map("user", "kryten"), rcs[3].getMetadataConstraints());
+	}
+
+	@Test
+	public void headerSeparatorsAndEscapes() {
+		DeveloperRoutingDescriptor drd = DeveloperRoutingDescriptorCodec.fromHeader(";b:;;c:k%3d=v%2c%3b%25;");
+		RouteConstraint[] rcs = drd.getRouteConstraints();
+		assertEquals(2, rcs.length);
+		assertTrue(rcs[0].getMetadataConstraints().isEmpty());
+		assertEquals(map("k=", "v,;%"), rcs[1].getMetadataConstraints());
+	}
+
+	@Test
+	public void headerNullValue() {
+		DeveloperRoutingDescriptor drd = DeveloperRoutingDescriptorCodec.fromHeader("b:flag=!,bang=%21");
+		Map<String, String> metadata = drd.getRouteConstraints()[0].getMetadataConstraints();
+		assertTrue(metadata.containsKey("flag"));
+		assertNull(metadata.get("flag"));
+		assertEquals("!", metadata.get("bang"));
+	}
+
+	@Test
+	public void headerRejected() {
+		assertRejected("", "No route constraints");
+		assertRejected(";;", "No route constraints");
+		assertRejected("b", "Missing ':' after service name at 0");
+		assertRejected(":x=y", "Missing service name at 0");
+		assertRejected("b,c:x=y", "Unexpected ',' in service name at 1");
+		assertRejected("b=c:x=y", "Unexpected '=' in service name at 1");
+		assertRejected("b:foo", "Missing '=' in metadata constraint at 2");
+		assertRejected("b:x=y,foo;c:", "Missing '=' in metadata constraint at 6");
+		assertRejected("b:=x", "Missing metadata key at 2");
+		assertRejected("b@:x=y", "Invalid weight at 2");
+		assertRejected("b@x:x=y", "Invalid weight at 2");
+		assertRejected("b@1000:x=y", "Invalid weight at 2");
+		assertRejected("b@101:x=y", "Weight 101 at 2 is more than 100");
+		assertRejected("b:k=%4", "Truncated escape at 4");
+		assertRejected("b:k=%zz", "Invalid escape at 4");
+	}
+
+	@Test
+	public void headerRejectsWeightsOverOneHundred() {
+		assertRejected("b@60:v=a;b@50:v=b", "Route constraint weights for b add up to 110 which is more than 100");
+	}
+
+	@Test
+	public void headerRejectsRegularExpressions() {
+		assertRejected("b:version=~2\\..*", "Regular expression constraint not allowed at 9");
+		assertRejected("b:env=dev,version=~(a+)+b", "Regular expression constraint not allowed at 17");
+	}
+
+	@Test
+	public void compactRoundTrip() {
+		DeveloperRoutingDescriptor drd = sample();
+		DeveloperRoutingDescriptorCodec codec = new DeveloperRoutingDescriptorCodec(Format.COMPACT);
+		String baggage = codec.encode(drd);
+		assertTrue(baggage, baggage.startsWith("1|Andy%7c1|"));
+		DeveloperRoutingDescriptor decoded = codec.decode(baggage);
+		assertEquals(baggage, codec.encode(decoded));
+		assertEquals(drd.fingerprint(), decoded.fingerprint());
+		assertSampleDecoded(decoded);
+	}
+
+	@Test
+	public void compactForm() {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy");
+		drd.addRouteConstraint("b", "foo=bar", "env=dev");
+		drd.addRouteConfig("c", 5, map("version", "canary"), map("build", "2\\..*"));
+		drd.addRouteConfig("c", map("flag", null));
+		drd.addRouteConstraint(null, "user=kryten");
+		assertEquals("1|Andy|b:env=dev,foo=bar;c@5:version=canary,build=~2\\..%2a;c:flag=!;*:user=kryten",
+				DeveloperRoutingDescriptorCodec.toCompact(drd.canonicalForm()));
+	}
+
+	@Test
+	public void compactWithoutIdOrConstraints() {
+		DeveloperRoutingDescriptor drd = DeveloperRoutingDescriptorCodec.fromCompact("1||");
+		assertNull(drd.getId());
+		assertEquals(0, drd.getRouteConstraints().length);
+		assertEquals("1||", DeveloperRoutingDescriptorCodec.toCompact(drd));
+	}
+
+	@Test
+	public void compactRejected() {
+		DeveloperRoutingDescriptorCodec codec = new DeveloperRoutingDescriptorCodec(Format.COMPACT);
+		assertDecodeRejected(codec, "2|Andy|b:x=y", "Unrecognized developer routing baggage");
+		assertDecodeRejected(codec, "1|Andy", "Missing route constraints");
+		assertDecodeRejected(codec, "1|Andy|b@101:x=y", "Weight 101 at 9 is more than 100 in: 1|Andy|b@101:x=y");
+		assertDecodeRejected(codec, "1|Andy|b:x=~(", "Unclosed group");
+	}
+
+	@Test
+	public void jsonRoundTrip() {
+		DeveloperRoutingDescriptor drd = sample();
+		DeveloperRoutingDescriptorCodec codec = new DeveloperRoutingDescriptorCodec(Format.JSON);
+		String baggage = codec.encode(drd);
+		assertTrue(baggage, baggage.startsWith("{"));
+		DeveloperRoutingDescriptor decoded = codec.decode(baggage);
+		assertEquals(drd.compactForm(), decoded.compactForm());
+		assertEquals(drd.fingerprint(), decoded.fingerprint());
+		assertSampleDecoded(decoded);
+	}
+
+	@Test
+	public void jsonIsTheDefault() {
+		assertEquals(Format.JSON, new DeveloperRoutingDescriptorCodec().getFormat());
+		assertEquals(Format.JSON, new DeveloperRoutingProperties().getBaggageFormat());
+	}
+
+	@Test
+	public void digestAndReference() {
+		DeveloperRoutingDescriptor drd = sample();
+		DeveloperRoutingDescriptorCodec codec = new DeveloperRoutingDescriptorCodec(Format.DIGEST);
+		String baggage = codec.encode(drd);
+		assertEquals(DeveloperRoutingDescriptorCodec.digest(drd.fingerprint()), baggage);
+		assertEquals(DeveloperRoutingDescriptorCodec.digest(drd.compactForm()), baggage);
+		assertNull(codec.decode(baggage));
+		String reference = DeveloperRoutingDescriptorCodec.reference("Andy|1");
+		assertEquals("@1|Andy%7c1", reference);
+		assertNull(codec.decode(reference));
+		assertEquals("Andy|1", DeveloperRoutingDescriptorCodec.referencedId(reference));
+	}
+
+	@Test
+	public void compactAllowsRegularExpressions() {
+		DeveloperRoutingDescriptor drd = DeveloperRoutingDescriptorCodec.fromCompact("1|Andy|b:version=~2\\.[0-9]+");
+		assertEquals(map("version", "2\\.[0-9]+"), drd.getRouteConstraints()[0].getMetadataPatterns());
+	}
+
+	/**
+	 * Named, weighted, glob and wildcard constraints with reserved characters, a null value and
+	 * a regular expression.
+	 */
+	private static DeveloperRoutingDescriptor sample() {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy|1");
+		drd.addRouteConfig("orders", 25, map("version", "canary"));
+		drd.addRouteConfig("orders", map("env", "dev", "k=;", "a,b:c%d@e*!", "flag", null, "bang", "!"));
+		drd.addRouteConfig("orders-*", 0, map("env", "dev"), map("version", "2\\.[0-9]+"));
+		drd.addRouteConstraint(null, "user=kryten");
+		return drd;
+	}
+
+	private static void assertSampleDecoded(DeveloperRoutingDescriptor drd) {
+		assertEquals("Andy|1", drd.getId());
+		RouteConstraint[] rcs = drd.getRouteConstraints();
+		assertEquals(4, rcs.length);
+		assertEquals("orders", rcs[0].getServiceName());
+		assertEquals(25, rcs[0].getWeight());
+		assertEquals(0, rcs[1].getWeight());
+		Map<String, String> metadata = rcs[1].getMetadataConstraints();
+		assertEquals("a,b:c%d@e*!", metadata.get("k=;"));
+		assertTrue(metadata.containsKey("flag"));
+		assertNull(metadata.get("flag"));
+		assertEquals("!", metadata.get("bang"));
+		assertEquals("orders-*", rcs[2].getServiceName());
+		assertEquals(map("version", "2\\.[0-9]+"), rcs[2].getMetadataPatterns());
+		assertNull(rcs[3].getServiceName());
+		assertEquals(map("user", "kryten"), rcs[3].getMetadataConstraints());
+	}
+
+	private static void assertRejected(String header, String message) {
+		try {
+			DeveloperRoutingDescriptorCodec.fromHeader(header);
+			fail("Expected " + header + " to be rejected");
+		} catch (IllegalArgumentException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+
+	private static void assertDecodeRejected(DeveloperRoutingDescriptorCodec codec, String baggage, String message) {
+		try {
+			codec.decode(baggage);
+			fail("Expected " + baggage + " to be rejected");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	private static Map<String, String> map(String... keyValues) {
+		Map<String, String> map = new LinkedHashMap<>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			map.put(keyValues[i], keyValues[i + 1]);
+		}
+		return map;
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Drives the watcher's checks directly, without its scheduler, against a file it is pointed at.
+ *
+ * @author Andy Clement
+ */
+public class DeveloperRoutingDescriptorFileWatcherTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final DeveloperRoutingDescriptorRegistry registry = new DeveloperRoutingDescriptorRegistry();
+
+	private DeveloperRoutingDescriptorFileWatcher watcher;
+
+	private File file;
+
+	@After
+	public void stop() {
+		if (watcher != null) {
+			watcher.destroy();
+		}
+	}
+
+	@Test
+	public void loadsDescriptorsPerLine() throws IOException {
+		write("# developers\n\n1|Andy|b:env=dev\n" + new DeveloperRoutingDescriptorCodec().toJson(descriptor("Bob", "env=test"))
+				+ "\r\n");
+		watcher().checkForChanges();
+		assertRegistered("Andy", "1|Andy|b:env=dev", "Bob", "1|Bob|b:env=test");
+	}
+
+	@Test
+	public void loadsDescriptorArray() throws IOException {
+		DeveloperRoutingDescriptorCodec codec = new DeveloperRoutingDescriptorCodec();
+		write("[" + codec.toJson(descriptor("Andy", "env=dev")) + "," + codec.toJson(descriptor("Bob", "env=test")) + "]");
+		watcher().checkForChanges();
+		assertRegistered("Andy", "1|Andy|b:env=dev", "Bob", "1|Bob|b:env=test");
+	}
+
+	@Test
+	public void reloadsWhenFileChanges() throws IOException {
+		write("1|Andy|b:env=dev");
+		watcher().checkForChanges();
+		long version = registry.getVersion();
+		// Nothing changed, nothing reloaded
+		watcher.checkForChanges();
+		assertEquals(version, registry.getVersion());
+		// A different size is a change
+		write("1|Andy|b:env=test\n1|Bob|b:env=dev");
+		watcher.checkForChanges();
+		assertRegistered("Andy", "1|Andy|b:env=test", "Bob", "1|Bob|b:env=dev");
+		// So is a new modification time, descriptors no longer in the file are dropped
+		write("1|Cat|b:env=test\n1|Bob|b:env=test");
+		watcher.checkForChanges();
+		assertRegistered("Bob", "1|Bob|b:env=test", "Cat", "1|Cat|b:env=test");
+	}
+
+	@Test
+	public void malformedFileLeavesRegistryUnchanged() throws IOException {
+		write("1|Andy|b:env=dev");
+		watcher().checkForChanges();
+		long version = registry.getVersion();
+		for (String malformed : new String[] { "1|Andy|b:env", "[{\"id\":", "1|Andy|b:env=dev\n1|Andy|b:env=test",
+				"1|Andy|b:env=dev\n1||b:env=test", DeveloperRoutingDescriptorCodec.reference("Andy"), "1|Andy|b:env=~[" }) {
+			write(malformed);
+			watcher.checkForChanges();
+			assertEquals(malformed, version, registry.getVersion());
+			assertRegistered("Andy", "1|Andy|b:env=dev");
+		}
+		// Picked up once it is fixed
+		write("1|Andy|b:env=test");
+		watcher.checkForChanges();
+		assertRegistered("Andy", "1|Andy|b:env=test");
+	}
+
+	@Test
+	public void missingFileLeavesRegistryUnchanged() throws IOException {
+		write("1|Andy|b:env=dev");
+		watcher().checkForChanges();
+		Files.delete(file.toPath());
+		watcher.checkForChanges();
+		assertRegistered("Andy", "1|Andy|b:env=dev");
+		// Back again, as it was before
+		write("1|Andy|b:env=dev");
+		watcher.checkForChanges();
+		assertRegistered("Andy", "1|Andy|b:env=dev");
+		assertNull(registry.get("Bob"));
+	}
+
+	@Test
+	public void intervalMustBePositive() {
+		try {
+			new DeveloperRoutingDescriptorFileWatcher(registry, new File("descriptors"), 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Refresh interval must be positive but was 0", e.getMessage());
+		}
+	}
+
+	private DeveloperRoutingDescriptorFileWatcher watcher() {
+		watcher = new DeveloperRoutingDescriptorFileWatcher(registry, file, 60000);
+		return watcher;
+	}
+
+	/**
+	 * Write the file, moving its modification time on so a rewrite of the same size is seen
+	 * whatever the resolution of the file system's clock.
+	 */
+	private void write(String content) throws IOException {
+		if (file == null) {
+			file = new File(folder.getRoot(), "descriptors");
+		}
+		long lastModified = file.exists() ? file.lastModified() : 0;
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		file.setLastModified(Math.max(lastModified + 2000, file.lastModified()));
+	}
+
+	private void assertRegistered(String... idsAndCompactForms) {
+		Map<String, String> expected = new TreeMap<>();
+		for (int i = 0; i < idsAndCompactForms.length; i += 2) {
+			expected.put(idsAndCompactForms[i], idsAndCompactForms[i + 1]);
+		}
+		Map<String, String> registered = new TreeMap<>();
+		for (Map.Entry<String, DeveloperRoutingDescriptor> entry : registry.getDescriptors().entrySet()) {
+			registered.put(entry.getKey(), DeveloperRoutingDescriptorCodec.toCompact(entry.getValue()));
+		}
+		assertEquals(expected, registered);
+	}
+
+	private static DeveloperRoutingDescriptor descriptor(String id, String constraint) {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor(id);
+		drd.addRouteConstraint("b", constraint);
+		return drd;
+	}
+
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.cloud.devtools.DeveloperRoutingDescriptor.RouteConstraint;
+
+/**
+ * @author Andy Clement
+ */
+public class DeveloperRoutingDescriptorTests {
+
+	@Test
+	public void weightsOutsideRangeRejected() {
+		RouteConstraint rc = new RouteConstraint("b", map("env", "dev"));
+		try {
+			rc.setWeight(101);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Route constraint weight must be between 0 and 100: 101", e.getMessage());
+		}
+		try {
+			rc.setWeight(-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		rc.setWeight(100);
+		assertEquals(100, rc.getWeight());
+	}
+
+	@Test
+	public void canonicalFormIgnoresOrder() {
+		DeveloperRoutingDescriptor drd1 = new DeveloperRoutingDescriptor("Andy");
+		drd1.addRouteConstraint("b", "env=dev", "foo=bar");
+		drd1.addRouteConfig("c", 10, map("version", "canary"));
+		drd1.addRouteConfig("c", 20, map("version", "beta"));
+		drd1.addRouteConstraint("a*", "env=dev");
+		DeveloperRoutingDescriptor drd2 = new DeveloperRoutingDescriptor("Andy");
+		drd2.addRouteConstraint("a*", "env=dev");
+		drd2.addRouteConfig("c", 10, map("version", "canary"));
+		drd2.addRouteConfig("c", 20, map("version", "beta"));
+		drd2.addRouteConstraint("b", "foo=bar", "env=dev");
+		assertEquals(drd1.compactForm(), drd2.compactForm());
+		assertEquals(drd1.fingerprint(), drd2.fingerprint());
+		RouteConstraint[] rcs = drd1.canonicalForm().getRouteConstraints();
+		assertEquals("b", rcs[0].getServiceName());
+		// The weighted constraints of a split keep their order
+		assertEquals(10, rcs[1].getWeight());
+		assertEquals(20, rcs[2].getWeight());
+		assertEquals("a*", rcs[3].getServiceName());
+	}
+
+	@Test
+	public void canonicalFormDropsUnreachableConstraints() {
+		DeveloperRoutingDescriptor drd1 = new DeveloperRoutingDescriptor("Andy");
+		drd1.addRouteConstraint("b", "env=dev");
+		drd1.addRouteConstraint(null, "user=kryten");
+		DeveloperRoutingDescriptor drd2 = new DeveloperRoutingDescriptor("Andy");
+		drd2.addRouteConstraint("b", "env=dev");
+		drd2.addRouteConstraint("B", "env=test");
+		drd2.addRouteConstraint(null, "user=kryten");
+		drd2.addRouteConstraint("c", "env=dev");
+		drd2.addRouteConstraint(null, "user=lister");
+		assertEquals(drd1.compactForm(), drd2.compactForm());
+		assertEquals(drd1.fingerprint(), drd2.fingerprint());
+		DeveloperRoutingDescriptor drd3 = new DeveloperRoutingDescriptor("Andy");
+		drd3.addRouteConstraint("b", "env=test");
+		drd3.addRouteConstraint("b*", "env=dev");
+		// Covered by the glob
+		drd3.addRouteConstraint("bb", "env=test");
+		assertEquals("1|Andy|b:env=test;b%2a:env=dev", drd3.compactForm());
+	}
+
+	@Test
+	public void canonicalFormIsImmutable() {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy");
+		drd.addRouteConfig("b", 10, map("version", "canary"));
+		drd.addRouteConstraint("b", "env=dev");
+		DeveloperRoutingDescriptor canonical = drd.canonicalForm();
+		assertTrue(canonical.canonical());
+		assertSame(canonical, drd.canonicalForm());
+		assertSame(canonical, canonical.canonicalForm());
+		try {
+			canonical.addRouteConstraint("d", "env=dev");
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			canonical.getRouteConstraints()[0].setWeight(1);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// Changing the original gives it a new canonical form
+		drd.setId("Dave");
+		assertNotEquals(canonical.compactForm(), drd.compactForm());
+	}
+
+	@Test
+	public void fingerprintAlgorithm() {
+		// FNV-1a 64 test vectors, fingerprints must not change between releases
+		assertEquals(0xcbf29ce484222325L, DeveloperRoutingDescriptorCodec.fnv64(""));
+		assertEquals(0xaf63dc4c8601ec8cL, DeveloperRoutingDescriptorCodec.fnv64("a"));
+		assertEquals(0x85944171f73967e8L, DeveloperRoutingDescriptorCodec.fnv64("foobar"));
+		assertEquals("#1|af63dc4c8601ec8c", DeveloperRoutingDescriptorCodec.digest("a"));
+		assertEquals("#1|000000000000000f", DeveloperRoutingDescriptorCodec.digest(15L));
+	}
+
+	@Test
+	public void fingerprintReflectsRouting() {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy");
+		drd.addRouteConfig("b", 10, map("version", "canary"));
+		long fingerprint = drd.fingerprint();
+		assertEquals(fingerprint, drd.fingerprint());
+		drd.addRouteConstraint("b", "env=dev");
+		long withRemainder = drd.fingerprint();
+		assertNotEquals(fingerprint, withRemainder);
+		DeveloperRoutingDescriptor other = new DeveloperRoutingDescriptor("Andy");
+		other.addRouteConfig("b", 11, map("version", "canary"));
+		other.addRouteConstraint("b", "env=dev");
+		assertNotEquals(withRemainder, other.fingerprint());
+		DeveloperRoutingDescriptor renamed = new DeveloperRoutingDescriptor("Dave");
+		renamed.setRouteConstraints(drd.getRouteConstraints());
+		assertNotEquals(withRemainder, renamed.fingerprint());
+	}
+
+	@Test
+	public void mergeKeepsWildcardLast() {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy");
+		drd.addRouteConstraint("b", "env=dev");
+		drd.addRouteConstraint(null, "user=kryten");
+		DeveloperRoutingDescriptor other = new DeveloperRoutingDescriptor();
+		other.addRouteConstraint("c", "env=test");
+		drd.merge(other);
+		assertServices(drd, "b", "c", null);
+		assertEquals("Andy", drd.getId());
+	}
+
+	@Test
+	public void mergePlacesWeightedAheadOfUnweighted() {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor();
+		drd.addRouteConstraint("b", "env=dev");
+		DeveloperRoutingDescriptor other = new DeveloperRoutingDescriptor("Andy");
+		other.addRouteConfig("B", 10, map("version", "canary"));
+		drd.merge(other);
+		assertServices(drd, "B", "b");
+		assertEquals("Andy", drd.getId());
+		assertEquals(2, drd.matcher().splitFor("b").size());
+	}
+
+	@Test
+	public void mergeSkipsDuplicates() {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy");
+		drd.addRouteConstraint("b", "env=dev", "foo=bar");
+		long fingerprint = drd.fingerprint();
+		DeveloperRoutingDescriptor other = new DeveloperRoutingDescriptor("Andy");
+		other.addRouteConstraint("B", "foo=bar", "env=dev");
+		drd.merge(other);
+		assertServices(drd, "b");
+		assertEquals(fingerprint, drd.fingerprint());
+	}
+
+	@Test
+	public void mergeConflicts() {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy");
+		drd.addRouteConstraint("b", "env=dev");
+		drd.addRouteConfig("c", 60, map("version", "canary"));
+		assertMergeRejected(drd, "Andy", "b", 0, "Conflicting route constraints for b");
+		assertMergeRejected(drd, "Dave", "d", 0, "Cannot merge routing descriptor Dave into Andy");
+		assertMergeRejected(drd, "Andy", "c", 50, "Route constraint weights for c would add up to 110 which is more than 100");
+		// Nothing was merged
+		assertServices(drd, "b", "c");
+		try {
+			drd.canonicalForm().merge(new DeveloperRoutingDescriptor("Andy"));
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	private static void assertServices(DeveloperRoutingDescriptor drd, String... serviceNames) {
+		RouteConstraint[] rcs = drd.getRouteConstraints();
+		assertEquals(serviceNames.length, rcs.length);
+		for (int i = 0; i < serviceNames.length; i++) {
+			assertEquals(serviceNames[i], rcs[i].getServiceName());
+		}
+	}
+
+	private static void assertMergeRejected(DeveloperRoutingDescriptor drd, String id, String serviceName, int weight,
+			String message) {
+		DeveloperRoutingDescriptor other = new DeveloperRoutingDescriptor(id);
+		other.addRouteConfig(serviceName, weight, map("env", "test"));
+		try {
+			drd.merge(other);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+		}
+	}
+
+	private static Map<String, String> map(String... keyValues) {
+		Map<String, String> map = new LinkedHashMap<>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			map.put(keyValues[i], keyValues[i + 1]);
+		}
+		return map;
+	}
+
+}
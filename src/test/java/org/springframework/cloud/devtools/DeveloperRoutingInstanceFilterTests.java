@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+
+/**
+ * @author Andy Clement
+ */
+public class DeveloperRoutingInstanceFilterTests {
+
+	private final DeveloperRoutingDescriptorCache descriptorCache = new DeveloperRoutingDescriptorCache();
+
+	private final RecordingCounterService counters = new RecordingCounterService();
+
+	private final DeveloperRoutingMetrics metrics = new DeveloperRoutingMetrics(counters, null);
+
+	private final DeveloperRoutingInstanceFilter zoned = new DeveloperRoutingInstanceFilter(descriptorCache, metrics,
+			"z1");
+
+	@Test
+	public void prefersMatchingInstancesInThePreferredZone() {
+		List<ServiceInstance> instances = instances(instance("b1", "env=dev", "zone=z2"),
+				instance("b2", "env=dev", "zone=Z1"), instance("b3", "zone=z1"), instance("b4", "env=dev", "zone=z1"));
+		assertEquals(hosts("b2", "b4"), hosts(zoned.filter("b", instances, "1|Andy|b:env=dev")));
+		// Without routing every instance is eligible, so just the zone applies
+		assertEquals(hosts("b2", "b3", "b4"), hosts(zoned.filter("b", instances, null)));
+		assertEquals(counts("routed.b", 2), counters.outcomes());
+	}
+
+	@Test
+	public void fallsBackWhenThePreferredZoneHasNoMatch() {
+		List<ServiceInstance> instances = instances(instance("b1", "env=dev", "zone=z2"), instance("b2", "zone=z1"),
+				instance("b3", "env=dev"));
+		assertEquals(hosts("b1", "b3"), hosts(zoned.filter("b", instances, "1|Andy|b:env=dev")));
+		// The cached decision is used again, still falling back
+		assertEquals(hosts("b1", "b3"), hosts(zoned.filter("b", instances(instances), "1|Andy|b:env=dev")));
+		assertEquals(counts("fallback.b", 2), counters.outcomes());
+		assertEquals(Integer.valueOf(2), counters.counts.get(DeveloperRoutingMetrics.PREFIX + "accepted.b"));
+	}
+
+	@Test
+	public void noPreferredZone() {
+		DeveloperRoutingInstanceFilter filter = new DeveloperRoutingInstanceFilter(descriptorCache, metrics, null);
+		List<ServiceInstance> instances = instances(instance("b1", "env=dev", "zone=z1"), instance("b2", "zone=z2"),
+				instance("b3", "env=dev", "zone=z3"));
+		assertEquals(hosts("b1", "b3"), hosts(filter.filter("b", instances, "1|Andy|b:env=dev")));
+		assertSame(instances, filter.filter("b", instances, null));
+		assertEquals(counts("routed.b", 2), counters.outcomes());
+	}
+
+	@Test
+	public void nothingEligible() {
+		List<ServiceInstance> instances = instances(instance("b1", "env=dev", "zone=z1"), instance("b2", "zone=z1"));
+		assertTrue(zoned.filter("b", instances, "1|Andy|b:env=test").isEmpty());
+		assertTrue(zoned.filter("b", instances(), "1|Andy|b:env=dev").isEmpty());
+		assertEquals(counts("no-server.b", 2), counters.outcomes());
+	}
+
+	@Test
+	public void unusableBaggageIsIgnored() {
+		List<ServiceInstance> instances = instances(instance("b1", "env=dev", "zone=z2"), instance("b2", "zone=z1"));
+		assertSame(instances, zoned.filter("b", instances, "#1|0123456789abcdef"));
+		assertEquals(counts("routed.b", 1), counters.outcomes());
+	}
+
+	@Test
+	public void discoveryClientFiltersForTheCurrentRouting() {
+		final List<ServiceInstance> instances = instances(instance("b1", "env=dev", "zone=z2"),
+				instance("b2", "env=dev", "zone=z1"), instance("b3", "zone=z1"));
+		DiscoveryClient discoveryClient = new DeveloperRoutingDiscoveryClient(new DiscoveryClient() {
+
+			@Override
+			public String description() {
+				return "test";
+			}
+
+			@SuppressWarnings("deprecation")
+			public ServiceInstance getLocalServiceInstance() {
+				return null;
+			}
+
+			@Override
+			public List<ServiceInstance> getInstances(String serviceId) {
+				// Fresh lists each time, as registries tend to hand out
+				return "b".equals(serviceId) ? instances(instances) : Collections.<ServiceInstance>emptyList();
+			}
+
+			@Override
+			public List<String> getServices() {
+				return Collections.singletonList("b");
+			}
+		}, zoned);
+		try (DeveloperRoutingContext.Scope scope = DeveloperRoutingContext.of("1|Andy|b:env=dev").open()) {
+			assertEquals(hosts("b2"), hosts(discoveryClient.getInstances("b")));
+		}
+		try (DeveloperRoutingContext.Scope scope = DeveloperRoutingContext.of("1|Andy|b:env=test").open()) {
+			assertTrue(discoveryClient.getInstances("b").isEmpty());
+		}
+		assertEquals(hosts("b2", "b3"), hosts(discoveryClient.getInstances("b")));
+		assertEquals(Collections.singletonList("b"), discoveryClient.getServices());
+		assertEquals("Developer routing test", discoveryClient.description());
+	}
+
+	private static Map<String, Integer> counts(String outcome, int count) {
+		return Collections.singletonMap(DeveloperRoutingMetrics.PREFIX + outcome, count);
+	}
+
+	private static List<String> hosts(String... hosts) {
+		return Arrays.asList(hosts);
+	}
+
+	private static List<String> hosts(List<ServiceInstance> instances) {
+		List<String> hosts = new ArrayList<>();
+		for (ServiceInstance instance : instances) {
+			hosts.add(instance.getHost());
+		}
+		return hosts;
+	}
+
+	private static List<ServiceInstance> instances(ServiceInstance... instances) {
+		return new ArrayList<>(Arrays.asList(instances));
+	}
+
+	/**
+	 * @return new instance objects for the same hosts, ports and metadata
+	 */
+	private static List<ServiceInstance> instances(List<ServiceInstance> instances) {
+		List<ServiceInstance> copies = new ArrayList<>();
+		for (ServiceInstance instance : instances) {
+			copies.add(new DefaultServiceInstance(instance.getServiceId(), instance.getHost(), instance.getPort(),
+					instance.isSecure(), instance.getMetadata()));
+		}
+		return copies;
+	}
+
+	private static ServiceInstance instance(String host, String... metadata) {
+		Map<String, String> map = new HashMap<>();
+		for (String keyValue : metadata) {
+			int equals = keyValue.indexOf('=');
+			map.put(keyValue.substring(0, equals), keyValue.substring(equals + 1));
+		}
+		return new DefaultServiceInstance("b", host, 8080, false, map);
+	}
+
+	private static class RecordingCounterService implements CounterService {
+
+		final Map<String, Integer> counts = new TreeMap<>();
+
+		@Override
+		public void increment(String metricName) {
+			Integer count = counts.get(metricName);
+			counts.put(metricName, count == null ? 1 : count + 1);
+		}
+
+		@Override
+		public void decrement(String metricName) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void reset(String metricName) {
+			counts.remove(metricName);
+		}
+
+		/**
+		 * @return the counts of the routed, fallback and no server outcomes
+		 */
+		Map<String, Integer> outcomes() {
+			Map<String, Integer> outcomes = new TreeMap<>();
+			for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+				String name = entry.getKey().substring(DeveloperRoutingMetrics.PREFIX.length());
+				if (name.startsWith("routed.") || name.startsWith("fallback.") || name.startsWith("no-server.")) {
+					outcomes.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return outcomes;
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.cloud.devtools.DeveloperRoutingDescriptorCodec.Format;
+
+import io.jmnarloch.spring.cloud.ribbon.support.RibbonFilterContextHolder;
+
+/**
+ * @author Andy Clement
+ */
+public class DeveloperRoutingTests {
+
+	private final DeveloperRoutingDescriptorCache descriptorCache = new DeveloperRoutingDescriptorCache(16,
+			new DeveloperRoutingDescriptorCodec(Format.COMPACT));
+
+	private final DeveloperRouting developerRouting = new DeveloperRouting(descriptorCache);
+
+	@After
+	public void clear() {
+		RibbonFilterContextHolder.clearCurrentContext();
+	}
+
+	@Test
+	public void routesWithTheContextsCache() {
+		String baggage = developerRouting.with(descriptor("env=dev"), () -> DeveloperRoutingContext.capture().getBaggage());
+		assertEquals("1|Andy|b:env=dev", baggage);
+		assertSame(baggage, developerRouting.context(descriptor("env=dev")).getBaggage());
+		assertNull(developerRouting.context(null).getBaggage());
+		// Another context, another cache and format
+		DeveloperRouting other = new DeveloperRouting(new DeveloperRoutingDescriptorCache());
+		assertEquals(new DeveloperRoutingDescriptorCodec(Format.JSON).encode(descriptor("env=dev")),
+				other.context(descriptor("env=dev")).getBaggage());
+	}
+
+	@Test
+	public void previousRoutingRestoredAfterReturning() {
+		try (DeveloperRoutingContext.Scope scope = DeveloperRoutingContext.of("outer").open()) {
+			final AtomicReference<String> seen = new AtomicReference<>();
+			developerRouting.with(descriptor("env=dev"), new Runnable() {
+				@Override
+				public void run() {
+					seen.set(DeveloperRoutingContext.capture().getBaggage());
+				}
+			});
+			assertEquals("1|Andy|b:env=dev", seen.get());
+			assertEquals("outer", DeveloperRoutingContext.capture().getBaggage());
+			// No descriptor means no routing while the work runs
+			assertNull(developerRouting.with(null, () -> DeveloperRoutingContext.capture().getBaggage()));
+			assertEquals("outer", DeveloperRoutingContext.capture().getBaggage());
+		}
+		assertNull(DeveloperRoutingContext.capture().getBaggage());
+	}
+
+	@Test
+	public void previousRoutingRestoredAfterThrowing() {
+		try (DeveloperRoutingContext.Scope scope = DeveloperRoutingContext.of("outer").open()) {
+			try {
+				developerRouting.with(descriptor("env=dev"), () -> {
+					throw new IllegalStateException(DeveloperRoutingContext.capture().getBaggage());
+				});
+				fail();
+			} catch (IllegalStateException e) {
+				assertEquals("1|Andy|b:env=dev", e.getMessage());
+			}
+			assertEquals("outer", DeveloperRoutingContext.capture().getBaggage());
+		}
+		try {
+			developerRouting.with(descriptor("env=dev"), (Runnable) () -> {
+				throw new IllegalStateException();
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertNull(DeveloperRoutingContext.capture().getBaggage());
+	}
+
+	@Test
+	public void descriptorCacheRequired() {
+		try {
+			new DeveloperRouting(null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Descriptor cache must not be null", e.getMessage());
+		}
+	}
+
+	private static DeveloperRoutingDescriptor descriptor(String constraint) {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy");
+		drd.addRouteConstraint("b", constraint);
+		return drd;
+	}
+
+}
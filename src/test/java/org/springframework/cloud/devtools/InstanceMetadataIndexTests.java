@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
+
+/**
+ * @author Andy Clement
+ */
+public class InstanceMetadataIndexTests {
+
+	private final InstanceMetadataIndex index = new InstanceMetadataIndex(null);
+
+	@Test
+	public void queriesFollowAddRemoveAndReplace() {
+		InstanceInfo b1 = instance("b", "b1", "env=dev");
+		InstanceInfo b2 = instance("b", "b2", "env=test");
+		InstanceInfo c1 = instance("c", "c1", "env=dev");
+		index.update(applications("1", b1, b2, c1));
+		assertEquals(3, index.size());
+		assertQuery(InstanceMetadataIndex.ACCEPT, b1);
+		assertQuery(InstanceMetadataIndex.REJECT, b2);
+		// No constraint for c, left to the predicate
+		assertQuery(InstanceMetadataIndex.UNKNOWN, c1);
+
+		InstanceInfo b3 = instance("b", "b3", "env=dev");
+		index.update(applications("2", b1, b2, b3, c1));
+		assertQuery(InstanceMetadataIndex.ACCEPT, b3);
+
+		index.update(applications("3", b2, b3, c1));
+		assertEquals(3, index.size());
+		assertQuery(InstanceMetadataIndex.UNKNOWN, b1);
+		assertQuery(InstanceMetadataIndex.ACCEPT, b3);
+
+		InstanceInfo newB2 = instance("b", "b2", "env=dev");
+		index.update(applications("4", newB2, b3, c1));
+		assertQuery(InstanceMetadataIndex.ACCEPT, newB2);
+		assertQuery(InstanceMetadataIndex.UNKNOWN, b2);
+		// The replacement took the slot b1 left
+		assertEquals(bits(0, 3), index.eligible("B", matcher("1|Andy|b:env=dev").constraintFor("b")));
+	}
+
+	@Test
+	public void patternsUseIndexedValues() {
+		InstanceInfo b1 = instance("b", "b1", "version=2.10");
+		InstanceInfo b2 = instance("b", "b2", "version=3.0");
+		InstanceInfo b3 = instance("b", "b3", "env=dev");
+		index.update(applications("1", b1, b2, b3));
+		InstanceInfo b4 = instance("b", "b4", "version=2.1x");
+		index.update(applications("2", b1, b2, b3, b4));
+		InstanceMetadataIndex.Query query = index.query(matcher("1|Andy|b:version=~2\\.[0-9]+"));
+		assertEquals(InstanceMetadataIndex.ACCEPT, query.test(server(b1)));
+		assertEquals(InstanceMetadataIndex.REJECT, query.test(server(b2)));
+		assertEquals(InstanceMetadataIndex.REJECT, query.test(server(b3)));
+		assertEquals(InstanceMetadataIndex.REJECT, query.test(server(b4)));
+	}
+
+	@Test
+	public void postingsCopiedOnWrite() {
+		InstanceInfo b1 = instance("b", "b1", "env=dev");
+		InstanceInfo b2 = instance("b", "b2", "env=dev");
+		index.update(applications("1", b1, b2));
+		BitSet before = index.instances("B");
+		assertEquals(bits(0, 1), before);
+		index.update(applications("2", b1, b2, instance("b", "b3", "env=dev")));
+		assertEquals(bits(0, 1), before);
+		assertEquals(bits(0, 1, 2), index.instances("B"));
+		BitSet added = index.instances("B");
+		index.update(applications("3", b2));
+		assertEquals(bits(0, 1, 2), added);
+		assertEquals(bits(1), index.instances("B"));
+		// An update that changes nothing publishes nothing
+		BitSet removed = index.instances("B");
+		index.update(applications("4", b2));
+		assertSame(removed, index.instances("B"));
+	}
+
+	@Test
+	public void slotsReused() {
+		InstanceInfo b1 = instance("b", "b1", "env=dev");
+		InstanceInfo b2 = instance("b", "b2", "env=test");
+		InstanceInfo b3 = instance("b", "b3", "env=dev");
+		index.update(applications("1", b1, b2, b3));
+		index.update(applications("2", b1, b3));
+		assertEquals(bits(0, 2), index.instances("B"));
+		InstanceInfo b4 = instance("b", "b4", "env=dev");
+		index.update(applications("3", b1, b3, b4));
+		assertEquals(bits(0, 1, 2), index.instances("B"));
+		assertQuery(InstanceMetadataIndex.ACCEPT, b4);
+		assertQuery(InstanceMetadataIndex.UNKNOWN, b2);
+		// Replaced instances give up their slot and take the lowest free one
+		InstanceInfo newB1 = instance("b", "b1", "env=test");
+		index.update(applications("4", newB1, b3, b4));
+		assertEquals(bits(0, 1, 2), index.instances("B"));
+		assertQuery(InstanceMetadataIndex.REJECT, newB1);
+	}
+
+	@Test
+	public void unchangedAppsHashCodeSkipsRefreshes() {
+		InstanceInfo b1 = instance("b", "b1", "env=dev");
+		InstanceInfo b2 = instance("b", "b2", "env=test");
+		index.update(applications("UP_2_", b1, b2));
+		// Replaced with new metadata, which does not change the apps hash code
+		InstanceInfo newB1 = instance("b", "b1", "env=test");
+		for (int i = 0; i < InstanceMetadataIndex.MAX_SKIPPED_REFRESHES; i++) {
+			index.update(applications("UP_2_", newB1, b2));
+			// Not indexed yet, but no stale answer either
+			assertQuery(InstanceMetadataIndex.UNKNOWN, newB1);
+		}
+		index.update(applications("UP_2_", newB1, b2));
+		assertQuery(InstanceMetadataIndex.REJECT, newB1);
+		assertQuery(InstanceMetadataIndex.UNKNOWN, b1);
+		assertQuery(InstanceMetadataIndex.REJECT, b2);
+	}
+
+	@Test
+	public void changedAppsHashCodeNotSkipped() {
+		InstanceInfo b1 = instance("b", "b1", "env=test");
+		index.update(applications("UP_1_", b1));
+		InstanceInfo newB1 = instance("b", "b1", "env=dev");
+		index.update(applications("UP_1_", newB1));
+		assertQuery(InstanceMetadataIndex.UNKNOWN, newB1);
+		index.update(applications("UP_2_", newB1, instance("b", "b2", "env=dev")));
+		assertQuery(InstanceMetadataIndex.ACCEPT, newB1);
+		// Without a hash code every refresh is scanned
+		InstanceInfo b3 = instance("b", "b3", "env=dev");
+		index.update(applications(null, newB1, b3));
+		index.update(applications(null, newB1, b3));
+		BitSet scanned = index.instances("B");
+		InstanceInfo newB3 = instance("b", "b3", "env=test");
+		index.update(applications(null, newB1, newB3));
+		assertNotSame(scanned, index.instances("B"));
+		assertQuery(InstanceMetadataIndex.REJECT, newB3);
+	}
+
+	private void assertQuery(int expected, InstanceInfo instance) {
+		// Queries are for one pass over a server list, so a fresh one for each check
+		InstanceMetadataIndex.Query query = index.query(matcher("1|Andy|b:env=dev"));
+		assertEquals(instance.getId(), expected, query.test(server(instance)));
+	}
+
+	private static RouteMatcher matcher(String baggage) {
+		return DeveloperRoutingDescriptorCodec.fromCompact(baggage).matcher();
+	}
+
+	private static BitSet bits(int... indexes) {
+		BitSet bits = new BitSet();
+		for (int index : indexes) {
+			bits.set(index);
+		}
+		return bits;
+	}
+
+	private static Applications applications(String appsHashCode, InstanceInfo... instances) {
+		Map<String, Application> byName = new HashMap<>();
+		Applications applications = new Applications();
+		for (InstanceInfo instance : instances) {
+			Application application = byName.get(instance.getAppName());
+			if (application == null) {
+				application = new Application(instance.getAppName());
+				byName.put(instance.getAppName(), application);
+				applications.addApplication(application);
+			}
+			application.addInstance(instance);
+		}
+		applications.setAppsHashCode(appsHashCode);
+		return applications;
+	}
+
+	private static InstanceInfo instance(String appName, String id, String keyValue) {
+		Map<String, String> metadata = new HashMap<>();
+		int equals = keyValue.indexOf('=');
+		metadata.put(keyValue.substring(0, equals), keyValue.substring(equals + 1));
+		return InstanceInfo.Builder.newBuilder()
+				.setAppName(appName)
+				.setInstanceId(id)
+				.setHostName(id)
+				.setIPAddr("10.0.0.1")
+				.setPort(8080)
+				.setMetadata(metadata)
+				.build();
+	}
+
+	private static DiscoveryEnabledServer server(InstanceInfo instance) {
+		return new DiscoveryEnabledServer(instance, false);
+	}
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author Andy Clement
+ */
+public class RouteMatcherTests {
+
+	private static final int SAMPLES = 200000;
+
+	@Test
+	public void splitDistribution() {
+		RouteMatcher matcher = matcher("b@20:v=a;b@30:v=b;b:env=dev");
+		RouteMatcher.Split split = matcher.splitFor("b");
+		assertEquals(3, split.size());
+		assertDistribution(split, 20, 30, 50);
+	}
+
+	@Test
+	public void splitDistributionUneven() {
+		RouteMatcher.Split split = matcher("b@1:v=a;b@96:v=b;b@2:v=c").splitFor("B");
+		assertEquals(4, split.size());
+		assertDistribution(split, 1, 96, 2, 1);
+	}
+
+	@Test
+	public void splitWithoutRemainder() {
+		RouteMatcher.Split split = matcher("b@25:v=a;b@75:v=b").splitFor("b");
+		assertEquals(2, split.size());
+		assertDistribution(split, 25, 75);
+	}
+
+	@Test
+	public void splitSingleOutcome() {
+		RouteMatcher.Split split = matcher("b@100:v=a").splitFor("b");
+		assertEquals(1, split.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(0, split.choose());
+		}
+	}
+
+	@Test
+	public void splitVariants() {
+		RouteMatcher matcher = matcher("b@20:v=a;b@30:v=b;b:env=dev;c:env=test");
+		RouteMatcher.Split split = matcher.splitFor("b");
+		assertTrue(split.variant(0).constraintFor("b").matches(metadata("v", "a")));
+		assertFalse(split.variant(0).constraintFor("b").matches(metadata("env", "dev")));
+		assertTrue(split.variant(1).constraintFor("b").matches(metadata("v", "b")));
+		// The remainder is the matcher itself
+		assertSame(matcher, split.variant(2));
+		assertTrue(matcher.constraintFor("b").matches(metadata("env", "dev")));
+		// Other services route the same way in every variant, a choice is only made once
+		for (int o = 0; o < split.size(); o++) {
+			assertTrue(split.variant(o).constraintFor("c").matches(metadata("env", "test")));
+		}
+		assertNull(split.variant(0).splitFor("b"));
+		assertNull(split.variant(1).splitFor("b"));
+	}
+
+	@Test
+	public void unweightedNotSplit() {
+		RouteMatcher matcher = matcher("b:env=dev;b@20:v=a;c*@10:v=a");
+		assertFalse(matcher.hasSplits());
+		assertNull(matcher.splitFor("b"));
+		assertNull(matcher.splitFor("c1"));
+		assertNull(matcher.splitFor(null));
+	}
+
+	@Test
+	public void weightsOverOneHundredRejected() {
+		DeveloperRoutingDescriptor drd = new DeveloperRoutingDescriptor("Andy");
+		drd.addRouteConfig("b", 60, metadata("v", "a"));
+		drd.addRouteConfig("b", 41, metadata("v", "b"));
+		try {
+			drd.matcher();
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Route constraint weights for b add up to 101 which is more than 100", e.getMessage());
+		}
+	}
+
+	@Test
+	public void globServiceNames() {
+		RouteMatcher matcher = matcher("orders-eu:env=test;orders-*:env=dev;orders-us:env=qa;or?ers-1:env=uat");
+		assertEquals("orders-eu", matcher.constraintFor("Orders-EU").getServiceName());
+		assertEquals("orders-*", matcher.constraintFor("ORDERS-1").getServiceName());
+		// Covered by an earlier glob so never reached
+		assertEquals("orders-*", matcher.constraintFor("orders-us").getServiceName());
+		assertEquals("or?ers-1", matcher.constraintFor("oraers-1").getServiceName());
+		assertNull(matcher.constraintFor("orders"));
+		assertNull(matcher.constraintFor("oraers-12"));
+	}
+
+	@Test
+	public void metadataPatterns() {
+		RouteMatcher matcher = DeveloperRoutingDescriptorCodec.fromCompact("1|Andy|b:env=dev,v=~2\\.[0-9]+").matcher();
+		RouteMatcher.Constraint constraint = matcher.constraintFor("b");
+		Map<String, String> metadata = new HashMap<>();
+		metadata.put("env", "dev");
+		metadata.put("v", "2.10");
+		assertTrue(constraint.matches(metadata));
+		// Values must match in full
+		metadata.put("v", "12.1");
+		assertFalse(constraint.matches(metadata));
+		metadata.remove("v");
+		assertFalse(constraint.matches(metadata));
+		assertSame(PatternCache.regex("2\\.[0-9]+"), PatternCache.regex("2\\.[0-9]+"));
+	}
+
+	@Test
+	public void expensivePatternsDoNotMatch() {
+		RouteMatcher matcher = DeveloperRoutingDescriptorCodec
+				.fromCompact("1|Andy|b:v=~(.*x){20}y;c:v=~2\\.[0-9]+").matcher();
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			value.append('x');
+		}
+		assertFalse(matcher.constraintFor("b").matches(metadata("v", value.toString())));
+		assertTrue(matcher.constraintFor("c").matches(metadata("v", "2.10")));
+		assertFalse(matcher.constraintFor("c").matches(metadata("v", "2.1x")));
+	}
+
+	/**
+	 * Checks each outcome is chosen within half a percentage point of its weight, more than four
+	 * standard deviations at this sample size.
+	 */
+	private static void assertDistribution(RouteMatcher.Split split, int... weights) {
+		int[] counts = new int[split.size()];
+		for (int i = 0; i < SAMPLES; i++) {
+			counts[split.choose()]++;
+		}
+		for (int o = 0; o < weights.length; o++) {
+			double percent = counts[o] * 100.0 / SAMPLES;
+			assertEquals("Outcome " + o, weights[o], percent, 0.5);
+		}
+	}
+
+	private static RouteMatcher matcher(String header) {
+		return DeveloperRoutingDescriptorCodec.fromHeader(header).matcher();
+	}
+
+	private static Map<String, String> metadata(String key, String value) {
+		return Collections.singletonMap(key, value);
+	}
+
+}
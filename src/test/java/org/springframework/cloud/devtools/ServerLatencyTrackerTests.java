@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.netflix.loadbalancer.Server;
+import com.netflix.loadbalancer.ServerStats;
+
+/**
+ * Drives the tracker with explicit times against stats that are set directly.
+ *
+ * @author Andy Clement
+ */
+public class ServerLatencyTrackerTests {
+
+	private static final long DECAY_MILLIS = 1000;
+
+	private static final double DELTA = 1e-9;
+
+	private final ServerLatencyTracker tracker = new ServerLatencyTracker(DECAY_MILLIS);
+
+	private final Server a = new Server("a", 8080);
+
+	private final Server b = new Server("b", 8080);
+
+	@Test
+	public void firstSampleIsTheAverage() {
+		assertEquals(20, tracker.latency(a, stats(10, 20, 0), millis(1)), DELTA);
+		assertEquals(20, tracker.latency(a, stats(10, 20, 0), millis(5000)), DELTA);
+	}
+
+	@Test
+	public void sampledAtTimeZero() {
+		// Any nanoTime is valid, zero included, so a sample then is not forgotten
+		tracker.latency(a, stats(10, 20, 0), 0);
+		assertEquals(20 + (1 - Math.exp(-1)) * 20, tracker.latency(a, stats(20, 30, 0), millis(DECAY_MILLIS)), DELTA);
+		assertEquals(20 + (1 - Math.exp(-1)) * 20, tracker.latency(b, stats(0, 0, 0), millis(DECAY_MILLIS)), DELTA);
+	}
+
+	@Test
+	public void movingAverage() {
+		long start = millis(1);
+		tracker.latency(a, stats(10, 20, 0), start);
+		// Ten more requests taking 40ms each bring the overall mean to 30ms
+		double weight = 1 - Math.exp(-1);
+		assertEquals(20 + weight * (40 - 20), tracker.latency(a, stats(20, 30, 0), start + millis(DECAY_MILLIS)),
+				DELTA);
+		// After decay * ln 2 a sample replaces half of the average
+		double average = 20 + weight * 20;
+		long halfLife = start + millis(DECAY_MILLIS) + (long) (millis(DECAY_MILLIS) * Math.log(2));
+		// Ten more at 10ms each
+		double total = 30 * 20 + 10 * 10;
+		assertEquals((average + 10) / 2, tracker.latency(a, stats(30, total / 30, 0), halfLife), 1e-6);
+	}
+
+	@Test
+	public void unknownServersAreTypical() {
+		// Nothing completed anywhere yet
+		assertEquals(1.0, tracker.latency(b, stats(0, 0, 0), 0), DELTA);
+		tracker.latency(a, stats(10, 50, 0), millis(1));
+		assertEquals(50, tracker.latency(b, stats(0, 0, 0), millis(1)), DELTA);
+		// So a server with requests active but none completed is not taken to be free
+		assertEquals(50 * 3, tracker.cost(b, stats(0, 0, 2), millis(1)), DELTA);
+	}
+
+	@Test
+	public void stalledRequestsRaiseTheCost() {
+		long start = millis(1);
+		tracker.latency(a, stats(10, 10, 0), start);
+		// Requests become outstanding
+		assertEquals(10 * 3, tracker.cost(a, stats(10, 10, 2), start + millis(100)), DELTA);
+		assertEquals(10 * 3, tracker.cost(a, stats(10, 10, 2), start + millis(105)), DELTA);
+		// Nothing completes for half a second, so the server is at least that slow
+		assertEquals(500 * 3, tracker.cost(a, stats(10, 10, 2), start + millis(600)), DELTA);
+		assertEquals(2000 * 3, tracker.cost(a, stats(10, 10, 2), start + millis(2100)), DELTA);
+		// Once one completes the clock restarts
+		double latency = tracker.latency(a, stats(11, 10, 1), start + millis(2200));
+		assertEquals(latency * 2, tracker.cost(a, stats(11, 10, 1), start + millis(2200)), DELTA);
+	}
+
+	@Test
+	public void decayMustBePositive() {
+		try {
+			new ServerLatencyTracker(0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Latency decay must be positive but was 0", e.getMessage());
+		}
+	}
+
+	private static long millis(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	static ServerStats stats(final long requests, final double averageMillis, final int active) {
+		return new ServerStats() {
+
+			@Override
+			public long getTotalRequestsCount() {
+				return requests;
+			}
+
+			@Override
+			public double getResponseTimeAvg() {
+				return averageMillis;
+			}
+
+			@Override
+			public int getActiveRequestsCount() {
+				return active;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.CommandFactory;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the {@link SshTunnelTransport} against an embedded sshd standing in for both the CF ssh
+ * proxy and the sshd in the proxy app.
+ *
+ * @author Andy Clement
+ */
+public class SshTunnelTransportTests {
+
+	private static final String PASSWORD = "secret";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SshServer sshd;
+
+	private PublicKey hostKey;
+
+	private SshTunnelTransport transport;
+
+	private ServerSocket echoServer;
+
+	@Before
+	public void startSshd() throws Exception {
+		SimpleGeneratorHostKeyProvider keyProvider = new SimpleGeneratorHostKeyProvider(
+				new File(folder.getRoot(), "hostkey.ser").toPath());
+		hostKey = keyProvider.loadKeys().iterator().next().getPublic();
+		sshd = SshServer.setUpDefaultServer();
+		sshd.setHost("localhost");
+		sshd.setPort(0);
+		sshd.setKeyPairProvider(keyProvider);
+		sshd.setPasswordAuthenticator((username, password, session) -> PASSWORD.equals(password));
+		sshd.setTcpipForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+		sshd.setCommandFactory(new ContainerAddressCommandFactory());
+		sshd.start();
+	}
+
+	@After
+	public void stop() throws Exception {
+		if (transport != null) {
+			transport.close();
+		}
+		if (echoServer != null) {
+			echoServer.close();
+		}
+		sshd.stop(true);
+	}
+
+	@Test
+	public void connectsAndForwardsWhenHostKeyMatches() throws Exception {
+		transport = transport(FingerprintServerKeyVerifier.sha256(hostKey));
+		String containerAddress = transport.connect("app");
+		assertEquals("127.0.0.1", containerAddress);
+		assertTrue(transport.isAlive());
+		assertTrue(transport.probe(5000));
+
+		int localPort = startEchoServer();
+		int remotePort = freePort();
+		transport.forward(containerAddress, remotePort, localPort);
+		try (Socket socket = new Socket("127.0.0.1", remotePort)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write("ping\n".getBytes(StandardCharsets.UTF_8));
+			byte[] reply = new byte[5];
+			InputStream in = socket.getInputStream();
+			for (int read = 0; read < reply.length;) {
+				int n = in.read(reply, read, reply.length - read);
+				assertTrue("tunnel closed early", n != -1);
+				read += n;
+			}
+			assertEquals("ping\n", new String(reply, StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void refusesHostKeyWithOtherFingerprint() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		transport = transport(FingerprintServerKeyVerifier.sha256(generator.generateKeyPair().getPublic()));
+		try {
+			transport.connect("app");
+			fail("connected to a server with the wrong host key");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(transport.isAlive());
+	}
+
+	@Test
+	public void acceptsLegacyFingerprintForms() {
+		String md5 = FingerprintServerKeyVerifier.fingerprint(hostKey, "MD5");
+		String sha1 = FingerprintServerKeyVerifier.fingerprint(hostKey, "SHA-1");
+		assertEquals(47, md5.length());
+		assertEquals(59, sha1.length());
+		assertTrue(new FingerprintServerKeyVerifier(md5.toUpperCase()).verifyServerKey(null, null, hostKey));
+		assertTrue(new FingerprintServerKeyVerifier(sha1).verifyServerKey(null, null, hostKey));
+		assertTrue(new FingerprintServerKeyVerifier("SHA256:" + FingerprintServerKeyVerifier.sha256(hostKey))
+				.verifyServerKey(null, null, hostKey));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownFingerprintForm() {
+		new FingerprintServerKeyVerifier("abc");
+	}
+
+	private SshTunnelTransport transport(String fingerprint) {
+		SshEndpoint endpoint = new SshEndpoint("localhost", sshd.getPort(), "cf:app-guid/0", PASSWORD, fingerprint);
+		return new SshTunnelTransport(appName -> endpoint, sshd.getPort(), PASSWORD, 10000);
+	}
+
+	private int startEchoServer() throws IOException {
+		echoServer = new ServerSocket();
+		echoServer.bind(new InetSocketAddress("127.0.0.1", 0));
+		Thread echo = new Thread(() -> {
+			try (Socket socket = echoServer.accept()) {
+				InputStream in = socket.getInputStream();
+				OutputStream out = socket.getOutputStream();
+				byte[] buffer = new byte[1024];
+				for (int n; (n = in.read(buffer)) != -1;) {
+					out.write(buffer, 0, n);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// closed by the test
+			}
+		}, "echo");
+		echo.setDaemon(true);
+		echo.start();
+		return echoServer.getLocalPort();
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Answers the command the transport runs to find the container address.
+	 */
+	private static class ContainerAddressCommandFactory implements CommandFactory {
+
+		@Override
+		public Command createCommand(final String command) {
+			return new Command() {
+
+				private OutputStream out;
+
+				private ExitCallback callback;
+
+				@Override
+				public void setInputStream(InputStream in) {
+				}
+
+				@Override
+				public void setOutputStream(OutputStream out) {
+					this.out = out;
+				}
+
+				@Override
+				public void setErrorStream(OutputStream err) {
+				}
+
+				@Override
+				public void setExitCallback(ExitCallback callback) {
+					this.callback = callback;
+				}
+
+				@Override
+				public void start(Environment env) throws IOException {
+					boolean known = SshTunnelTransport.CONTAINER_ADDRESS_COMMAND.equals(command);
+					if (known) {
+						out.write("127.0.0.1\n".getBytes(StandardCharsets.UTF_8));
+						out.flush();
+					}
+					callback.onExit(known ? 0 : 127);
+				}
+
+				@Override
+				public void destroy() {
+				}
+			};
+		}
+	}
+
+}
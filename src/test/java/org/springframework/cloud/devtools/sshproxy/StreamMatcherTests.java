@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Andy Clement
+ */
+public class StreamMatcherTests {
+
+	@Test
+	public void overlappingPatterns() {
+		StreamMatcher matcher = new StreamMatcher("he", "she", "his", "hers");
+		assertEquals(Arrays.asList("she@3", "hers@5"), feed(matcher, "ushers"));
+	}
+
+	@Test
+	public void patternInsideAnother() {
+		// Only reached through the failure link of the longer pattern
+		StreamMatcher matcher = new StreamMatcher("abcd", "bc");
+		assertEquals(Arrays.asList("bc@2"), feed(matcher, "abce"));
+		matcher.reset();
+		assertEquals(Arrays.asList("bc@2", "abcd@3"), feed(matcher, "abcd"));
+	}
+
+	@Test
+	public void selfOverlappingPattern() {
+		StreamMatcher matcher = new StreamMatcher("abab");
+		assertEquals(Arrays.asList("abab@3", "abab@5"), feed(matcher, "ababab"));
+	}
+
+	@Test
+	public void restartedPartialMatch() {
+		StreamMatcher matcher = new StreamMatcher("aab", "ab");
+		assertEquals(Arrays.asList("aab@3"), feed(matcher, "aaab"));
+		matcher.reset();
+		assertEquals(Arrays.asList("ab@1"), feed(matcher, "ab"));
+	}
+
+	@Test
+	public void markersSplitAcrossReads() {
+		StreamMatcher matcher = new StreamMatcher("<<START>>", "<<END>>");
+		assertEquals(Arrays.<String>asList(), feed(matcher, "10.0.0.1 <<ST"));
+		assertEquals(Arrays.asList("<<START>>@4"), feed(matcher, "ART>>abc<<E"));
+		assertEquals(Arrays.asList("<<END>>@3"), feed(matcher, "ND>>"));
+	}
+
+	@Test
+	public void resetForgetsPartialMatch() {
+		StreamMatcher matcher = new StreamMatcher("ab");
+		feed(matcher, "a");
+		matcher.reset();
+		assertEquals(Arrays.<String>asList(), feed(matcher, "b"));
+	}
+
+	@Test
+	public void nonAsciiBreaksMatch() {
+		StreamMatcher matcher = new StreamMatcher("ab");
+		assertEquals(Arrays.<String>asList(), feed(matcher, "a\u00e9b"));
+		assertEquals(Arrays.asList("ab@2"), feed(matcher, "\u00e9ab"));
+	}
+
+	@Test
+	public void invalidPatterns() {
+		assertRejected();
+		assertRejected("ok", "");
+		assertRejected("caf\u00e9");
+	}
+
+	private static List<String> feed(StreamMatcher matcher, String text) {
+		List<String> matches = new ArrayList<>();
+		for (int i = 0; i < text.length(); i++) {
+			int match = matcher.feed(text.charAt(i));
+			if (match != -1) {
+				matches.add(matcher.getPattern(match) + "@" + i);
+			}
+		}
+		return matches;
+	}
+
+	private static void assertRejected(String... patterns) {
+		try {
+			new StreamMatcher(patterns);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Relays between loopback sockets, the test playing both the tunnel and the local service.
+ *
+ * @author Andy Clement
+ */
+public class TunnelRelayTests {
+
+	private ServerSocket target;
+
+	private TunnelRelay relay;
+
+	@After
+	public void close() throws IOException {
+		if (relay != null) {
+			relay.close();
+		}
+		if (target != null) {
+			target.close();
+		}
+	}
+
+	@Test
+	public void halfCloseReachesTheOtherSide() throws Exception {
+		byte[] request = bytes(100, 'q');
+		byte[] response = bytes(50, 'r');
+		// The service only replies once the request side has been shut down
+		AtomicReference<byte[]> received = serve(response);
+		try (Socket tunnel = connect()) {
+			tunnel.getOutputStream().write(request);
+			tunnel.shutdownOutput();
+			assertArrayEquals(response, readFully(tunnel.getInputStream()));
+		}
+		await(() -> relay.getActiveConnections() == 0);
+		assertArrayEquals(request, received.get());
+		assertEquals(100, relay.getBytesFromTunnel());
+		assertEquals(50, relay.getBytesToTunnel());
+		assertEquals(1, relay.getTotalConnections());
+		assertEquals(0, relay.getFailedConnections());
+		assertEquals(1, relay.getLatencySamples());
+		assertTrue(relay.getMaxLatencyNanos() > 0);
+		assertEquals(relay.getMaxLatencyNanos(), relay.getTotalLatencyNanos());
+	}
+
+	@Test
+	public void moreThanABufferIsCountedOnce() throws Exception {
+		// Far more than the relay buffers in each direction, so both sides wait on the other
+		byte[] request = bytes(256 * 1024, 'q');
+		byte[] response = bytes(512 * 1024, 'r');
+		AtomicReference<byte[]> received = serve(response);
+		try (final Socket tunnel = connect()) {
+			Thread writer = new Thread(() -> {
+				try {
+					tunnel.getOutputStream().write(request);
+					tunnel.shutdownOutput();
+				} catch (IOException e) {
+					// the read below fails
+				}
+			});
+			writer.start();
+			assertArrayEquals(response, readFully(tunnel.getInputStream()));
+			writer.join(10000);
+		}
+		await(() -> relay.getActiveConnections() == 0);
+		assertArrayEquals(request, received.get());
+		assertEquals(request.length, relay.getBytesFromTunnel());
+		assertEquals(response.length, relay.getBytesToTunnel());
+	}
+
+	@Test
+	public void unreachableTargetCountsAsFailed() throws Exception {
+		target = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		int port = target.getLocalPort();
+		target.close();
+		target = null;
+		relay = new TunnelRelay(port);
+		try (Socket tunnel = new Socket(InetAddress.getLoopbackAddress(), relay.start())) {
+			assertEquals(-1, tunnel.getInputStream().read());
+		}
+		assertEquals(1, relay.getTotalConnections());
+		assertEquals(1, relay.getFailedConnections());
+		assertEquals(0, relay.getActiveConnections());
+	}
+
+	/**
+	 * Start a single connection service that reads the request to its end before replying and
+	 * closing, and a relay with small buffers in front of it.
+	 * @return the request once it has been read
+	 */
+	private AtomicReference<byte[]> serve(final byte[] response) throws IOException {
+		final AtomicReference<byte[]> received = new AtomicReference<>();
+		target = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread service = new Thread(() -> {
+			try (Socket socket = target.accept()) {
+				received.set(readFully(socket.getInputStream()));
+				socket.getOutputStream().write(response);
+			} catch (IOException e) {
+				// the test sees the missing request or response
+			}
+		});
+		service.setDaemon(true);
+		service.start();
+		relay = new TunnelRelay(target.getLocalPort(), 1024);
+		relay.start();
+		return received;
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), relay.getPort());
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(int length, char value) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out waiting for the relay", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+}
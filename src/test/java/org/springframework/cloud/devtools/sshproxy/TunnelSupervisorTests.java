@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2018 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.devtools.sshproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Drives the supervisor's checks directly, without its scheduler, against a fake transport.
+ *
+ * @author Andy Clement
+ */
+public class TunnelSupervisorTests {
+
+	private static final long PROBE_INTERVAL = 10000;
+
+	private static final long INITIAL_BACKOFF = 100;
+
+	private static final long MAX_BACKOFF = 1600;
+
+	private final FakeTransport transport = new FakeTransport();
+
+	private int connects;
+
+	private final TunnelSupervisor supervisor = new TunnelSupervisor(transport, () -> {
+		connects++;
+		return CompletableFuture.completedFuture(null);
+	}, PROBE_INTERVAL, 1000, INITIAL_BACKOFF, MAX_BACKOFF);
+
+	@After
+	public void stop() {
+		supervisor.stop();
+	}
+
+	@Test
+	public void backsOffWhenProbesKeepFailing() {
+		transport.probeSucceeds = false;
+		// Nothing connected yet
+		supervisor.checkConnection();
+		for (int attempt = 0; attempt < 8; attempt++) {
+			assertEquals(attempt + 1, connects);
+			// The first failure is checked again soon, the second one reconnects after a backoff
+			assertEquals(INITIAL_BACKOFF, supervisor.checkConnection());
+			long delay = supervisor.checkConnection();
+			assertEquals(TunnelSupervisor.State.RECONNECTING, supervisor.getState());
+			assertBackoff(attempt, delay);
+			assertEquals("Not reconnected until the backoff is over", attempt + 1, connects);
+			supervisor.checkConnection();
+		}
+	}
+
+	@Test
+	public void backsOffWhenConnectionCloses() {
+		transport.alive = false;
+		supervisor.checkConnection();
+		assertBackoff(0, supervisor.checkConnection());
+		supervisor.checkConnection();
+		assertBackoff(1, supervisor.checkConnection());
+		assertEquals("tunnel connection closed", supervisor.getLastFailure());
+	}
+
+	@Test
+	public void successfulProbeResetsBackoff() {
+		transport.probeSucceeds = false;
+		supervisor.checkConnection();
+		for (int attempt = 0; attempt < 3; attempt++) {
+			supervisor.checkConnection();
+			assertBackoff(attempt, supervisor.checkConnection());
+			supervisor.checkConnection();
+		}
+		transport.probeSucceeds = true;
+		assertEquals(PROBE_INTERVAL, supervisor.checkConnection());
+		assertEquals(TunnelSupervisor.State.UP, supervisor.getState());
+		transport.probeSucceeds = false;
+		supervisor.checkConnection();
+		assertBackoff(0, supervisor.checkConnection());
+	}
+
+	@Test
+	public void singleProbeFailureDoesNotReconnect() {
+		supervisor.checkConnection();
+		assertEquals(PROBE_INTERVAL, supervisor.checkConnection());
+		transport.probeSucceeds = false;
+		assertEquals(INITIAL_BACKOFF, supervisor.checkConnection());
+		transport.probeSucceeds = true;
+		assertEquals(PROBE_INTERVAL, supervisor.checkConnection());
+		assertEquals(1, connects);
+	}
+
+	@Test
+	public void backoffIsCapped() {
+		for (int attempt = 0; attempt < 64; attempt++) {
+			assertBackoff(attempt, supervisor.backoff(attempt));
+		}
+	}
+
+	private static void assertBackoff(int attempt, long delay) {
+		long full = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(attempt, 20));
+		assertTrue("Attempt " + attempt + " waited " + delay, delay >= full / 2 && delay <= full);
+	}
+
+	private static class FakeTransport implements TunnelTransport {
+
+		volatile boolean alive = true;
+
+		volatile boolean probeSucceeds = true;
+
+		@Override
+		public String connect(String appName) throws IOException {
+			return "127.0.0.1";
+		}
+
+		@Override
+		public void forward(String containerAddress, int remotePort, int localPort) throws IOException {
+		}
+
+		@Override
+		public boolean isAlive() {
+			return alive;
+		}
+
+		@Override
+		public boolean probe(int timeoutMillis) {
+			return probeSucceeds;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}